@@ -0,0 +1,226 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.maven;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.descriptor.PluginDescriptor;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+
+import io.spring.nox.jar.MappedJar;
+import io.spring.nox.optimizer.JarOptimizer;
+import io.spring.nox.type.ClasspathTypeSource;
+
+/**
+ * Runs {@link JarOptimizer} inside the Maven JVM on the jar produced by {@code spring-boot-maven-plugin:repackage},
+ * producing the {@code .nox.jar} alongside it. Bound to the verify phase so that it always runs after the repackage,
+ * whatever order the plugins are declared in. If it is bound to the package phase instead, declare it after
+ * spring-boot-maven-plugin. Types are resolved straight from the project's runtime classpath ({@code target/classes}
+ * and the jars in the local repository) rather than by reading them back out of the fat jar.
+ * <p>
+ * The content key of the input jar (a hash of its central directory, so every entry's name, size and CRC), the
+ * version of nox and the settings that affect how types are resolved are recorded next to the output. If none of
+ * them has changed since the last run and the output is still there, the goal does nothing. Progress is reported
+ * through the Maven log.
+ *
+ * @author Andy Clement
+ */
+@Mojo(name = "optimize", defaultPhase = LifecyclePhase.VERIFY, requiresDependencyResolution = ResolutionScope.RUNTIME, threadSafe = true)
+public class OptimizeMojo extends AbstractMojo {
+
+	@Parameter(defaultValue = "${project}", readonly = true, required = true)
+	private MavenProject project;
+
+	@Parameter(defaultValue = "${plugin}", readonly = true, required = true)
+	private PluginDescriptor plugin;
+
+	/**
+	 * The repackaged boot jar to optimize.
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/${project.build.finalName}.jar", required = true)
+	private File inputJar;
+
+	/**
+	 * Where to cache scan results and rewritten dependency jars between builds.
+	 */
+	@Parameter(property = "nox.cacheDirectory", defaultValue = "${project.build.directory}/nox-cache")
+	private File cacheDirectory;
+
+	/**
+	 * Threads to use for the scan and rewrite.
+	 */
+	@Parameter(property = "nox.parallelism", defaultValue = "1")
+	private int parallelism;
+
+	/**
+	 * Resolve types from the project classpath, if false they are read from the input jar.
+	 */
+	@Parameter(property = "nox.useProjectClasspath", defaultValue = "true")
+	private boolean useProjectClasspath;
+
+	/**
+	 * Megabytes of type information to keep in memory, 0 for no limit. Set this when optimizing very large jars on a
+	 * small heap.
+	 */
+	@Parameter(property = "nox.memoryBudget", defaultValue = "0")
+	private long memoryBudget;
+
+	@Parameter(property = "nox.skip", defaultValue = "false")
+	private boolean skip;
+
+	@Override
+	public void execute() throws MojoExecutionException {
+		if (skip) {
+			getLog().info("Skipping nox");
+			return;
+		}
+		if (!inputJar.isFile()) {
+			throw new MojoExecutionException("Nothing to optimize, " + inputJar + " does not exist");
+		}
+		File stampFile = new File(project.getBuild().getDirectory(), "nox.stamp");
+		File outputJar = getOutputJar();
+		String inputsKey = computeInputsKey();
+		if (outputJar.isFile() && inputsKey.equals(readStamp(stampFile))) {
+			getLog().info("Nox output " + outputJar.getName() + " is up to date");
+			return;
+		}
+		try (PrintStream out = new PrintStream(new LogOutputStream(), true)) {
+			JarOptimizer jarOptimizer = new JarOptimizer(inputJar);
+			jarOptimizer.setOutput(out);
+			jarOptimizer.setParallelism(parallelism);
+			jarOptimizer.setCacheDirectory(cacheDirectory);
+			jarOptimizer.setMemoryBudget(memoryBudget * 1024 * 1024);
+			if (useProjectClasspath) {
+				jarOptimizer.setTypeSource(new ClasspathTypeSource(getRuntimeClasspath()));
+			}
+			jarOptimizer.buildOptimizedVariant();
+		} catch (RuntimeException e) {
+			throw new MojoExecutionException("Unable to optimize " + inputJar, e);
+		}
+		writeStamp(stampFile, inputsKey);
+	}
+
+	private List<File> getRuntimeClasspath() throws MojoExecutionException {
+		try {
+			List<File> classpath = new ArrayList<>();
+			for (String element : project.getRuntimeClasspathElements()) {
+				classpath.add(new File(element));
+			}
+			return classpath;
+		} catch (DependencyResolutionRequiredException e) {
+			throw new MojoExecutionException("Unable to determine the runtime classpath", e);
+		}
+	}
+
+	private File getOutputJar() {
+		String inputJarName = inputJar.getName();
+		return new File(inputJar.getParentFile(), inputJarName.substring(0, inputJarName.length() - 4) + ".nox.jar");
+	}
+
+	private String computeInputsKey() throws MojoExecutionException {
+		StringBuilder key = new StringBuilder();
+		key.append(plugin.getVersion()).append(':').append(getNoxJarStamp()).append(':');
+		key.append(useProjectClasspath).append(':').append(memoryBudget).append(':');
+		try (MappedJar jar = MappedJar.open(inputJar)) {
+			key.append(jar.getContentKey());
+		} catch (IOException ioe) {
+			throw new MojoExecutionException("Unable to read " + inputJar, ioe);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Snapshot builds of nox all have the same version, so also use the size and timestamp of the jar it came from.
+	 */
+	private String getNoxJarStamp() {
+		CodeSource codeSource = JarOptimizer.class.getProtectionDomain().getCodeSource();
+		if (codeSource == null) {
+			return "unknown";
+		}
+		try {
+			File noxJar = new File(codeSource.getLocation().toURI());
+			return noxJar.length() + "@" + noxJar.lastModified();
+		} catch (URISyntaxException | IllegalArgumentException e) {
+			return "unknown";
+		}
+	}
+
+	private String readStamp(File stampFile) {
+		try {
+			return stampFile.isFile() ? new String(Files.readAllBytes(stampFile.toPath()), StandardCharsets.UTF_8) : null;
+		} catch (IOException ioe) {
+			return null;
+		}
+	}
+
+	private void writeStamp(File stampFile, String inputsKey) {
+		try {
+			Files.write(stampFile.toPath(), inputsKey.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException ioe) {
+			// Not fatal, the next build just optimizes again
+			getLog().warn("Unable to write " + stampFile + ": " + ioe);
+		}
+	}
+
+	/**
+	 * Passes each line written to it to the Maven log at info level.
+	 */
+	private class LogOutputStream extends OutputStream {
+
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		@Override
+		public void write(int b) {
+			if (b == '\n') {
+				logLine();
+			} else if (b != '\r') {
+				line.write(b);
+			}
+		}
+
+		@Override
+		public void close() {
+			if (line.size() > 0) {
+				logLine();
+			}
+		}
+
+		private void logLine() {
+			getLog().info(new String(line.toByteArray(), Charset.defaultCharset()));
+			line.reset();
+		}
+	}
+
+}
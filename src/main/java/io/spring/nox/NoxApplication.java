@@ -16,16 +16,11 @@
 
 package io.spring.nox;
 
-import java.io.File;
-import java.util.List;
-
 import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 
-import io.spring.nox.optimizer.JarOptimizer;
-
 /**
  * @author Andy Clement
  */
@@ -38,12 +33,10 @@ public class NoxApplication implements ApplicationRunner {
 	
 	@Override
 	public void run(ApplicationArguments args) {
-		List<String> nonOptionArgs = args.getNonOptionArgs();
-		if (nonOptionArgs.size()!=1) {
-			System.out.println("Nox just needs the path to the jar to process");
-			System.exit(1);
+		// Same handling as the plain launcher, which is what the packaged jar runs
+		int exitCode = NoxLauncher.run(args.getSourceArgs());
+		if (exitCode != 0) {
+			System.exit(exitCode);
 		}
-		File inputJar = new File(nonOptionArgs.get(0));
-		new JarOptimizer(inputJar).buildOptimizedVariant();
 	}
 }
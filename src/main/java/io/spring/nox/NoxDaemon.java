@@ -0,0 +1,289 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.spring.nox.jar.FileUtils;
+import io.spring.nox.type.SharedTypeCache;
+
+/**
+ * Resident optimizer. Starting a JVM and parsing the same dependency classes again is most of the cost of optimizing
+ * a jar that has only had its application classes changed, so the daemon keeps the parsed dependency classes (a
+ * {@link SharedTypeCache}, bounded so that a daemon left running does not grow without limit) and the scan/rewrite
+ * caches around between requests. Requests arrive on a loopback socket, each is the command line that would otherwise
+ * have been passed to {@link NoxLauncher}. Whatever the request prints is sent back to the client followed by a
+ * trailer carrying the exit code. Requests are handled one at a time.
+ * <p>
+ * Any local user can reach a loopback port, so every request must carry a token that the daemon writes on startup
+ * to a file only its owner can read, {@code daemon-<port>.token} in the cache directory (or in {@code ~/.nox} when
+ * the daemon has no cache directory). The client reads it from the same place, so connect with the same
+ * {@code --cache-dir} the daemon was started with. Requests may only use the options for optimizing jars
+ * (not {@code --watch}, which would never return, nor {@code --daemon} or {@code --connect}) and must name inputs by
+ * absolute path, as the client does.
+ *
+ * @author Andy Clement
+ */
+public class NoxDaemon {
+
+	public final static int DEFAULT_PORT = 7389;
+
+	private final static String STOP = "--stop";
+
+	// Marks the final line of a response, the rest of the line is the exit code
+	private final static String EXIT_TRAILER = "\u0000exit=";
+
+	private final static Set<String> REQUEST_OPTIONS = new HashSet<>(
+			Arrays.asList("parallel", "cache-dir", "memory-budget", "jobs", "classpath"));
+
+	private final static int MAX_ARGUMENTS = 1024;
+
+	// How long a client has to send its request once connected
+	private final static int REQUEST_TIMEOUT = 30000;
+
+	// Roughly how many parsed dependency types to keep between requests
+	private final static int SHARED_TYPES_LIMIT = 250000;
+
+	private final int port;
+
+	private final File cacheDirectory;
+
+	private final SharedTypeCache sharedTypeCache = new SharedTypeCache(SHARED_TYPES_LIMIT);
+
+	/**
+	 * @param cacheDirectory where to keep the scan/rewrite caches, if null a temporary directory is used for the life
+	 * of the daemon
+	 */
+	public NoxDaemon(int port, File cacheDirectory) {
+		this.port = port;
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	public void serve() {
+		File daemonCacheDirectory = cacheDirectory;
+		File tokenFile = getTokenFile(cacheDirectory, port);
+		boolean tokenCreated = false;
+		try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+			if (daemonCacheDirectory == null) {
+				daemonCacheDirectory = Files.createTempDirectory("nox-cache").toFile();
+			}
+			byte[] token = createToken(tokenFile.toPath());
+			tokenCreated = true;
+			System.out.println("Nox daemon listening on " + serverSocket.getLocalSocketAddress() + " (token in "
+					+ tokenFile + ")");
+			boolean stopped = false;
+			while (!stopped) {
+				try (Socket socket = serverSocket.accept()) {
+					stopped = handle(socket, token, daemonCacheDirectory);
+				} catch (IOException ioe) {
+					System.out.println("Problem handling request: " + ioe);
+				}
+			}
+			System.out.println("Nox daemon stopped");
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Unable to run daemon on port " + port, ioe);
+		} finally {
+			// A token left by a daemon already using this port is not ours to remove
+			if (tokenCreated) {
+				FileUtils.deleteRecursivelyQuietly(tokenFile.toPath(), System.out);
+			}
+			if (cacheDirectory == null && daemonCacheDirectory != null) {
+				FileUtils.deleteRecursivelyQuietly(daemonCacheDirectory.toPath(), System.out);
+			}
+		}
+	}
+
+	/**
+	 * @return true if the request was to stop the daemon
+	 */
+	private boolean handle(Socket socket, byte[] token, File daemonCacheDirectory) throws IOException {
+		socket.setSoTimeout(REQUEST_TIMEOUT);
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		PrintStream response = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+		byte[] presentedToken = in.readUTF().getBytes(StandardCharsets.UTF_8);
+		int argumentCount = in.readInt();
+		if (argumentCount < 0 || argumentCount > MAX_ARGUMENTS) {
+			return refuse(response, "Too many arguments: " + argumentCount);
+		}
+		String[] args = new String[argumentCount];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = in.readUTF();
+		}
+		if (!MessageDigest.isEqual(token, presentedToken)) {
+			System.out.println("Refused request with an invalid token");
+			return refuse(response, "Invalid token, is the daemon using a different cache directory?");
+		}
+		if (Arrays.asList(args).contains(STOP)) {
+			response.println(EXIT_TRAILER + 0);
+			return true;
+		}
+		String problem = checkRequest(args);
+		if (problem != null) {
+			return refuse(response, problem);
+		}
+		long stime = System.currentTimeMillis();
+		int exitCode;
+		try {
+			exitCode = NoxLauncher.run(args, sharedTypeCache, daemonCacheDirectory, response);
+		} catch (RuntimeException e) {
+			e.printStackTrace(response);
+			exitCode = 1;
+		}
+		System.out.println("Handled request in " + (System.currentTimeMillis() - stime) + "ms (#"
+				+ sharedTypeCache.size() + " shared types from #" + sharedTypeCache.getDependencyCount()
+				+ " dependencies)");
+		response.println(EXIT_TRAILER + exitCode);
+		return false;
+	}
+
+	private static boolean refuse(PrintStream response, String reason) {
+		response.println(reason);
+		response.println(EXIT_TRAILER + 1);
+		return false;
+	}
+
+	/**
+	 * @return why the daemon will not run the request, or null if it will
+	 */
+	private static String checkRequest(String[] args) {
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int equals = arg.indexOf('=');
+				String option = arg.substring(2, (equals == -1) ? arg.length() : equals);
+				if (!REQUEST_OPTIONS.contains(option)) {
+					return "Option --" + option + " is not accepted by the daemon";
+				}
+			} else if (!new File(arg).isAbsolute()) {
+				return "Inputs must be absolute paths: " + arg;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param cacheDirectory the cache directory of the daemon, null if it has none
+	 */
+	private static File getTokenFile(File cacheDirectory, int port) {
+		File directory = (cacheDirectory != null) ? cacheDirectory
+				: new File(System.getProperty("user.home"), ".nox");
+		return new File(directory, "daemon-" + port + ".token");
+	}
+
+	/**
+	 * Write a new random token to a file only the current user can read.
+	 */
+	private static byte[] createToken(Path tokenFile) throws IOException {
+		byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		StringBuilder hex = new StringBuilder();
+		for (byte b : random) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		byte[] token = hex.toString().getBytes(StandardCharsets.UTF_8);
+		Files.createDirectories(tokenFile.getParent());
+		Files.deleteIfExists(tokenFile);
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			File file = Files.createFile(tokenFile).toFile();
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+		}
+		Files.write(tokenFile, token);
+		return token;
+	}
+
+	/**
+	 * Send a command line to a running daemon, copying what it prints to System.out.
+	 *
+	 * @param args the arguments as passed to {@link NoxLauncher}, {@code --connect} options are removed before sending
+	 * @return the exit code of the request
+	 */
+	public static int sendRequest(int port, String[] args) {
+		List<String> requestArgs = new ArrayList<>();
+		File cacheDirectory = null;
+		for (String arg : args) {
+			if (arg.equals("--connect") || arg.startsWith("--connect=")) {
+				continue;
+			}
+			// The daemon has its own working directory
+			if (arg.startsWith("--cache-dir=")) {
+				cacheDirectory = new File(arg.substring("--cache-dir=".length())).getAbsoluteFile();
+				arg = "--cache-dir=" + cacheDirectory;
+			} else if (!arg.startsWith("--")) {
+				arg = new File(arg).getAbsolutePath();
+			}
+			requestArgs.add(arg);
+		}
+		File tokenFile = getTokenFile(cacheDirectory, port);
+		String token;
+		try {
+			token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.UTF_8);
+		} catch (IOException ioe) {
+			System.out.println("Unable to read the nox daemon token from " + tokenFile
+					+ ", is a daemon running with the same --cache-dir? " + ioe);
+			return 1;
+		}
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			out.writeUTF(token);
+			out.writeInt(requestArgs.size());
+			for (String arg : requestArgs) {
+				out.writeUTF(arg);
+			}
+			out.flush();
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(EXIT_TRAILER)) {
+					return Integer.parseInt(line.substring(EXIT_TRAILER.length()));
+				}
+				System.out.println(line);
+			}
+			System.out.println("Nox daemon closed the connection without completing the request");
+			return 1;
+		} catch (IOException ioe) {
+			System.out.println("Unable to contact nox daemon on port " + port + ": " + ioe);
+			return 1;
+		}
+	}
+
+}
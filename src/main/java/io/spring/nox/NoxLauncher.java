@@ -0,0 +1,191 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.spring.nox.optimizer.BatchOptimizer;
+import io.spring.nox.optimizer.ExplodedJarWatcher;
+import io.spring.nox.optimizer.JarOptimizer;
+import io.spring.nox.type.ClasspathTypeSource;
+import io.spring.nox.type.SharedTypeCache;
+
+/**
+ * Plain command line entry point. Nothing nox does needs an application context (collectors are discovered via
+ * {@code SpringFactoriesLoader} which is just a read of {@code META-INF/spring.factories}), so this is what the
+ * packaged jar runs rather than starting up {@link NoxApplication}.
+ * <p>
+ * Options: {@code --parallel[=N]}, {@code --cache-dir=<dir>}, {@code --memory-budget=<megabytes>} (limits the
+ * memory used for type information, for very large jars) and {@code --jobs=N} followed by the jar (or exploded
+ * jar directory) to process or, for a batch, several jars/directories of jars. With a single jar
+ * {@code --classpath=<path>} resolves types from the classpath the jar was packaged from rather than from the jar,
+ * and for an exploded jar {@code --watch} keeps the output up to date as application classes change (see
+ * {@link ExplodedJarWatcher}, not together with {@code --classpath}). {@code --daemon[=port]} instead starts a {@link NoxDaemon} and
+ * {@code --connect[=port]} sends the rest of the arguments to one ({@code --connect --stop} shuts it down). Any other
+ * option is rejected with a usage message.
+ *
+ * @author Andy Clement
+ */
+public class NoxLauncher {
+
+	private final static Set<String> OPTIONS = new HashSet<>(Arrays.asList("parallel", "cache-dir", "memory-budget",
+			"jobs", "classpath", "watch", "daemon", "connect", "stop"));
+
+	private final static String USAGE = "Usage: nox [--parallel[=N]] [--cache-dir=<dir>] [--memory-budget=<MB>]"
+			+ " [--jobs=N] [--classpath=<path>] [--watch] <jar|exploded jar|directory of jars>...\n"
+			+ "       nox --daemon[=port] [--cache-dir=<dir>]\n"
+			+ "       nox --connect[=port] (<options and jars as above>|--stop)";
+
+	public static void main(String[] args) {
+		int exitCode = run(args);
+		if (exitCode != 0) {
+			System.exit(exitCode);
+		}
+	}
+
+	/**
+	 * @return the exit code, 0 if everything was optimized successfully
+	 */
+	public static int run(String[] args) {
+		return run(args, new SharedTypeCache(), null, System.out);
+	}
+
+	/**
+	 * Run with state that outlives this call, as the daemon does.
+	 * 
+	 * @param sharedTypeCache parsed dependency classes to reuse
+	 * @param defaultCacheDirectory the cache directory to use if the arguments do not specify one
+	 * @param out where to report progress
+	 * @return the exit code, 0 if everything was optimized successfully
+	 */
+	static int run(String[] args, SharedTypeCache sharedTypeCache, File defaultCacheDirectory, PrintStream out) {
+		List<String> nonOptionArgs = new ArrayList<>();
+		Map<String, String> options = parseOptions(args, nonOptionArgs);
+		for (String option : options.keySet()) {
+			if (!OPTIONS.contains(option)) {
+				out.println("Unknown option --" + option);
+				out.println(USAGE);
+				return 1;
+			}
+		}
+		if (options.containsKey("daemon")) {
+			String port = options.get("daemon");
+			File cacheDirectory = (options.get("cache-dir") == null) ? null : new File(options.get("cache-dir"));
+			new NoxDaemon((port == null) ? NoxDaemon.DEFAULT_PORT : Integer.parseInt(port), cacheDirectory).serve();
+			return 0;
+		}
+		if (options.containsKey("connect")) {
+			String port = options.get("connect");
+			return NoxDaemon.sendRequest((port == null) ? NoxDaemon.DEFAULT_PORT : Integer.parseInt(port), args);
+		}
+		if (nonOptionArgs.isEmpty()) {
+			out.println("Nox just needs the path to the jar to process (or several jars/directories of jars)");
+			out.println(USAGE);
+			return 1;
+		}
+		int parallelism = 1;
+		if (options.containsKey("parallel")) {
+			// --parallel uses all available processors, --parallel=N uses N threads
+			String threads = options.get("parallel");
+			parallelism = (threads == null) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads);
+		}
+		File cacheDirectory = (options.get("cache-dir") == null) ? defaultCacheDirectory
+				: new File(options.get("cache-dir"));
+		long memoryBudget = (options.get("memory-budget") == null) ? 0
+				: Long.parseLong(options.get("memory-budget")) * 1024 * 1024;
+		if (nonOptionArgs.size() == 1 && isBootJar(new File(nonOptionArgs.get(0)))) {
+			File inputJar = new File(nonOptionArgs.get(0));
+			if (options.containsKey("watch")) {
+				if (options.containsKey("classpath")) {
+					// The classpath is fixed but the watched application classes are not
+					out.println("--classpath cannot be used with --watch");
+					out.println(USAGE);
+					return 1;
+				}
+				ExplodedJarWatcher watcher = new ExplodedJarWatcher(inputJar);
+				watcher.setOutput(out);
+				watcher.setParallelism(parallelism);
+				watcher.setCacheDirectory(cacheDirectory);
+				watcher.setSharedTypeCache(sharedTypeCache);
+				watcher.setMemoryBudget(memoryBudget);
+				watcher.watch();
+				return 0;
+			}
+			JarOptimizer jarOptimizer = new JarOptimizer(inputJar);
+			jarOptimizer.setOutput(out);
+			jarOptimizer.setParallelism(parallelism);
+			jarOptimizer.setCacheDirectory(cacheDirectory);
+			jarOptimizer.setSharedTypeCache(sharedTypeCache);
+			jarOptimizer.setMemoryBudget(memoryBudget);
+			if (options.get("classpath") != null) {
+				List<File> classpath = new ArrayList<>();
+				for (String element : options.get("classpath").split(File.pathSeparator)) {
+					classpath.add(new File(element));
+				}
+				jarOptimizer.setTypeSource(new ClasspathTypeSource(classpath));
+			}
+			jarOptimizer.buildOptimizedVariant();
+			return 0;
+		}
+		// Batch mode, --jobs=N jars are processed at once (defaults to the available processors)
+		BatchOptimizer batchOptimizer = new BatchOptimizer(BatchOptimizer.collectJars(nonOptionArgs));
+		String jobs = options.get("jobs");
+		batchOptimizer.setJobs((jobs == null) ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(jobs));
+		batchOptimizer.setOutput(out);
+		batchOptimizer.setParallelism(parallelism);
+		batchOptimizer.setCacheDirectory(cacheDirectory);
+		batchOptimizer.setSharedTypeCache(sharedTypeCache);
+		batchOptimizer.setMemoryBudget(memoryBudget);
+		return batchOptimizer.optimizeAll() ? 0 : 1;
+	}
+
+	/**
+	 * @return true for a jar or an exploded boot jar, rather than a directory of jars
+	 */
+	private static boolean isBootJar(File file) {
+		return !file.isDirectory() || new File(file, "BOOT-INF").isDirectory();
+	}
+
+	/**
+	 * Split the arguments into options ({@code --name} or {@code --name=value}) and the rest.
+	 */
+	static Map<String, String> parseOptions(String[] args, List<String> nonOptionArgs) {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int equals = arg.indexOf('=');
+				if (equals == -1) {
+					options.put(arg.substring(2), null);
+				} else {
+					options.put(arg.substring(2, equals), arg.substring(equals + 1));
+				}
+			} else {
+				nonOptionArgs.add(arg);
+			}
+		}
+		return options;
+	}
+
+}
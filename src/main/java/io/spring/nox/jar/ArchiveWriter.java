@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.jar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Where the optimized boot jar is written, either a jar ({@link JarWriter}) or an exploded directory
+ * ({@link DirectoryWriter}).
+ *
+ * @author Andy Clement
+ */
+public interface ArchiveWriter extends Closeable {
+
+	/**
+	 * Copy an unmodified entry across.
+	 */
+	void writeRaw(MappedJar jar, MappedJarEntry entry) throws IOException;
+
+	/**
+	 * Write an entry with new content.
+	 */
+	void writeEntry(ZipEntry entry, byte[] bytes) throws IOException;
+
+	/**
+	 * Write an entry whose content is held in a {@link SpillBuffer}.
+	 */
+	void writeStored(ZipEntry entry, SpillBuffer content) throws IOException;
+
+	/**
+	 * Write an entry whose CRC and size are already known, copying its content from the stream.
+	 */
+	void writeStored(ZipEntry entry, long crc, long size, InputStream content) throws IOException;
+
+	/**
+	 * Complete the output once every entry has been written. Closing without calling this first abandons the output.
+	 */
+	void finish() throws IOException;
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.jar;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes the entries of a boot jar out as an exploded directory. Unmodified entries of an {@link ExplodedJar} are
+ * hard linked into the output where the file system allows it (copied otherwise), so only what was actually rewritten
+ * or generated costs a write. Because of the links, files in the output must be replaced rather than modified in
+ * place or the input changes too.
+ *
+ * @author Andy Clement
+ */
+public class DirectoryWriter implements ArchiveWriter {
+
+	private final Path root;
+
+	private final boolean update;
+
+	private final byte[] copyBuffer = new byte[65536];
+
+	private boolean linksSupported = true;
+
+	private int linked;
+
+	private int written;
+
+	/**
+	 * @param directory the output directory
+	 * @param update true to replace entries in an existing output directory, false to create the directory (which must
+	 * not exist yet)
+	 */
+	public DirectoryWriter(File directory, boolean update) throws IOException {
+		this.root = directory.toPath();
+		this.update = update;
+		if (!update) {
+			Files.createDirectories(root.getParent());
+			Files.createDirectory(root);
+		}
+	}
+
+	@Override
+	public void writeRaw(MappedJar jar, MappedJarEntry entry) throws IOException {
+		if (entry.isDirectory()) {
+			Files.createDirectories(resolve(entry));
+			return;
+		}
+		if (!(jar instanceof ExplodedJar)) {
+			writeEntry(entry, jar.getBytes(entry));
+			return;
+		}
+		Path source = ((ExplodedJar) jar).getFile(entry).toPath();
+		Path target = createParent(entry);
+		if (linksSupported) {
+			try {
+				Files.createLink(target, source);
+				linked++;
+				return;
+			} catch (UnsupportedOperationException | FileSystemException e) {
+				// Different file systems or no support for links, copy this and everything else
+				linksSupported = false;
+			}
+		}
+		Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+		written++;
+	}
+
+	@Override
+	public void writeEntry(ZipEntry entry, byte[] bytes) throws IOException {
+		Path target = createParent(entry);
+		Files.write(target, bytes);
+		setTime(target, entry);
+		written++;
+	}
+
+	@Override
+	public void writeStored(ZipEntry entry, SpillBuffer content) throws IOException {
+		Path target = createParent(entry);
+		try (OutputStream out = new FileOutputStream(target.toFile())) {
+			content.writeTo(out);
+		}
+		setTime(target, entry);
+		written++;
+	}
+
+	@Override
+	public void writeStored(ZipEntry entry, long crc, long size, InputStream content) throws IOException {
+		Path target = createParent(entry);
+		long copied = 0;
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target.toFile()), 65536)) {
+			int count;
+			while ((count = content.read(copyBuffer)) != -1) {
+				out.write(copyBuffer, 0, count);
+				copied += count;
+			}
+		}
+		if (copied != size) {
+			throw new IOException("Expected " + size + " bytes for " + entry.getName() + " but copied " + copied);
+		}
+		setTime(target, entry);
+		written++;
+	}
+
+	/**
+	 * Remove an entry (or a whole directory of them) that is no longer in the input.
+	 */
+	public void delete(String entryName) throws IOException {
+		FileUtils.deleteRecursively(resolve(new ZipEntry(entryName)));
+	}
+
+	/**
+	 * @return how many files were hard linked rather than written
+	 */
+	public int getLinkedCount() {
+		return linked;
+	}
+
+	/**
+	 * @return how many files were written (or copied)
+	 */
+	public int getWrittenCount() {
+		return written;
+	}
+
+	@Override
+	public void finish() {
+		// Every entry is complete as soon as it is written
+	}
+
+	@Override
+	public void close() {
+		// Nothing held open between entries
+	}
+
+	private Path resolve(ZipEntry entry) throws IOException {
+		Path target = root.resolve(entry.getName()).normalize();
+		if (!target.startsWith(root)) {
+			throw new IOException("Entry " + entry.getName() + " would be written outside of " + root);
+		}
+		return target;
+	}
+
+	private Path createParent(ZipEntry entry) throws IOException {
+		Path target = resolve(entry);
+		Files.createDirectories(target.getParent());
+		if (update) {
+			// Never write through to the input via an earlier link
+			Files.deleteIfExists(target);
+		}
+		return target;
+	}
+
+	private void setTime(Path target, ZipEntry entry) {
+		if (entry.getTime() != -1) {
+			target.toFile().setLastModified(entry.getTime());
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.jar;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * An exploded boot jar (a directory laid out as the jar would be, {@code BOOT-INF/classes}, {@code BOOT-INF/lib} and
+ * so on) presented as a {@link MappedJar}. Each directory and file is an entry, files are STORED and read when asked
+ * for (their CRC is only known once the data has been read). Nested jars are real files so are mapped in the usual
+ * way. With no central directory to hash, the content key covers the name, size and last modified time of every
+ * entry. An exploded jar is normally written back out with a {@link DirectoryWriter}, which links rather than copies
+ * the unmodified files.
+ *
+ * @author Andy Clement
+ */
+public class ExplodedJar extends MappedJar {
+
+	private final Path root;
+
+	private final Map<String, MappedJar> nestedJars = new ConcurrentHashMap<>();
+
+	private final String contentKey;
+
+	private ExplodedJar(File directory) throws IOException {
+		super(directory.getPath(), directory);
+		this.root = directory.toPath();
+		List<Path> paths;
+		try (Stream<Path> walk = Files.walk(root)) {
+			paths = walk.filter(path -> !path.equals(root)).collect(Collectors.toList());
+		}
+		// Sorted so entries come back in the same order every time, as they would from a jar
+		Map<String, File> files = new TreeMap<>();
+		for (Path path : paths) {
+			String entryName = toEntryName(path);
+			files.put(Files.isDirectory(path) ? entryName + "/" : entryName, path.toFile());
+		}
+		MessageDigest digest = createDigest();
+		for (Map.Entry<String, File> file : files.entrySet()) {
+			MappedJarEntry entry = new MappedJarEntry(file.getKey(), -1);
+			long size = entry.isDirectory() ? 0 : file.getValue().length();
+			long time = file.getValue().lastModified();
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(size);
+			entry.setCompressedSize(size);
+			entry.setTime(time);
+			entry.setDosTime(JarWriter.toDosTime(time));
+			if (entry.isDirectory()) {
+				entry.setCrc(0);
+			}
+			addEntry(entry);
+			digest.update(file.getKey().getBytes(StandardCharsets.UTF_8));
+			digest.update(ByteBuffer.allocate(17).put((byte) 0).putLong(size).putLong(time).array());
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		this.contentKey = hex.toString();
+	}
+
+	public static ExplodedJar open(File directory) throws IOException {
+		if (!directory.isDirectory()) {
+			throw new IOException("Not a directory: " + directory);
+		}
+		return new ExplodedJar(directory);
+	}
+
+	/**
+	 * @return the file holding the entry
+	 */
+	public File getFile(MappedJarEntry entry) {
+		return getFile(entry.getName());
+	}
+
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException("Unable to compute content keys", nsae);
+		}
+	}
+
+	private File getFile(String entryName) {
+		return root.resolve(entryName).toFile();
+	}
+
+	private String toEntryName(Path path) {
+		return root.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+	@Override
+	public MappedJar getNestedJar(MappedJarEntry entry) {
+		return nestedJars.computeIfAbsent(entry.getName(), n -> {
+			try {
+				return MappedJar.open(getFile(entry));
+			} catch (IOException ioe) {
+				throw new IllegalStateException("Unexpected problem opening nested jar " + entry.getName(), ioe);
+			}
+		});
+	}
+
+	/**
+	 * @return the contents of the file, which is the stored form of an exploded entry. The entry CRC is set if it was
+	 * not yet known
+	 */
+	@Override
+	public ByteBuffer getRawData(MappedJarEntry entry) throws IOException {
+		byte[] bytes = getBytes(entry);
+		if (entry.getCrc() == -1) {
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			entry.setCrc(crc.getValue());
+		}
+		return ByteBuffer.wrap(bytes);
+	}
+
+	/**
+	 * @return a key identifying the contents of this directory, the hex SHA-256 of the name, size and last modified time
+	 * of every entry
+	 */
+	@Override
+	public String getContentKey() {
+		return contentKey;
+	}
+
+	@Override
+	public byte[] getBytes(MappedJarEntry entry) throws IOException {
+		byte[] retainedBytes = entry.getRetainedBytes();
+		if (retainedBytes != null) {
+			return retainedBytes;
+		}
+		if (entry.isDirectory()) {
+			return new byte[0];
+		}
+		return Files.readAllBytes(getFile(entry).toPath());
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		nestedJars.values().forEach(MappedJar::close);
+		nestedJars.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "ExplodedJar:" + getName();
+	}
+
+}
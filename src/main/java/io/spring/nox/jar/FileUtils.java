@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.jar;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * File system helpers shared by the writers and the batch, daemon and watch modes.
+ *
+ * @author Andy Clement
+ */
+public final class FileUtils {
+
+	private FileUtils() {
+	}
+
+	/**
+	 * Delete a file, or a directory and everything below it. Symbolic links are deleted rather than followed. Nothing
+	 * happens if the path does not exist.
+	 *
+	 * @throws IOException if anything could not be deleted
+	 */
+	public static void deleteRecursively(Path path) throws IOException {
+		if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				if (exc != null) {
+					throw exc;
+				}
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Delete a temporary file or directory tree, reporting rather than failing if that is not possible.
+	 *
+	 * @param out where to report anything that could not be deleted
+	 */
+	public static void deleteRecursivelyQuietly(Path path, PrintStream out) {
+		try {
+			deleteRecursively(path);
+		} catch (IOException ioe) {
+			out.println("Unable to delete " + path + ": " + ioe);
+		}
+	}
+
+}
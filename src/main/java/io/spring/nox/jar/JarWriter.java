@@ -0,0 +1,421 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.jar;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Minimal jar writer that, unlike {@link java.util.zip.ZipOutputStream}, can copy an entry from a {@link MappedJar}
+ * exactly as it is stored: the compressed bytes go straight across along with the original CRC and sizes, nothing is
+ * inflated or deflated. Only entries whose content has actually changed are compressed here, so the time taken to
+ * write a jar follows what was rewritten rather than the size of the jar.
+ * <p>
+ * Sizes and CRCs are always known before an entry is written, so local headers carry them directly and no data
+ * descriptors are used. Zip64 records are only written when they are needed: a zip64 extra field for an entry whose
+ * sizes or offset do not fit in 32 bits, and the zip64 end of central directory records when there are more than
+ * 65535 entries or the central directory itself is out of 32 bit range.
+ * <p>
+ * The central directory is only written by {@link #finish()}. Closing a writer that was never finished (because the
+ * caller is unwinding from a failure) leaves the output without one, so a half written jar can never pass for a
+ * complete one.
+ *
+ * @author Andy Clement
+ */
+public class JarWriter implements ArchiveWriter {
+
+	private final static int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private final static int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private final static int END_HEADER_SIGNATURE = 0x06054b50;
+	private final static int ZIP64_END_HEADER_SIGNATURE = 0x06064b50;
+	private final static int ZIP64_END_LOCATOR_SIGNATURE = 0x07064b50;
+	private final static int ZIP64_EXTRA_ID = 0x0001;
+	private final static int ZIP64_VERSION = 45;
+	private final static int FLAG_UTF8 = 0x0800;
+	private final static int MAX_ENTRIES = 0xFFFF;
+	// Anything from this value up is stored as this value, with the real one in a zip64 record
+	private final static long MAX_32 = 0xFFFFFFFFL;
+
+	private final CountingOutputStream out;
+
+	private final List<CentralEntry> centralEntries = new ArrayList<>();
+
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+	private final byte[] copyBuffer = new byte[65536];
+
+	private boolean finished;
+
+	public JarWriter(OutputStream out) {
+		this.out = new CountingOutputStream(new BufferedOutputStream(out, 65536));
+	}
+
+	/**
+	 * Copy an unmodified entry across from another jar without decoding it.
+	 */
+	public void writeRaw(MappedJar jar, MappedJarEntry entry) throws IOException {
+		ByteBuffer data = jar.getRawData(entry);
+		CentralEntry ce = new CentralEntry(entry, entry.getMethod(), entry.getDosTime(), entry.getCrc(),
+				entry.getCompressedSize(), entry.getSize());
+		writeLocalHeader(ce);
+		while (data.hasRemaining()) {
+			int count = Math.min(copyBuffer.length, data.remaining());
+			data.get(copyBuffer, 0, count);
+			out.write(copyBuffer, 0, count);
+		}
+	}
+
+	/**
+	 * Write an entry with new content. The method of the supplied entry is honoured (DEFLATED if unset), the CRC and
+	 * sizes are computed from the bytes. If the entry came from a {@link MappedJar} its file attributes are kept.
+	 */
+	public void writeEntry(ZipEntry entry, byte[] bytes) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		long dosTime = (entry instanceof MappedJarEntry) ? ((MappedJarEntry) entry).getDosTime()
+				: toDosTime(entry.getTime());
+		if (entry.getMethod() == ZipEntry.STORED) {
+			CentralEntry ce = new CentralEntry(entry, ZipEntry.STORED, dosTime, crc.getValue(),
+					bytes.length, bytes.length);
+			writeLocalHeader(ce);
+			out.write(bytes);
+		} else {
+			byte[] compressed = deflate(bytes);
+			CentralEntry ce = new CentralEntry(entry, ZipEntry.DEFLATED, dosTime, crc.getValue(),
+					compressed.length, bytes.length);
+			writeLocalHeader(ce);
+			out.write(compressed);
+		}
+	}
+
+	/**
+	 * Write a STORED entry whose content is held in a {@link SpillBuffer}, using the CRC and size it computed as the
+	 * content was written.
+	 */
+	public void writeStored(ZipEntry entry, SpillBuffer content) throws IOException {
+		long dosTime = (entry instanceof MappedJarEntry) ? ((MappedJarEntry) entry).getDosTime()
+				: toDosTime(entry.getTime());
+		CentralEntry ce = new CentralEntry(entry, ZipEntry.STORED, dosTime, content.getCrc(), content.getSize(),
+				content.getSize());
+		writeLocalHeader(ce);
+		content.writeTo(out);
+	}
+
+	/**
+	 * Write a STORED entry whose CRC and size are already known, copying its content from the stream.
+	 */
+	public void writeStored(ZipEntry entry, long crc, long size, InputStream content) throws IOException {
+		long dosTime = (entry instanceof MappedJarEntry) ? ((MappedJarEntry) entry).getDosTime()
+				: toDosTime(entry.getTime());
+		CentralEntry ce = new CentralEntry(entry, ZipEntry.STORED, dosTime, crc, size, size);
+		writeLocalHeader(ce);
+		long copied = 0;
+		int count;
+		while ((count = content.read(copyBuffer)) != -1) {
+			out.write(copyBuffer, 0, count);
+			copied += count;
+		}
+		if (copied != size) {
+			throw new IOException("Expected " + size + " bytes for " + entry.getName() + " but copied " + copied);
+		}
+	}
+
+	/**
+	 * Write the central directory and flush, without closing the underlying stream.
+	 */
+	@Override
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		finished = true;
+		try {
+			long centralDirectoryOffset = out.getCount();
+			for (CentralEntry ce : centralEntries) {
+				// Only the values that overflow go in the zip64 extra field, in this order
+				ByteArrayOutputStream zip64Values = new ByteArrayOutputStream();
+				if (ce.size >= MAX_32) {
+					writeLong(zip64Values, ce.size);
+				}
+				if (ce.compressedSize >= MAX_32) {
+					writeLong(zip64Values, ce.compressedSize);
+				}
+				if (ce.localHeaderOffset >= MAX_32) {
+					writeLong(zip64Values, ce.localHeaderOffset);
+				}
+				byte[] extra = withZip64Extra(ce.extra, zip64Values.toByteArray());
+				writeInt(CENTRAL_HEADER_SIGNATURE);
+				writeShort(ce.versionMadeBy);
+				writeShort((extra == ce.extra) ? versionNeeded(ce.method) : ZIP64_VERSION);
+				writeShort(FLAG_UTF8);
+				writeShort(ce.method);
+				writeInt((int) ce.dosTime);
+				writeInt((int) ce.crc);
+				writeInt((int) Math.min(ce.compressedSize, MAX_32));
+				writeInt((int) Math.min(ce.size, MAX_32));
+				writeShort(ce.name.length);
+				writeShort(extra.length);
+				writeShort(ce.comment.length);
+				writeShort(0); // disk number
+				writeShort(0); // internal attributes
+				writeInt((int) ce.externalAttributes);
+				writeInt((int) Math.min(ce.localHeaderOffset, MAX_32));
+				out.write(ce.name);
+				out.write(extra);
+				out.write(ce.comment);
+			}
+			long centralDirectorySize = out.getCount() - centralDirectoryOffset;
+			int entryCount = centralEntries.size();
+			if (entryCount > MAX_ENTRIES || centralDirectorySize >= MAX_32 || centralDirectoryOffset >= MAX_32) {
+				long zip64EndHeaderOffset = out.getCount();
+				writeInt(ZIP64_END_HEADER_SIGNATURE);
+				writeLong(out, 44); // size of the rest of this record
+				writeShort(ZIP64_VERSION);
+				writeShort(ZIP64_VERSION);
+				writeInt(0); // disk number
+				writeInt(0); // disk with the central directory
+				writeLong(out, entryCount);
+				writeLong(out, entryCount);
+				writeLong(out, centralDirectorySize);
+				writeLong(out, centralDirectoryOffset);
+				writeInt(ZIP64_END_LOCATOR_SIGNATURE);
+				writeInt(0); // disk with the zip64 end of central directory
+				writeLong(out, zip64EndHeaderOffset);
+				writeInt(1); // total disks
+			}
+			writeInt(END_HEADER_SIGNATURE);
+			writeShort(0);
+			writeShort(0);
+			writeShort(Math.min(entryCount, MAX_ENTRIES));
+			writeShort(Math.min(entryCount, MAX_ENTRIES));
+			writeInt((int) Math.min(centralDirectorySize, MAX_32));
+			writeInt((int) Math.min(centralDirectoryOffset, MAX_32));
+			writeShort(0); // comment length
+			out.flush();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Close the underlying stream. Unless {@link #finish()} was called first the output is left incomplete.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			out.close();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private void writeLocalHeader(CentralEntry ce) throws IOException {
+		ce.localHeaderOffset = out.getCount();
+		// A local zip64 extra field always holds both sizes
+		boolean zip64 = ce.size >= MAX_32 || ce.compressedSize >= MAX_32;
+		byte[] extra = ce.extra;
+		if (zip64) {
+			ByteArrayOutputStream zip64Values = new ByteArrayOutputStream();
+			writeLong(zip64Values, ce.size);
+			writeLong(zip64Values, ce.compressedSize);
+			extra = withZip64Extra(ce.extra, zip64Values.toByteArray());
+		}
+		writeInt(LOCAL_HEADER_SIGNATURE);
+		writeShort(zip64 ? ZIP64_VERSION : versionNeeded(ce.method));
+		writeShort(FLAG_UTF8);
+		writeShort(ce.method);
+		writeInt((int) ce.dosTime);
+		writeInt((int) ce.crc);
+		writeInt((int) (zip64 ? MAX_32 : ce.compressedSize));
+		writeInt((int) (zip64 ? MAX_32 : ce.size));
+		writeShort(ce.name.length);
+		writeShort(extra.length);
+		out.write(ce.name);
+		out.write(extra);
+		centralEntries.add(ce);
+	}
+
+	/**
+	 * @return the extra field with a zip64 extra field holding the given values in front, or the extra field as it is
+	 * if there are no values
+	 */
+	private static byte[] withZip64Extra(byte[] extra, byte[] zip64Values) {
+		if (zip64Values.length == 0) {
+			return extra;
+		}
+		byte[] result = new byte[4 + zip64Values.length + extra.length];
+		result[0] = (byte) ZIP64_EXTRA_ID;
+		result[1] = (byte) (ZIP64_EXTRA_ID >>> 8);
+		result[2] = (byte) zip64Values.length;
+		result[3] = (byte) (zip64Values.length >>> 8);
+		System.arraycopy(zip64Values, 0, result, 4, zip64Values.length);
+		System.arraycopy(extra, 0, result, 4 + zip64Values.length, extra.length);
+		return result;
+	}
+
+	/**
+	 * @return the extra field without any zip64 extra field, whose values are only correct for where the entry came
+	 * from
+	 */
+	private static byte[] withoutZip64Extra(byte[] extra) {
+		ByteArrayOutputStream result = new ByteArrayOutputStream(extra.length);
+		int index = 0;
+		while (index + 4 <= extra.length) {
+			int id = (extra[index] & 0xFF) | (extra[index + 1] & 0xFF) << 8;
+			int length = (extra[index + 2] & 0xFF) | (extra[index + 3] & 0xFF) << 8;
+			int end = Math.min(extra.length, index + 4 + length);
+			if (id != ZIP64_EXTRA_ID) {
+				result.write(extra, index, end - index);
+			}
+			index = end;
+		}
+		// Keep any trailing bytes too short to be a field as they were
+		result.write(extra, index, extra.length - index);
+		return (result.size() == extra.length) ? extra : result.toByteArray();
+	}
+
+	private byte[] deflate(byte[] bytes) {
+		deflater.reset();
+		deflater.setInput(bytes);
+		deflater.finish();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(64, bytes.length / 2));
+		while (!deflater.finished()) {
+			int count = deflater.deflate(copyBuffer);
+			baos.write(copyBuffer, 0, count);
+		}
+		return baos.toByteArray();
+	}
+
+	private static int versionNeeded(int method) {
+		return (method == ZipEntry.STORED) ? 10 : 20;
+	}
+
+	static long toDosTime(long time) {
+		if (time == -1) {
+			time = System.currentTimeMillis();
+		}
+		LocalDateTime ldt = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+		if (ldt.getYear() < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return ((ldt.getYear() - 1980) << 25 | ldt.getMonthValue() << 21 | ldt.getDayOfMonth() << 16
+				| ldt.getHour() << 11 | ldt.getMinute() << 5 | ldt.getSecond() >> 1) & 0xFFFFFFFFL;
+	}
+
+	private void writeShort(int v) throws IOException {
+		out.write(v & 0xFF);
+		out.write((v >>> 8) & 0xFF);
+	}
+
+	private void writeInt(int v) throws IOException {
+		writeShort(v & 0xFFFF);
+		writeShort((v >>> 16) & 0xFFFF);
+	}
+
+	private static void writeLong(OutputStream stream, long v) throws IOException {
+		for (int i = 0; i < 8; i++) {
+			stream.write((int) (v >>> (i * 8)) & 0xFF);
+		}
+	}
+
+	/**
+	 * What needs remembering about an entry to write its central directory record.
+	 */
+	private static class CentralEntry {
+		final byte[] name;
+		final byte[] extra;
+		final byte[] comment;
+		final int method;
+		final long dosTime;
+		final long crc;
+		final long compressedSize;
+		final long size;
+		final int versionMadeBy;
+		final long externalAttributes;
+		long localHeaderOffset;
+
+		CentralEntry(ZipEntry entry, int method, long dosTime, long crc, long compressedSize, long size) {
+			this.name = entry.getName().getBytes(StandardCharsets.UTF_8);
+			this.extra = (entry.getExtra() == null) ? new byte[0] : withoutZip64Extra(entry.getExtra());
+			this.comment = (entry.getComment() == null) ? new byte[0]
+					: entry.getComment().getBytes(StandardCharsets.UTF_8);
+			this.method = method;
+			this.dosTime = dosTime;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			if (entry instanceof MappedJarEntry) {
+				this.versionMadeBy = ((MappedJarEntry) entry).getVersionMadeBy();
+				this.externalAttributes = ((MappedJarEntry) entry).getExternalAttributes();
+			} else {
+				this.versionMadeBy = 20;
+				this.externalAttributes = 0;
+			}
+		}
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+
+		private final OutputStream delegate;
+
+		private long count;
+
+		CountingOutputStream(OutputStream delegate) {
+			this.delegate = delegate;
+		}
+
+		long getCount() {
+			return count;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			delegate.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			delegate.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			delegate.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			delegate.close();
+		}
+	}
+
+}
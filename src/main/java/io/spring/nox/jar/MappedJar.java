@@ -0,0 +1,438 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.jar;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Read only view of a jar held in a {@link ByteBuffer}. The top level boot jar is memory mapped once and its central
+ * directory parsed straight out of the mapping. Nested jars are exposed as further {@link MappedJar} instances: a
+ * STORED nested jar (the normal Boot layout) is a zero-copy slice of its parent, anything else is inflated once.
+ * <p>
+ * All reads use absolute positions or duplicates of the underlying buffer so a single instance can be shared between
+ * the type system and the optimizer (and between threads). Decoded bytes for an entry that will be needed again (for
+ * example a class that is going to be rewritten) can be {@link #retain(MappedJarEntry, byte[]) retained} so later
+ * readers do not inflate it a second time.
+ * <p>
+ * Zip64 end records and extra fields are understood, so a jar with more than 65535 entries reads correctly (the
+ * mapping still limits it to 2GB). A central directory that does not match what the end record declares is an error
+ * rather than being read as far as it goes.
+ *
+ * @author Andy Clement
+ */
+public class MappedJar implements Closeable {
+
+	private final static int LOCAL_HEADER_SIZE = 30;
+	private final static int CENTRAL_HEADER_SIZE = 46;
+	private final static int END_HEADER_SIZE = 22;
+	private final static int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private final static int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private final static int END_HEADER_SIGNATURE = 0x06054b50;
+	private final static int ZIP64_END_LOCATOR_SIZE = 20;
+	private final static int ZIP64_END_LOCATOR_SIGNATURE = 0x07064b50;
+	private final static int ZIP64_END_HEADER_SIGNATURE = 0x06064b50;
+	private final static int ZIP64_EXTRA_ID = 0x0001;
+	private final static int MAX_COMMENT_SIZE = 0xFFFF;
+
+	private final String name;
+
+	private final File file;
+
+	private ByteBuffer buffer;
+
+	private int centralDirectoryOffset;
+
+	private int centralDirectorySize;
+
+	private volatile String contentKey;
+
+	private final List<MappedJarEntry> entries = new ArrayList<>();
+
+	private final Map<String, MappedJarEntry> entriesByName = new HashMap<>();
+
+	private final Map<String, MappedJar> nestedJars = new ConcurrentHashMap<>();
+
+	private MappedJar(String name, File file, ByteBuffer buffer) throws IOException {
+		this.name = name;
+		this.file = file;
+		this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+		readCentralDirectory();
+	}
+
+	/**
+	 * For a subclass that supplies its entries itself rather than from a central directory, see {@link ExplodedJar}.
+	 */
+	MappedJar(String name, File file) {
+		this.name = name;
+		this.file = file;
+	}
+
+	/**
+	 * Memory map the specified jar and parse its central directory.
+	 */
+	public static MappedJar open(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Jar is too large to map: " + file + " (" + size + " bytes)");
+			}
+			// The mapping stays valid once the channel is closed
+			return new MappedJar(file.getPath(), file, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the file backing this jar, or null if this is a nested jar
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the entries in central directory order
+	 */
+	public List<MappedJarEntry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	public MappedJarEntry getEntry(String entryName) {
+		return entriesByName.get(entryName);
+	}
+
+	/**
+	 * Access a jar nested inside this one. The result is cached so repeated calls are cheap.
+	 */
+	public MappedJar getNestedJar(MappedJarEntry entry) {
+		return nestedJars.computeIfAbsent(entry.getName(), n -> {
+			try {
+				ByteBuffer data = (entry.getMethod() == ZipEntry.STORED) ? getRawData(entry)
+						: ByteBuffer.wrap(getBytes(entry));
+				return new MappedJar(name + "!/" + entry.getName(), null, data);
+			} catch (IOException ioe) {
+				throw new IllegalStateException("Unexpected problem reading nested jar " + entry.getName(), ioe);
+			}
+		});
+	}
+
+	/**
+	 * @return a slice covering the (possibly compressed) data for the entry, exactly as it is stored in the jar
+	 */
+	public ByteBuffer getRawData(MappedJarEntry entry) throws IOException {
+		int offset = entry.getLocalHeaderOffset();
+		if (offset < 0 || offset > buffer.limit() - LOCAL_HEADER_SIZE
+				|| buffer.getInt(offset) != LOCAL_HEADER_SIGNATURE) {
+			throw new IOException("Bad local header for " + entry.getName() + " in " + name);
+		}
+		long dataOffset = (long) offset + LOCAL_HEADER_SIZE + getUnsignedShort(offset + 26)
+				+ getUnsignedShort(offset + 28);
+		// The central directory is only trusted as far as the end of the jar
+		if (entry.getCompressedSize() < 0 || dataOffset + entry.getCompressedSize() > buffer.limit()) {
+			throw new IOException("Data for " + entry.getName() + " runs past the end of " + name);
+		}
+		ByteBuffer data = buffer.duplicate();
+		data.limit((int) (dataOffset + entry.getCompressedSize()));
+		data.position((int) dataOffset);
+		return data.slice();
+	}
+
+	/**
+	 * @return a slice covering the central directory. It holds the name, CRC and sizes of every entry so makes a cheap
+	 * fingerprint of the jar contents
+	 */
+	private ByteBuffer getCentralDirectory() {
+		ByteBuffer data = buffer.duplicate();
+		data.limit(centralDirectoryOffset + centralDirectorySize);
+		data.position(centralDirectoryOffset);
+		return data.slice();
+	}
+
+	/**
+	 * @return a key identifying the contents of this jar, the hex SHA-256 of its central directory (so covering the name,
+	 * CRC and size of every entry) which is far cheaper than hashing all the data
+	 */
+	public String getContentKey() {
+		String key = contentKey;
+		if (key == null) {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				digest.update(getCentralDirectory());
+				StringBuilder hex = new StringBuilder();
+				for (byte b : digest.digest()) {
+					hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+				}
+				key = hex.toString();
+				contentKey = key;
+			} catch (NoSuchAlgorithmException nsae) {
+				throw new IllegalStateException("Unable to compute content key for " + name, nsae);
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * @return the uncompressed contents of the entry (callers must not modify the result, it may be retained)
+	 */
+	public byte[] getBytes(MappedJarEntry entry) throws IOException {
+		byte[] retainedBytes = entry.getRetainedBytes();
+		if (retainedBytes != null) {
+			return retainedBytes;
+		}
+		ByteBuffer data = getRawData(entry);
+		if (entry.getMethod() == ZipEntry.STORED) {
+			byte[] bytes = new byte[data.remaining()];
+			data.get(bytes);
+			return bytes;
+		}
+		return inflate(data, (int) entry.getSize(), entry.getName());
+	}
+
+	public InputStream getInputStream(MappedJarEntry entry) throws IOException {
+		return new ByteArrayInputStream(getBytes(entry));
+	}
+
+	/**
+	 * Keep the decoded bytes for an entry so that subsequent {@link #getBytes(MappedJarEntry)} calls return them
+	 * rather than decoding the entry again.
+	 */
+	public void retain(MappedJarEntry entry, byte[] bytes) {
+		entry.setRetainedBytes(bytes);
+	}
+
+	public void release(MappedJarEntry entry) {
+		entry.setRetainedBytes(null);
+	}
+
+	@Override
+	public void close() {
+		// Nothing to release explicitly, the mapping goes when the buffer is collected
+		for (MappedJarEntry entry : entries) {
+			entry.setRetainedBytes(null);
+		}
+		nestedJars.values().forEach(MappedJar::close);
+		nestedJars.clear();
+		buffer = null;
+	}
+
+	@Override
+	public String toString() {
+		return "MappedJar:" + name;
+	}
+
+	private void readCentralDirectory() throws IOException {
+		int endHeader = findEndHeader();
+		long entryCount = getUnsignedShort(endHeader + 10);
+		long size = getUnsignedInt(endHeader + 12);
+		long offset = getUnsignedInt(endHeader + 16);
+		int zip64Locator = endHeader - ZIP64_END_LOCATOR_SIZE;
+		if (zip64Locator >= 0 && buffer.getInt(zip64Locator) == ZIP64_END_LOCATOR_SIGNATURE) {
+			int zip64EndHeader = toOffset(buffer.getLong(zip64Locator + 8), "zip64 end of central directory");
+			if (buffer.getInt(zip64EndHeader) != ZIP64_END_HEADER_SIGNATURE) {
+				throw new IOException("Bad zip64 end of central directory in " + name);
+			}
+			entryCount = buffer.getLong(zip64EndHeader + 32);
+			size = buffer.getLong(zip64EndHeader + 40);
+			offset = buffer.getLong(zip64EndHeader + 48);
+		} else if (entryCount == 0xFFFF || size == 0xFFFFFFFFL || offset == 0xFFFFFFFFL) {
+			throw new IOException("End of central directory in " + name
+					+ " holds zip64 markers but there is no zip64 end of central directory");
+		}
+		centralDirectoryOffset = toOffset(offset, "central directory");
+		centralDirectorySize = toOffset(size, "central directory size");
+		int end = toOffset(offset + size, "end of central directory");
+		int pos = centralDirectoryOffset;
+		for (long i = 0; i < entryCount; i++) {
+			if (pos + CENTRAL_HEADER_SIZE > end || buffer.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+				throw new IOException("Bad central directory header at entry #" + i + " in " + name);
+			}
+			int nameLength = getUnsignedShort(pos + 28);
+			int extraLength = getUnsignedShort(pos + 30);
+			int commentLength = getUnsignedShort(pos + 32);
+			String entryName = getString(pos + CENTRAL_HEADER_SIZE, nameLength);
+			byte[] extra = (extraLength == 0) ? null : getBytes(pos + CENTRAL_HEADER_SIZE + nameLength, extraLength);
+			long compressedSize = getUnsignedInt(pos + 20);
+			long uncompressedSize = getUnsignedInt(pos + 24);
+			long localHeaderOffset = getUnsignedInt(pos + 42);
+			if (compressedSize == 0xFFFFFFFFL || uncompressedSize == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) {
+				// The real values are in the zip64 extra field, in this order, but only those that overflowed
+				ByteBuffer zip64Extra = findZip64Extra(extra, entryName);
+				try {
+					if (uncompressedSize == 0xFFFFFFFFL) {
+						uncompressedSize = zip64Extra.getLong();
+					}
+					if (compressedSize == 0xFFFFFFFFL) {
+						compressedSize = zip64Extra.getLong();
+					}
+					if (localHeaderOffset == 0xFFFFFFFFL) {
+						localHeaderOffset = zip64Extra.getLong();
+					}
+				} catch (BufferUnderflowException bue) {
+					throw new IOException("Truncated zip64 extra field for " + entryName + " in " + name);
+				}
+			}
+			MappedJarEntry entry = new MappedJarEntry(entryName, toOffset(localHeaderOffset, entryName));
+			entry.setVersionMadeBy(getUnsignedShort(pos + 4));
+			entry.setExternalAttributes(getUnsignedInt(pos + 38));
+			entry.setMethod(getUnsignedShort(pos + 10));
+			entry.setDosTime(getUnsignedInt(pos + 12));
+			setTime(entry, entry.getDosTime());
+			entry.setCrc(getUnsignedInt(pos + 16));
+			entry.setCompressedSize(compressedSize);
+			entry.setSize(uncompressedSize);
+			if (extra != null) {
+				entry.setExtra(extra);
+			}
+			if (commentLength != 0) {
+				entry.setComment(getString(pos + CENTRAL_HEADER_SIZE + nameLength + extraLength, commentLength));
+			}
+			addEntry(entry);
+			pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+		if (pos != end) {
+			// Writers that do not use zip64 let the 16 bit entry count wrap, never drop entries silently
+			throw new IOException("Central directory of " + name + " does not match the " + entryCount
+					+ " entries its end record declares");
+		}
+	}
+
+	private ByteBuffer findZip64Extra(byte[] extra, String entryName) throws IOException {
+		if (extra != null) {
+			ByteBuffer data = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+			while (data.remaining() >= 4) {
+				int id = data.getShort() & 0xFFFF;
+				int length = data.getShort() & 0xFFFF;
+				if (length > data.remaining()) {
+					break;
+				}
+				if (id == ZIP64_EXTRA_ID) {
+					ByteBuffer zip64Extra = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+					zip64Extra.limit(length);
+					return zip64Extra;
+				}
+				data.position(data.position() + length);
+			}
+		}
+		throw new IOException("Missing zip64 extra field for " + entryName + " in " + name);
+	}
+
+	private int toOffset(long value, String what) throws IOException {
+		if (value < 0 || value > buffer.limit()) {
+			throw new IOException("Position of " + what + " (" + value + ") is outside " + name);
+		}
+		return (int) value;
+	}
+
+	void addEntry(MappedJarEntry entry) {
+		entries.add(entry);
+		entriesByName.put(entry.getName(), entry);
+	}
+
+	private int findEndHeader() throws IOException {
+		int limit = Math.max(0, buffer.limit() - END_HEADER_SIZE - MAX_COMMENT_SIZE);
+		for (int pos = buffer.limit() - END_HEADER_SIZE; pos >= limit; pos--) {
+			if (buffer.getInt(pos) == END_HEADER_SIGNATURE) {
+				return pos;
+			}
+		}
+		throw new IOException("Unable to find end of central directory in " + name);
+	}
+
+	private static void setTime(ZipEntry entry, long dosTime) {
+		try {
+			LocalDateTime ldt = LocalDateTime.of((int) (((dosTime >> 25) & 0x7f) + 1980),
+					(int) ((dosTime >> 21) & 0x0f), (int) ((dosTime >> 16) & 0x1f), (int) ((dosTime >> 11) & 0x1f),
+					(int) ((dosTime >> 5) & 0x3f), (int) ((dosTime << 1) & 0x3e));
+			entry.setTime(ldt.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+		} catch (DateTimeException dte) {
+			// leave the time unset
+		}
+	}
+
+	private static byte[] inflate(ByteBuffer data, int size, String entryName) throws IOException {
+		byte[] input = new byte[data.remaining()];
+		data.get(input);
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(input);
+			byte[] result = new byte[size];
+			int inflated = 0;
+			while (inflated < size && !inflater.finished()) {
+				int count = inflater.inflate(result, inflated, size - inflated);
+				if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				inflated += count;
+			}
+			if (inflated != size) {
+				throw new IOException("Inflated " + inflated + " bytes of " + entryName + " but expected " + size);
+			}
+			return result;
+		} catch (DataFormatException dfe) {
+			throw new IOException("Unable to inflate " + entryName, dfe);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private int getUnsignedShort(int pos) {
+		return buffer.getShort(pos) & 0xFFFF;
+	}
+
+	private long getUnsignedInt(int pos) {
+		return buffer.getInt(pos) & 0xFFFFFFFFL;
+	}
+
+	private byte[] getBytes(int pos, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(pos + i);
+		}
+		return bytes;
+	}
+
+	private String getString(int pos, int length) {
+		return new String(getBytes(pos, length), StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.jar;
+
+import java.util.zip.ZipEntry;
+
+/**
+ * An entry in a {@link MappedJar}. On top of the usual {@link ZipEntry} attributes (populated from the central
+ * directory) it knows where its local header lives in the mapped buffer.
+ *
+ * @author Andy Clement
+ */
+public class MappedJarEntry extends ZipEntry {
+
+	private final int localHeaderOffset;
+
+	private long dosTime;
+
+	private int versionMadeBy;
+
+	private long externalAttributes;
+
+	private volatile byte[] retainedBytes;
+
+	MappedJarEntry(String name, int localHeaderOffset) {
+		super(name);
+		this.localHeaderOffset = localHeaderOffset;
+	}
+
+	int getLocalHeaderOffset() {
+		return localHeaderOffset;
+	}
+
+	/**
+	 * @return the last modified time exactly as recorded in the central directory, so raw copies keep it unchanged
+	 */
+	long getDosTime() {
+		return dosTime;
+	}
+
+	void setDosTime(long dosTime) {
+		this.dosTime = dosTime;
+	}
+
+	int getVersionMadeBy() {
+		return versionMadeBy;
+	}
+
+	void setVersionMadeBy(int versionMadeBy) {
+		this.versionMadeBy = versionMadeBy;
+	}
+
+	/**
+	 * @return the external file attributes (on unix the file mode lives in the upper half)
+	 */
+	long getExternalAttributes() {
+		return externalAttributes;
+	}
+
+	void setExternalAttributes(long externalAttributes) {
+		this.externalAttributes = externalAttributes;
+	}
+
+	byte[] getRetainedBytes() {
+		return retainedBytes;
+	}
+
+	void setRetainedBytes(byte[] retainedBytes) {
+		this.retainedBytes = retainedBytes;
+	}
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.jar;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Output stream that keeps up to a fixed number of bytes in memory and then spills everything to a temporary file. The
+ * CRC and size of what has been written are maintained as the data goes through, so the content can be written as a
+ * STORED jar entry without ever being held in memory as a whole. Used when rebuilding nested jars, some of which are
+ * tens of megabytes.
+ *
+ * @author Andy Clement
+ */
+public class SpillBuffer extends OutputStream {
+
+	public final static int DEFAULT_THRESHOLD = 1024 * 1024;
+
+	private final int threshold;
+
+	private final CRC32 crc = new CRC32();
+
+	private final byte[] singleByte = new byte[1];
+
+	private byte[] buffer;
+
+	private long size;
+
+	private File spillFile;
+
+	private OutputStream spillStream;
+
+	private boolean closed;
+
+	public SpillBuffer() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	public SpillBuffer(int threshold) {
+		this.threshold = threshold;
+		this.buffer = new byte[Math.min(threshold, 8192)];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (!closed && spillStream == null && size < buffer.length) {
+			// Room in the buffer (which is never bigger than the threshold) so no need to spill
+			crc.update(b);
+			buffer[(int) size++] = (byte) b;
+			return;
+		}
+		singleByte[0] = (byte) b;
+		write(singleByte, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("SpillBuffer is closed");
+		}
+		crc.update(b, off, len);
+		if (spillStream == null && size + len > threshold) {
+			spill();
+		}
+		if (spillStream != null) {
+			spillStream.write(b, off, len);
+		} else {
+			if (size + len > buffer.length) {
+				byte[] newBuffer = new byte[(int) Math.min(threshold, Math.max(buffer.length * 2, size + len))];
+				System.arraycopy(buffer, 0, newBuffer, 0, (int) size);
+				buffer = newBuffer;
+			}
+			System.arraycopy(b, off, buffer, (int) size, len);
+		}
+		size += len;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getCrc() {
+		return crc.getValue();
+	}
+
+	/**
+	 * @return true if the content went over the threshold and now lives in a temporary file
+	 */
+	public boolean isSpilled() {
+		return spillFile != null;
+	}
+
+	/**
+	 * Copy everything written so far to the supplied stream.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (spillStream == null) {
+			out.write(buffer, 0, (int) size);
+			return;
+		}
+		spillStream.flush();
+		byte[] copyBuffer = new byte[65536];
+		try (InputStream in = new FileInputStream(spillFile)) {
+			int count;
+			while ((count = in.read(copyBuffer)) != -1) {
+				out.write(copyBuffer, 0, count);
+			}
+		}
+	}
+
+	/**
+	 * Discard the content, deleting the temporary file if there is one.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		buffer = null;
+		if (spillStream != null) {
+			try {
+				spillStream.close();
+			} finally {
+				if (!spillFile.delete()) {
+					// Nobody to tell from here, try again when the process exits
+					spillFile.deleteOnExit();
+				}
+			}
+		}
+	}
+
+	private void spill() throws IOException {
+		spillFile = File.createTempFile("nox", ".spill");
+		spillStream = new BufferedOutputStream(new FileOutputStream(spillFile), 65536);
+		spillStream.write(buffer, 0, (int) size);
+		buffer = null;
+	}
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.optimizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import io.spring.nox.jar.FileUtils;
+import io.spring.nox.type.SharedTypeCache;
+
+/**
+ * Optimizes a number of boot jars in one process. Everything a {@link JarOptimizer} can reuse goes through the scan
+ * and rewrite caches, so the jars share a cache directory (a temporary one if none is specified) and whatever one jar
+ * learns about a dependency the others pick up. Parsed dependency classes are shared too, through a
+ * {@link SharedTypeCache}. The first jar is processed on its own to populate the caches, the
+ * rest then run concurrently.
+ * <p>
+ * The parallelism is shared between the jobs running at once (each gets an equal part of it, at least one thread) so
+ * a batch never uses more than the larger of the job count and the parallelism. The output of a job running alongside
+ * others is held back and printed in one piece when it completes, so lines from different jars never interleave.
+ *
+ * @author Andy Clement
+ */
+public class BatchOptimizer {
+
+	private final List<File> inputJars;
+
+	private int jobs = 1;
+
+	private int parallelism = 1;
+
+	private File cacheDirectory;
+
+	private long memoryBudget;
+
+	private SharedTypeCache sharedTypeCache = new SharedTypeCache();
+
+	// Where progress is reported
+	private PrintStream out = System.out;
+
+	public BatchOptimizer(List<File> inputJars) {
+		this.inputJars = inputJars;
+	}
+
+	/**
+	 * Expand the supplied paths into the jars to process: a directory contributes every jar directly inside it
+	 * (other than the output of a previous run).
+	 */
+	public static List<File> collectJars(List<String> paths) {
+		List<File> jars = new ArrayList<>();
+		for (String path: paths) {
+			File file = new File(path);
+			if (file.isDirectory()) {
+				File[] files = file.listFiles((dir, name) -> name.endsWith(".jar") && !name.endsWith(".nox.jar"));
+				if (files != null) {
+					Arrays.sort(files);
+					jars.addAll(Arrays.asList(files));
+				}
+			} else {
+				jars.add(file);
+			}
+		}
+		return jars;
+	}
+
+	/**
+	 * Set how many jars to process at once.
+	 */
+	public void setJobs(int jobs) {
+		this.jobs = jobs;
+	}
+
+	/**
+	 * Set the parallelism for the batch, divided between the jars being processed at once, see
+	 * {@link JarOptimizer#setParallelism(int)}.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public void setCacheDirectory(File cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	/**
+	 * Set the memory budget for each jar, see {@link JarOptimizer#setMemoryBudget(long)}.
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Report progress to the given stream rather than {@link System#out}.
+	 */
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Use an existing cache of parsed dependency classes rather than starting with an empty one.
+	 */
+	public void setSharedTypeCache(SharedTypeCache sharedTypeCache) {
+		this.sharedTypeCache = sharedTypeCache;
+	}
+
+	/**
+	 * @return true if every jar was optimized successfully
+	 */
+	public boolean optimizeAll() {
+		long stime = System.currentTimeMillis();
+		File batchCacheDirectory = cacheDirectory;
+		try {
+			if (batchCacheDirectory == null) {
+				batchCacheDirectory = Files.createTempDirectory("nox-cache").toFile();
+			}
+		} catch (IOException ioe) {
+			throw new RuntimeException("Unable to create a cache directory for the batch", ioe);
+		}
+		Map<File, Throwable> failures = new LinkedHashMap<>();
+		try {
+			if (!inputJars.isEmpty()) {
+				recordFailure(failures, inputJars.get(0),
+						optimize(inputJars.get(0), batchCacheDirectory, parallelism, out));
+			}
+			List<File> remaining = inputJars.subList(Math.min(1, inputJars.size()), inputJars.size());
+			int concurrentJobs = Math.max(1, Math.min(jobs, remaining.size()));
+			int jobParallelism = Math.max(1, parallelism / concurrentJobs);
+			ExecutorService executor = Executors.newFixedThreadPool(concurrentJobs);
+			try {
+				List<Future<Throwable>> futures = new ArrayList<>();
+				for (File inputJar: remaining) {
+					File jobCacheDirectory = batchCacheDirectory;
+					futures.add(executor.submit(() -> (concurrentJobs == 1)
+							? optimize(inputJar, jobCacheDirectory, jobParallelism, out)
+							: optimizeBuffered(inputJar, jobCacheDirectory, jobParallelism)));
+				}
+				for (int i = 0; i < futures.size(); i++) {
+					Throwable failure;
+					try {
+						failure = futures.get(i).get();
+					} catch (ExecutionException ee) {
+						// Only errors get this far, optimize() returns anything else as the failure
+						failure = ee.getCause();
+					}
+					recordFailure(failures, remaining.get(i), failure);
+				}
+			} catch (InterruptedException ie) {
+				throw new IllegalStateException("Batch interrupted", ie);
+			} finally {
+				executor.shutdownNow();
+			}
+		} finally {
+			if (cacheDirectory == null) {
+				FileUtils.deleteRecursivelyQuietly(batchCacheDirectory.toPath(), out);
+			}
+		}
+		out.println("\nBatch of #" + inputJars.size() + " jars completed in "
+				+ (System.currentTimeMillis() - stime) + "ms");
+		for (Map.Entry<File, Throwable> failure: failures.entrySet()) {
+			out.println("Failed to optimize " + failure.getKey() + ": " + failure.getValue());
+		}
+		return failures.isEmpty();
+	}
+
+	private static void recordFailure(Map<File, Throwable> failures, File inputJar, Throwable failure) {
+		if (failure != null) {
+			failures.put(inputJar, failure);
+		}
+	}
+
+	/**
+	 * Optimize a jar alongside others, printing its output in one piece once it is done.
+	 */
+	private Throwable optimizeBuffered(File inputJar, File batchCacheDirectory, int jobParallelism) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Throwable failure;
+		try (PrintStream jobOut = new PrintStream(buffer, true, "UTF-8")) {
+			failure = optimize(inputJar, batchCacheDirectory, jobParallelism, jobOut);
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException(uee);
+		}
+		synchronized (out) {
+			out.print(new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+			out.flush();
+		}
+		return failure;
+	}
+
+	/**
+	 * @return why the jar could not be optimized, or null if it was
+	 */
+	private Throwable optimize(File inputJar, File batchCacheDirectory, int jobParallelism, PrintStream out) {
+		try {
+			JarOptimizer jarOptimizer = new JarOptimizer(inputJar);
+			jarOptimizer.setOutput(out);
+			jarOptimizer.setParallelism(jobParallelism);
+			jarOptimizer.setCacheDirectory(batchCacheDirectory);
+			jarOptimizer.setSharedTypeCache(sharedTypeCache);
+			jarOptimizer.setMemoryBudget(memoryBudget);
+			jarOptimizer.buildOptimizedVariant();
+			return null;
+		} catch (RuntimeException e) {
+			// Keep going with the other jars
+			e.printStackTrace(out);
+			return e;
+		}
+	}
+
+}
@@ -27,6 +27,8 @@ public class ClassInfo {
 	private boolean configurationClass;
 	private ZipEntry containingEntry;
 	private int access;
+	private String superName;
+	private String[] interfaces;
 
 	ClassInfo() {
 	}
@@ -63,7 +65,27 @@ public class ClassInfo {
 	void setAccess(int access) {
 		this.access = access;
 	}
+
+	int getAccess() {
+		return access;
+	}
 	
+	void setSupertypes(String superName, String[] interfaces) {
+		this.superName = superName;
+		this.interfaces = interfaces;
+	}
+
+	/**
+	 * @return the slashed superclass name, null for java/lang/Object
+	 */
+	public String getSuperclassName() {
+		return superName;
+	}
+
+	public String[] getInterfaceNames() {
+		return interfaces;
+	}
+
 	public boolean isInterface() {
 		return Modifier.isInterface(access);
 	}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.optimizer;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import io.spring.nox.jar.FileUtils;
+import io.spring.nox.type.SharedTypeCache;
+
+/**
+ * Keeps the optimized variant of an exploded boot jar up to date as its application classes are recompiled. After an
+ * initial full run, {@code BOOT-INF/classes} is watched and each batch of changes is handed to
+ * {@link JarOptimizer#updateOptimizedVariant(java.util.Set)}. Dependencies come from the scan and rewrite caches
+ * (held in memory after the first run) and parsed dependency classes are shared through a {@link SharedTypeCache},
+ * so an update costs roughly the scan of the application classes plus writing whatever changed.
+ *
+ * @author Andy Clement
+ */
+public class ExplodedJarWatcher {
+
+	// How long the classes directory must be quiet before an update runs, a compile touches many files
+	private final static long QUIET_PERIOD_MS = 100;
+
+	private final File explodedJar;
+
+	private final Path classesDirectory;
+
+	private int parallelism = 1;
+
+	private File cacheDirectory;
+
+	private SharedTypeCache sharedTypeCache = new SharedTypeCache();
+
+	private long memoryBudget;
+
+	private PrintStream out = System.out;
+
+	private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+
+	public ExplodedJarWatcher(File explodedJar) {
+		this.explodedJar = explodedJar;
+		this.classesDirectory = new File(explodedJar, JarOptimizer.APP_CLASSES_PREFIX).toPath();
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Set where to keep the scan and rewrite caches, if not set a temporary directory is used while watching.
+	 */
+	public void setCacheDirectory(File cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	public void setSharedTypeCache(SharedTypeCache sharedTypeCache) {
+		this.sharedTypeCache = sharedTypeCache;
+	}
+
+	/**
+	 * @see JarOptimizer#setMemoryBudget(long)
+	 */
+	public void setMemoryBudget(long bytes) {
+		this.memoryBudget = bytes;
+	}
+
+	/**
+	 * Report progress, and any failed update, to the given stream rather than {@link System#out}.
+	 */
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Optimize the exploded jar then keep the output up to date until the thread is interrupted.
+	 */
+	public void watch() {
+		if (!Files.isDirectory(classesDirectory)) {
+			throw new IllegalStateException("Not an exploded boot jar, no " + classesDirectory);
+		}
+		File watchCacheDirectory = cacheDirectory;
+		try (WatchService watchService = classesDirectory.getFileSystem().newWatchService()) {
+			if (watchCacheDirectory == null) {
+				watchCacheDirectory = Files.createTempDirectory("nox-cache").toFile();
+			}
+			JarOptimizer jarOptimizer = new JarOptimizer(explodedJar);
+			jarOptimizer.setOutput(out);
+			jarOptimizer.setParallelism(parallelism);
+			jarOptimizer.setCacheDirectory(watchCacheDirectory);
+			jarOptimizer.setSharedTypeCache(sharedTypeCache);
+			jarOptimizer.setMemoryBudget(memoryBudget);
+			// Register before the first run so nothing compiled during it is missed
+			register(watchService, classesDirectory, null);
+			jarOptimizer.buildOptimizedVariant();
+			out.println("\nWatching " + classesDirectory + " for changes");
+			while (true) {
+				TreeSet<String> changedEntries = new TreeSet<>();
+				boolean overflow = !collectChanges(watchService, watchService.take(), changedEntries);
+				WatchKey key;
+				while ((key = watchService.poll(QUIET_PERIOD_MS, TimeUnit.MILLISECONDS)) != null) {
+					overflow |= !collectChanges(watchService, key, changedEntries);
+				}
+				try {
+					if (overflow) {
+						out.println("Too many changes to track, optimizing everything again");
+						jarOptimizer.buildOptimizedVariant();
+					} else if (!jarOptimizer.canUpdateOptimizedVariant()) {
+						out.println("No complete output to update, optimizing everything again");
+						jarOptimizer.buildOptimizedVariant();
+					} else if (!changedEntries.isEmpty()) {
+						jarOptimizer.updateOptimizedVariant(changedEntries);
+					}
+				} catch (RuntimeException e) {
+					// Most likely caught a class part way through being written, the next change will fix it up
+					e.printStackTrace(out);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException ioe) {
+			throw new IllegalStateException("Unable to watch " + classesDirectory, ioe);
+		} finally {
+			if (cacheDirectory == null && watchCacheDirectory != null) {
+				FileUtils.deleteRecursivelyQuietly(watchCacheDirectory.toPath(), out);
+			}
+		}
+	}
+
+	/**
+	 * @return false if events were lost
+	 */
+	private boolean collectChanges(WatchService watchService, WatchKey key, TreeSet<String> changedEntries)
+			throws IOException {
+		Path directory = watchedDirectories.get(key);
+		boolean complete = true;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				complete = false;
+				continue;
+			}
+			Path path = directory.resolve((Path) event.context());
+			if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+				// A new package, watch it and pick up anything already written into it
+				register(watchService, path, changedEntries);
+			} else if (!Files.isDirectory(path)) {
+				changedEntries.add(toEntryName(path));
+			}
+		}
+		if (!key.reset()) {
+			watchedDirectories.remove(key);
+		}
+		return complete;
+	}
+
+	private void register(WatchService watchService, Path directory, TreeSet<String> existingFiles)
+			throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			for (Path path : (Iterable<Path>) paths::iterator) {
+				if (Files.isDirectory(path)) {
+					watchedDirectories.put(path.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), path);
+				} else if (existingFiles != null) {
+					existingFiles.add(toEntryName(path));
+				}
+			}
+		}
+	}
+
+	private String toEntryName(Path path) {
+		return JarOptimizer.APP_CLASSES_PREFIX
+				+ classesDirectory.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+}
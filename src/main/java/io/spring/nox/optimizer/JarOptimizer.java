@@ -17,22 +17,30 @@
 package io.spring.nox.optimizer;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.lang.annotation.ElementType;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 
 import org.springframework.asm.AnnotationVisitor;
 import org.springframework.asm.ClassReader;
@@ -43,8 +51,21 @@ import org.springframework.asm.MethodVisitor;
 import org.springframework.asm.Opcodes;
 import org.springframework.core.io.support.SpringFactoriesLoader;
 
+import io.spring.nox.jar.ArchiveWriter;
+import io.spring.nox.jar.DirectoryWriter;
+import io.spring.nox.jar.ExplodedJar;
+import io.spring.nox.jar.FileUtils;
+import io.spring.nox.jar.JarWriter;
+import io.spring.nox.jar.MappedJar;
+import io.spring.nox.jar.MappedJarEntry;
+import io.spring.nox.jar.SpillBuffer;
 import io.spring.nox.optimizer.spi.Collector;
 import io.spring.nox.optimizer.spi.Rewriter;
+import io.spring.nox.type.ClasspathTypeSource;
+import io.spring.nox.type.SharedTypeCache;
+import io.spring.nox.type.TypeHierarchyIndex;
+import io.spring.nox.type.TypeSnapshotCache;
+import io.spring.nox.type.TypeSource;
 import io.spring.nox.type.TypeSystem;
 
 /**
@@ -53,30 +74,197 @@ import io.spring.nox.type.TypeSystem;
 public class JarOptimizer {
 
 	private File inputJar;
+	private MappedJar bootJar;
 	private TypeSystem typeSystem;
 	private List<Collector> collectors = new ArrayList<>();
+	private int parallelism = 1;
+	private ScanCache scanCache;
+	private RewriteCache rewriteCache;
+	private TypeSnapshotCache typeSnapshotCache;
+	private SharedTypeCache sharedTypeCache;
+	private TypeSource typeSource;
+	// Zero for no limit
+	private long memoryBudget;
+	// Only set while updating the output of a previous run, the entries that changed since
+	private Set<String> changedEntries;
+	// For an exploded output, the rewrite each dependency was last written with ("" if it was copied as is)
+	private Map<String, String> writtenDependencies;
+	// Where progress is reported
+	private PrintStream out = System.out;
 
 	public JarOptimizer(File inputJar) {
 		this.inputJar = inputJar;
 	}
 
+	/**
+	 * Report progress (including the collector summaries) to the given stream rather than {@link System#out}.
+	 */
+	public void setOutput(PrintStream out) {
+		this.out = out;
+		setCacheOutput();
+	}
+
+	/**
+	 * Set how many threads to use for the scan and rewrite, the default of 1 keeps everything on the calling
+	 * thread.
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Set a directory in which to cache what the scan finds in each dependency jar, the rewritten dependency jars
+	 * and snapshots of the types loaded from each dependency, so that later runs (of this or any other application
+	 * shipping the same dependencies) can skip that work.
+	 */
+	public void setCacheDirectory(File cacheDirectory) {
+		this.scanCache = (cacheDirectory == null) ? null : new ScanCache(cacheDirectory);
+		this.rewriteCache = (cacheDirectory == null) ? null : new RewriteCache(cacheDirectory);
+		this.typeSnapshotCache = (cacheDirectory == null) ? null : new TypeSnapshotCache(cacheDirectory);
+		setCacheOutput();
+	}
+
+	private void setCacheOutput() {
+		if (scanCache != null) {
+			scanCache.setOutput(out);
+			rewriteCache.setOutput(out);
+			typeSnapshotCache.setOutput(out);
+		}
+	}
+
+	/**
+	 * Reuse classes already parsed by other optimizers (for example in a batch or a daemon) for identical
+	 * dependencies.
+	 */
+	public void setSharedTypeCache(SharedTypeCache sharedTypeCache) {
+		this.sharedTypeCache = sharedTypeCache;
+	}
+
+	/**
+	 * Resolve types from the given source rather than from the input jar itself, for example from the classpath the
+	 * jar was packaged from. It must present the same classes as the input jar.
+	 */
+	public void setTypeSource(TypeSource typeSource) {
+		this.typeSource = typeSource;
+	}
+
+	/**
+	 * Limit how much memory is used for the methods of resolved types, see {@link TypeSystem#setMemoryBudget(long)}.
+	 * Class bytes decoded by the scan are also no longer kept around for the rewrite. Intended for jars too big for
+	 * everything to stay in memory.
+	 *
+	 * @param bytes the budget, zero for no limit
+	 */
+	public void setMemoryBudget(long bytes) {
+		this.memoryBudget = bytes;
+	}
+
 	public void buildOptimizedVariant() {
-		System.out.println("Processing " + inputJar);
+		out.println("Processing " + inputJar);
+		long stime = System.currentTimeMillis();
+		changedEntries = null;
+		optimize();
+		out.println("Completed in " + (System.currentTimeMillis() - stime) + "ms");
+	}
+
+	/**
+	 * @return true if there is exploded output from a completed earlier run for {@link #updateOptimizedVariant(Set)}
+	 * to update, false if the variant has to be built again
+	 */
+	public boolean canUpdateOptimizedVariant() {
+		return writtenDependencies != null && getOutputJarName().isDirectory();
+	}
+
+	/**
+	 * Bring the exploded output of an earlier {@link #buildOptimizedVariant()} by this optimizer up to date after
+	 * entries of the exploded input have changed. Everything is still scanned, so the collected information is
+	 * complete (dependencies should come from the scan cache), but only the changed entries, any dependency whose
+	 * rewrite is now different and the PrecomputedInfoLoader are written. Application classes extending or
+	 * implementing a changed class are written too, as how they are rewritten depends on their supertypes. Classes
+	 * that merely refer to a changed class are not.
+	 *
+	 * @param changedEntryNames names of the entries added, modified or deleted, for example
+	 * {@code BOOT-INF/classes/com/example/Foo.class}
+	 */
+	public void updateOptimizedVariant(Set<String> changedEntryNames) {
+		if (!canUpdateOptimizedVariant()) {
+			throw new IllegalStateException("No exploded output of an earlier run to update for " + inputJar);
+		}
+		out.println("Updating " + getOutputJarName() + " for #" + changedEntryNames.size() + " changed entries");
 		long stime = System.currentTimeMillis();
-		createTypeSystem();
-		populateCollectors();
-		scanJar();
-		summarizeCollectedInfo();
-		rebuild();
-		System.out.println("Completed in " + (System.currentTimeMillis() - stime) + "ms");
+		changedEntries = new HashSet<>(changedEntryNames);
+		try {
+			optimize();
+		} finally {
+			changedEntries = null;
+		}
+		out.println("Updated in " + (System.currentTimeMillis() - stime) + "ms");
+	}
+
+	private void optimize() {
+		openInputJar();
+		try {
+			createTypeSystem();
+			populateCollectors();
+			scanJar();
+			if (changedEntries != null) {
+				addSubtypesOfChangedClasses();
+			}
+			summarizeCollectedInfo();
+			rebuild();
+		} finally {
+			closeInputJar();
+		}
 	}
 	
+	private void openInputJar() {
+		try {
+			bootJar = inputJar.isDirectory() ? ExplodedJar.open(inputJar) : MappedJar.open(inputJar);
+		} catch (IOException ioe) {
+			throw new RuntimeException("Unable to open " + inputJar, ioe);
+		}
+	}
+
 	private void createTypeSystem() {
-		typeSystem = new TypeSystem(inputJar);
+		if (typeSource != null) {
+			typeSystem = new TypeSystem(typeSource);
+		} else if (bootJar instanceof ExplodedJar) {
+			// Laid out as a classpath already, and that works out the origins of application classes without a CRC
+			List<File> classpath = new ArrayList<>();
+			classpath.add(new File(inputJar, APP_CLASSES_PREFIX));
+			for (MappedJarEntry entry: bootJar.getEntries()) {
+				if (isDependency(entry.getName())) {
+					classpath.add(((ExplodedJar) bootJar).getFile(entry));
+				}
+			}
+			typeSystem = new TypeSystem(new ClasspathTypeSource(classpath));
+		} else {
+			typeSystem = TypeSystem.forBootJar(bootJar);
+		}
+		typeSystem.setSharedTypeCache(sharedTypeCache);
+		typeSystem.setTypeSnapshotCache(typeSnapshotCache);
+		if (memoryBudget > 0) {
+			typeSystem.setMemoryBudget(memoryBudget);
+		}
+		typeSystem.printSummary(out);
+	}
+
+	private void closeInputJar() {
+		try {
+			if (typeSystem != null) {
+				typeSystem.close();
+			}
+		} catch (IOException ioe) {
+			throw new RuntimeException("Problem closing type system", ioe);
+		} finally {
+			typeSystem = null;
+			bootJar.close();
+		}
 	}
 
 	private void populateCollectors() {
 		List<Collector> discoveredCollectors = SpringFactoriesLoader.loadFactories(Collector.class, null);
+		collectors.clear();
 		for (Collector discoveredCollector: discoveredCollectors) {
 			discoveredCollector.setTypeSystem(typeSystem);
 			collectors.add(discoveredCollector);
@@ -84,29 +272,103 @@ public class JarOptimizer {
 	}
 
 	private void summarizeCollectedInfo() {
-		System.out.println("\nScan summary:");
 		for (Collector collector : collectors) {
-			collector.summarize();
+			collector.scanComplete();
+		}
+		out.println("\nScan summary:");
+		for (Collector collector : collectors) {
+			collector.summarize(out);
 		}
 	}
 
 	public void scanJar() {
-		System.out.println("Scanning boot jar...");
-		try {
-			try (ZipFile zf = new ZipFile(inputJar)) {
-				Enumeration<? extends ZipEntry> entries = zf.entries();
-				while (entries.hasMoreElements()) {
-					ZipEntry entry = entries.nextElement();
-					String entryName = entry.getName();
-					if (isAppClass(entryName)) {
-						processClass(zf.getInputStream(entry), null);
-					} else if (isDependency(entryName)) {
-						scanNestedDependencyJar(zf.getInputStream(entry), entry);
+		out.println("Scanning boot jar...");
+		List<ClassToScan> classesToScan = new ArrayList<>();
+		Map<String, List<ClassToScan>> dependenciesToCache = new LinkedHashMap<>();
+		int cachedDependencies = 0;
+		for (MappedJarEntry entry: bootJar.getEntries()) {
+			String entryName = entry.getName();
+			if (isAppClass(entryName)) {
+				classesToScan.add(new ClassToScan(bootJar, entry, null));
+			} else if (isDependency(entryName)) {
+				String cacheKey = (scanCache == null) ? null : scanCache.computeKey(entry, bootJar.getNestedJar(entry));
+				List<ScanCache.CachedClass> cachedClasses = (cacheKey == null) ? null : scanCache.load(cacheKey);
+				if (cachedClasses != null) {
+					cachedDependencies++;
+					for (ScanCache.CachedClass cachedClass: cachedClasses) {
+						classesToScan.add(new ClassToScan(cachedClass, entry));
 					}
+					continue;
+				}
+				out.println("Scanning "+entryName);
+				MappedJar dependencyJar = bootJar.getNestedJar(entry);
+				List<ClassToScan> dependencyClasses = new ArrayList<>();
+				for (MappedJarEntry dependencyEntry: dependencyJar.getEntries()) {
+					if (dependencyEntry.getName().endsWith(".class")) {
+						ClassToScan classToScan = new ClassToScan(dependencyJar, dependencyEntry, entry);
+						if (cacheKey != null) {
+							classToScan.events = new ArrayList<>();
+						}
+						dependencyClasses.add(classToScan);
+					}
+				}
+				classesToScan.addAll(dependencyClasses);
+				if (cacheKey != null) {
+					dependenciesToCache.put(cacheKey, dependencyClasses);
 				}
 			}
-		} catch (IOException ioe) {
-			throw new RuntimeException("Problem during scan", ioe);
+		}
+		if (cachedDependencies != 0) {
+			out.println("Using cached scan results for #" + cachedDependencies + " dependencies");
+		}
+		ClassInfo[] classInfos = new ClassInfo[classesToScan.size()];
+		if (parallelism > 1) {
+			ForkJoinPool pool = new ForkJoinPool(parallelism);
+			try {
+				pool.invoke(new ScanTask(classesToScan, classInfos, 0, classInfos.length));
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			for (int i = 0; i < classInfos.length; i++) {
+				classInfos[i] = processClass(classesToScan.get(i));
+			}
+		}
+		for (Map.Entry<String, List<ClassToScan>> dependencyToCache: dependenciesToCache.entrySet()) {
+			List<ScanCache.CachedClass> cachedClasses = new ArrayList<>();
+			for (ClassToScan classToScan: dependencyToCache.getValue()) {
+				ClassInfo ci = classToScan.classInfo;
+				cachedClasses.add(new ScanCache.CachedClass(ci.getTypeName(), ci.getAccess(), ci.getSuperclassName(),
+						ci.getInterfaceNames(), classToScan.events));
+			}
+			scanCache.store(dependencyToCache.getKey(), cachedClasses);
+		}
+		TypeHierarchyIndex hierarchyIndex = typeSystem.getHierarchyIndex();
+		for (ClassInfo ci: classInfos) {
+			hierarchyIndex.add(ci.getTypeName(), ci.getSuperclassName(), ci.getInterfaceNames());
+		}
+		reportScannedDependencies(classInfos);
+	}
+
+	/**
+	 * Add the application classes below each changed application class in the hierarchy to the changed entries.
+	 */
+	private void addSubtypesOfChangedClasses() {
+		TypeHierarchyIndex hierarchyIndex = typeSystem.getHierarchyIndex();
+		Set<String> subtypeEntries = new TreeSet<>();
+		for (String changedEntry: changedEntries) {
+			if (isAppClass(changedEntry)) {
+				for (String subtype: hierarchyIndex.getAllSubtypes(getTypeName(changedEntry))) {
+					String subtypeEntry = APP_CLASSES_PREFIX + subtype + ".class";
+					if (!changedEntries.contains(subtypeEntry) && bootJar.getEntry(subtypeEntry) != null) {
+						subtypeEntries.add(subtypeEntry);
+					}
+				}
+			}
+		}
+		if (!subtypeEntries.isEmpty()) {
+			out.println("Also writing #" + subtypeEntries.size() + " subtypes of changed classes");
+			changedEntries.addAll(subtypeEntries);
 		}
 	}
 
@@ -120,66 +382,205 @@ public class JarOptimizer {
 	
 	private void rebuild() {
 		File outputJar = getOutputJarName();
-		System.out.println("\nGenerating "+outputJar);
-		byte[] buffer = new byte[100000];
+		out.println("\nGenerating "+outputJar);
+		ForkJoinPool pool = (parallelism > 1) ? new ForkJoinPool(parallelism) : null;
+		Map<MappedJarEntry, ForkJoinTask<RewrittenEntry>> rewrites = new LinkedHashMap<>();
+		List<MappedJarEntry> entriesToWrite = new ArrayList<>();
+		Map<String, String> dependencyRewrites = new HashMap<>();
+		// Whether anything has been written to the output yet, and whether all of it has
+		boolean started = false;
+		boolean complete = false;
 		try {
-			try (ZipFile zipIn = new ZipFile(inputJar)) {
-				try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(outputJar))) {
-					Enumeration<? extends ZipEntry> entries = zipIn.entries();
-					while (entries.hasMoreElements()) {
-						ZipEntry inEntry = entries.nextElement();
-						boolean processed = false;
-						if (isAppClass(inEntry.getName())) {
-							String typename = getTypeName(inEntry.getName());
-							List<Rewriter> collectorsThatWantToRewriteApplicationClasses = getAppClassRewriters(typename);
-							if (collectorsThatWantToRewriteApplicationClasses.size()!=0) {
-								ZipEntry outEntry = new ZipEntry(inEntry);
-								outEntry.setCompressedSize(-1);
-								zos.putNextEntry(outEntry);
-								byte[] bytes = collectorsThatWantToRewriteApplicationClasses.get(0).rewriteClass(zipIn.getInputStream(inEntry), typename,null);
-								int i = 1;
-								while (i<collectorsThatWantToRewriteApplicationClasses.size()) {
-									ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-									bytes =  collectorsThatWantToRewriteApplicationClasses.get(0).rewriteClass(bais, typename,null);
-									i++;
-								}
-								zos.write(bytes);
-								processed = true;
-							}
-						} else if (isDependency(inEntry.getName())) {
-							List<Rewriter> collectorsThatWantToRewriteDependency = getDependencyRewriters(inEntry.getName());
-							if (!collectorsThatWantToRewriteDependency.isEmpty()) {
-								rewriteDependency(zipIn, zos, inEntry, collectorsThatWantToRewriteDependency);
-								processed=true;						
-							}
+			// Start the rewrites up front (in parallel when there is a pool), the output is still written in the
+			// original entry order below so the result is the same whichever rewrite finishes first
+			for (MappedJarEntry inEntry: bootJar.getEntries()) {
+				if (!needsWriting(inEntry, dependencyRewrites)) {
+					continue;
+				}
+				entriesToWrite.add(inEntry);
+				Callable<RewrittenEntry> rewrite = null;
+				if (isAppClass(inEntry.getName())) {
+					String typename = getTypeName(inEntry.getName());
+					List<Rewriter> collectorsThatWantToRewriteApplicationClasses = getAppClassRewriters(typename);
+					if (collectorsThatWantToRewriteApplicationClasses.size()!=0) {
+						rewrite = () -> rewriteApplicationClass(inEntry, typename, collectorsThatWantToRewriteApplicationClasses);
+					}
+				} else if (isDependency(inEntry.getName())) {
+					List<Rewriter> collectorsThatWantToRewriteDependency = getDependencyRewriters(inEntry.getName());
+					if (!collectorsThatWantToRewriteDependency.isEmpty()) {
+						rewrite = () -> rewriteDependency(bootJar.getNestedJar(inEntry), inEntry, collectorsThatWantToRewriteDependency);
+					}
+				}
+				if (rewrite != null) {
+					ForkJoinTask<RewrittenEntry> task = ForkJoinTask.adapt(rewrite);
+					if (pool != null) {
+						pool.execute(task);
+					}
+					rewrites.put(inEntry, task);
+				}
+			}
+			ArchiveWriter writer = createWriter(outputJar);
+			started = true;
+			try (ArchiveWriter jarWriter = writer) {
+				if (changedEntries != null) {
+					for (String changedEntry: changedEntries) {
+						if (bootJar.getEntry(changedEntry) == null && !new File(inputJar, changedEntry).exists()) {
+							((DirectoryWriter) jarWriter).delete(changedEntry);
 						}
-						if (!processed) {
-							// Copy it across
-							ZipEntry outEntry = new ZipEntry(inEntry);
-							zos.putNextEntry(outEntry);
-							InputStream in = zipIn.getInputStream(inEntry);
-							while (in.available() > 0) {
-								int read = in.read(buffer);
-								zos.write(buffer, 0, read);
-							}
-							in.close();
+					}
+				}
+				for (MappedJarEntry inEntry: entriesToWrite) {
+					ForkJoinTask<RewrittenEntry> rewrite = rewrites.get(inEntry);
+					if (rewrite != null) {
+						try (RewrittenEntry rewrittenEntry = (pool == null) ? rewrite.invoke() : rewrite.join()) {
+							rewrittenEntry.writeTo(jarWriter);
 						}
+					} else {
+						// Copy it across as is
+						jarWriter.writeRaw(bootJar, inEntry);
 					}
-					
-					// Build cached info class
+				}
+				
+				// Build cached info class
 
-					ZipEntry outEntry = new ZipEntry("BOOT-INF/classes/org/springframework/core/PrecomputedInfoLoader.class");
-					zos.putNextEntry(outEntry);
-					byte[] loaderBytes = createPrecomputedInfoLoader();
-					zos.write(loaderBytes);
+				ZipEntry outEntry = new ZipEntry("BOOT-INF/classes/org/springframework/core/PrecomputedInfoLoader.class");
+				byte[] loaderBytes = createPrecomputedInfoLoader();
+				jarWriter.writeEntry(outEntry, loaderBytes);
+				jarWriter.finish();
+				complete = true;
+				if (jarWriter instanceof DirectoryWriter) {
+					DirectoryWriter directoryWriter = (DirectoryWriter) jarWriter;
+					out.println("Linked #" + directoryWriter.getLinkedCount() + " unchanged files, wrote #"
+							+ directoryWriter.getWrittenCount());
+					if (changedEntries == null) {
+						writtenDependencies = new HashMap<>();
+					}
+					writtenDependencies.putAll(dependencyRewrites);
 				}
-				System.out.println("Rewrite complete: " + outputJar);
 			}
+			out.println("Rewrite complete: " + outputJar);
 		} catch (IOException ioe) {
 			throw new RuntimeException("Unexpected problem compiling jar", ioe);
+		} finally {
+			if (started && !complete) {
+				// Never leave a partial jar where a later run (or the build plugin's up to date check) would find it
+				if (outputJar.isFile()) {
+					outputJar.delete();
+				} else if (outputJar.isDirectory()) {
+					if (changedEntries == null) {
+						FileUtils.deleteRecursivelyQuietly(outputJar.toPath(), out);
+					}
+					// A partly updated directory no longer matches what was written, the next run starts again
+					writtenDependencies = null;
+				}
+			}
+			if (pool != null) {
+				// Rewrites not started yet are cancelled, those already running are waited for so that if the write
+				// failed part way through their results can be closed below rather than finishing afterwards
+				pool.shutdownNow();
+				awaitTermination(pool);
+			}
+			// If the write failed part way through, make sure no spilled rewrites are left behind
+			for (ForkJoinTask<RewrittenEntry> rewrite: rewrites.values()) {
+				if (rewrite.isDone() && !rewrite.isCompletedAbnormally() && !rewrite.isCancelled()) {
+					closeQuietly(rewrite.getRawResult());
+				}
+			}
 		}
 	}
 
+	/**
+	 * The replacement for an entry in the boot jar, produced by a rewrite task and written out in order.
+	 */
+	static class RewrittenEntry implements Closeable {
+		final ZipEntry entry;
+		final byte[] bytes;
+		final SpillBuffer content;
+		final RewriteCache.CachedRewrite cachedRewrite;
+
+		RewrittenEntry(ZipEntry entry, byte[] bytes) {
+			this.entry = entry;
+			this.bytes = bytes;
+			this.content = null;
+			this.cachedRewrite = null;
+		}
+
+		/**
+		 * A STORED entry (a rebuilt nested jar) copied from the rewrite cache.
+		 */
+		RewrittenEntry(ZipEntry entry, RewriteCache.CachedRewrite cachedRewrite) {
+			this.entry = entry;
+			this.bytes = null;
+			this.content = null;
+			this.cachedRewrite = cachedRewrite;
+		}
+
+		/**
+		 * A STORED entry (a rebuilt nested jar) whose content may have spilled to disk.
+		 */
+		RewrittenEntry(ZipEntry entry, SpillBuffer content) {
+			this.entry = entry;
+			this.bytes = null;
+			this.content = content;
+			this.cachedRewrite = null;
+		}
+
+		void writeTo(ArchiveWriter jarWriter) throws IOException {
+			if (content != null) {
+				jarWriter.writeStored(entry, content);
+			} else if (cachedRewrite != null) {
+				try (InputStream in = new FileInputStream(cachedRewrite.file)) {
+					jarWriter.writeStored(entry, cachedRewrite.crc, cachedRewrite.size, in);
+				}
+			} else {
+				jarWriter.writeEntry(entry, bytes);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (content != null) {
+				content.close();
+			}
+		}
+	}
+
+	private static void awaitTermination(ForkJoinPool pool) {
+		boolean interrupted = false;
+		while (!pool.isTerminated()) {
+			try {
+				pool.awaitTermination(1, TimeUnit.SECONDS);
+			} catch (InterruptedException ie) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			if (closeable != null) {
+				closeable.close();
+			}
+		} catch (IOException ioe) {
+			// ignore
+		}
+	}
+
+	private RewrittenEntry rewriteApplicationClass(MappedJarEntry inEntry, String typename, List<Rewriter> rewriters) throws IOException {
+		byte[] bytes = rewriters.get(0).rewriteClass(bootJar.getInputStream(inEntry), typename,null);
+		int i = 1;
+		while (i<rewriters.size()) {
+			ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
+			bytes = rewriters.get(i).rewriteClass(bais, typename,null);
+			i++;
+		}
+		bootJar.release(inEntry);
+		return new RewrittenEntry(inEntry, bytes);
+	}
+
 	private List<Rewriter> getAppClassRewriters(String typeName) {
 		List<Rewriter> rewriters =  collectors.stream().filter(c -> c instanceof Rewriter).map(c->(Rewriter)c).filter(r ->r.shouldRewriteApplicationClass(typeName)).collect(Collectors.toList());
 //		System.out.println("Finding app class rewriters for "+typeName+" = "+rewriters);
@@ -270,92 +671,175 @@ public class JarOptimizer {
 		}
 	}
 	
-	private void rewriteDependency(ZipFile zipIn, ZipOutputStream zos, ZipEntry dependencyEntry, List<Rewriter> rewriters) {
-		System.out.println("Rewriting dependency "+dependencyEntry.getName());
-		byte[] buffer = new byte[100000];
+	private RewrittenEntry rewriteDependency(MappedJar dependencyJar, ZipEntry dependencyEntry, List<Rewriter> rewriters) {
+		ZipEntry outDependencyEntry = dependencyEntry;
+		if (dependencyEntry.getMethod() != ZipEntry.STORED) {
+			outDependencyEntry = new ZipEntry(dependencyEntry);
+			outDependencyEntry.setMethod(ZipEntry.STORED);
+		}
+		String cacheKey = (rewriteCache == null) ? null
+				: rewriteCache.computeKey(dependencyJar, dependencyEntry.getName(), rewriters);
+		if (cacheKey != null) {
+			RewriteCache.CachedRewrite cachedRewrite = rewriteCache.load(cacheKey, typeSystem);
+			if (cachedRewrite != null) {
+				out.println("Using cached rewrite of dependency "+dependencyEntry.getName());
+				for (MappedJarEntry inEntry: dependencyJar.getEntries()) {
+					dependencyJar.release(inEntry);
+				}
+				return new RewrittenEntry(outDependencyEntry, cachedRewrite);
+			}
+		}
+		out.println("Rewriting dependency "+dependencyEntry.getName());
+		// Whatever the rewriters resolve decides whether the result can be reused elsewhere
+		Set<String> resolvedTypeNames = (cacheKey == null) ? null : ConcurrentHashMap.newKeySet();
 		try {
-			InputStream inputStream = zipIn.getInputStream(dependencyEntry);
-			ZipInputStream zis = new ZipInputStream(inputStream);
-			ZipEntry outDependencyEntry = new ZipEntry(dependencyEntry);
-			zos.setMethod(ZipOutputStream.STORED); // TODO need this? (and associated bit below?)
-
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			ZipOutputStream newDependencyOutputStream = new ZipOutputStream(baos);
-			ZipEntry inEntry = zis.getNextEntry();
-			while (inEntry != null) {
-				String entryName = inEntry.getName();
-				byte[] bytes = null;
-				boolean wasRewritten = false;
-				if (entryName.endsWith(".class")) {
-					for (Rewriter rewriter: rewriters) {
-//						System.out.println("Asking "+rewriter+" to rewrite "+entryName+" from "+dependencyEntry.getName());
-						String typename = entryName.substring(0, entryName.length()-".class".length());
-						byte[] newbytes = rewriter.rewriteClass((bytes==null)?zis:new ByteArrayInputStream(bytes), typename, dependencyEntry.getName());
-						if (newbytes != null) {
-							wasRewritten = true;
-							bytes = newbytes;
-						}
+
+			// Rewrite the classes first, forking a task per class when running in the pool (spring-boot-autoconfigure
+			// alone has hundreds of configuration classes), then assemble the nested jar in entry order
+			List<MappedJarEntry> entries = dependencyJar.getEntries();
+			byte[][] rewrittenClasses = new byte[entries.size()][];
+			List<ForkJoinTask<?>> classRewrites = new ArrayList<>();
+			for (int i = 0; i < entries.size(); i++) {
+				MappedJarEntry inEntry = entries.get(i);
+				if (inEntry.getName().endsWith(".class")) {
+					int index = i;
+					Runnable classRewrite = () -> rewrittenClasses[index] = rewriteDependencyClass(dependencyJar, inEntry, dependencyEntry, rewriters, resolvedTypeNames);
+					if (ForkJoinTask.inForkJoinPool()) {
+						classRewrites.add(ForkJoinTask.adapt(classRewrite));
+					} else {
+						classRewrite.run();
 					}
 				}
-				if (wasRewritten) {
-//					System.out.println("Rewrote "+inEntry.getName()+" inside "+dependencyEntry.getName());
-					ZipEntry outEntry = new ZipEntry(inEntry);
-					outEntry.setCompressedSize(-1);
-					newDependencyOutputStream.putNextEntry(outEntry);
-					newDependencyOutputStream.write(bytes);
-				} else {
-					ZipEntry outEntry = new ZipEntry(inEntry);
-					newDependencyOutputStream.putNextEntry(outEntry);
-					while (zis.available() > 0) {
-						int read = zis.read(buffer);
-						if (read >= 0) {
-							newDependencyOutputStream.write(buffer, 0, read);
-						}
+			}
+			ForkJoinTask.invokeAll(classRewrites);
+
+			// Stream the rebuilt jar through a bounded buffer (spilling to a temp file for big dependencies), the
+			// CRC and size needed for the STORED entry are worked out as it goes
+			SpillBuffer content = new SpillBuffer();
+			try {
+				JarWriter newDependencyWriter = new JarWriter(content);
+				for (int i = 0; i < entries.size(); i++) {
+					MappedJarEntry inEntry = entries.get(i);
+					byte[] bytes = rewrittenClasses[i];
+					if (bytes != null) {
+//						System.out.println("Rewrote "+inEntry.getName()+" inside "+dependencyEntry.getName());
+						newDependencyWriter.writeEntry(inEntry, bytes);
+					} else {
+						newDependencyWriter.writeRaw(dependencyJar, inEntry);
 					}
 				}
-				inEntry = zis.getNextEntry();
-			}
-			newDependencyOutputStream.flush();
-			newDependencyOutputStream.close();
-			byte[] bs = baos.toByteArray();
-//			outDependencyEntry.setCompressedSize(-1);
-			CRC32 checksum = new CRC32();
-			checksum.update(bs);
-			outDependencyEntry.setCompressedSize(bs.length);
-			outDependencyEntry.setSize(bs.length);
-			outDependencyEntry.setCrc(checksum.getValue());
-			zos.putNextEntry(outDependencyEntry);
-			zos.write(bs);
-			zos.closeEntry();
-			zos.setMethod(ZipOutputStream.DEFLATED);
-
+				newDependencyWriter.finish();
+			} catch (IOException | RuntimeException e) {
+				content.close();
+				throw e;
+			}
+			if (cacheKey != null) {
+				rewriteCache.store(cacheKey, content, resolvedTypeNames, typeSystem);
+			}
+			return new RewrittenEntry(outDependencyEntry, content);
 //			System.out.println("Size of rebuilt inner jar is "+bs.length+"  "+totalSize+"   (#"+count+" entries)");
 		} catch (IOException ioe) {
 			throw new RuntimeException("Unexpected problem rewriting nested jar: " + dependencyEntry.getName(), ioe);
 		}
 	}
 
+	/**
+	 * @return the rewritten bytes for a class in a dependency, or null if no rewriter changed it
+	 */
+	private byte[] rewriteDependencyClass(MappedJar dependencyJar, MappedJarEntry inEntry, ZipEntry dependencyEntry,
+			List<Rewriter> rewriters, Set<String> resolvedTypeNames) {
+		String entryName = inEntry.getName();
+		String typename = entryName.substring(0, entryName.length()-".class".length());
+		byte[] bytes = null;
+		typeSystem.recordResolutions(resolvedTypeNames);
+		try {
+			for (Rewriter rewriter: rewriters) {
+//				System.out.println("Asking "+rewriter+" to rewrite "+entryName+" from "+dependencyEntry.getName());
+				byte[] newbytes = rewriter.rewriteClass((bytes==null)?dependencyJar.getInputStream(inEntry):new ByteArrayInputStream(bytes), typename, dependencyEntry.getName());
+				if (newbytes != null) {
+					bytes = newbytes;
+				}
+			}
+		} catch (IOException ioe) {
+			throw new RuntimeException("Unexpected problem rewriting " + entryName + " in nested jar: " + dependencyEntry.getName(), ioe);
+		} finally {
+			typeSystem.recordResolutions(null);
+		}
+		if (bytes != null) {
+			dependencyJar.release(inEntry);
+		}
+		return bytes;
+	}
+
 	private String getTypeName(String name) {
 		return name.substring(APP_CLASSES_PREFIX.length(), name.length() - 6);
 	}
 
+	/**
+	 * When updating an earlier output only changed entries are written, along with any dependency that would now be
+	 * rewritten differently to last time.
+	 *
+	 * @param dependencyRewrites collects how each dependency of an exploded output is going to be written
+	 */
+	private boolean needsWriting(MappedJarEntry entry, Map<String, String> dependencyRewrites) {
+		String entryName = entry.getName();
+		if (bootJar instanceof ExplodedJar && isDependency(entryName)) {
+			List<Rewriter> rewriters = getDependencyRewriters(entryName);
+			String rewrite = rewriters.isEmpty() ? "" : (rewriteCache == null) ? null
+					: rewriteCache.computeKey(bootJar.getNestedJar(entry), entryName, rewriters);
+			if (changedEntries != null && rewrite != null && rewrite.equals(writtenDependencies.get(entryName))
+					&& !changedEntries.contains(entryName)) {
+				return false;
+			}
+			dependencyRewrites.put(entryName, rewrite);
+			return true;
+		}
+		return changedEntries == null || changedEntries.contains(entryName);
+	}
+
 	private File getOutputJarName() {
 		String inputJarName = inputJar.getAbsolutePath();
+		if (inputJar.isDirectory()) {
+			return new File(inputJarName + ".nox");
+		}
 		String outputJarName = inputJarName.substring(0, inputJarName.length() - 4) + ".nox.jar";
 		return new File(outputJarName);
 	}
 
+	/**
+	 * An exploded input is written out as an exploded directory, replacing the output of any previous run (or
+	 * updating it in place when only some entries have changed).
+	 */
+	private ArchiveWriter createWriter(File output) throws IOException {
+		if (bootJar instanceof ExplodedJar) {
+			if (changedEntries != null) {
+				return new DirectoryWriter(output, true);
+			}
+			FileUtils.deleteRecursively(output.toPath());
+			return new DirectoryWriter(output, false);
+		}
+		return new JarWriter(new FileOutputStream(output));
+	}
+
 	public final static String APP_CLASSES_PREFIX = "BOOT-INF/classes/";
 	public final static String DEPENDENCY_JARS_PREFIX = "BOOT-INF/lib/";
 
+	private final static String[] NO_INTERFACES = new String[0];
+
 	class ClassInfoCollectorVisitor extends ClassVisitor {
 
 		private ClassInfo ci;
 
-		public ClassInfoCollectorVisitor(int api, ZipEntry containingEntry) {
+		private List<ScanCache.AnnotationEvent> events;
+
+		/**
+		 * @param events if not null, every annotation passed to the collectors is also recorded here
+		 */
+		public ClassInfoCollectorVisitor(int api, ZipEntry containingEntry, List<ScanCache.AnnotationEvent> events) {
 			super(api);
 			ci = new ClassInfo();
 			ci.setContainingEntry(containingEntry);
+			this.events = events;
 		}
 
 		@Override
@@ -364,6 +848,7 @@ public class JarOptimizer {
 			super.visit(version, access, name, signature, superName, interfaces);
 			ci.setClassName(name);
 			ci.setAccess(access);
+			ci.setSupertypes(superName, (interfaces == null) ? NO_INTERFACES : interfaces);
 		}
 
 		@Override
@@ -378,15 +863,11 @@ public class JarOptimizer {
 			return new FieldInfoCollectorVisitor(name + desc, fv);
 		}
 
-		/**
-		 * Determine the set of optimizers that match this annotation.
-		 */
-		private List<Collector> checkAnnotations(ElementType type, String desc) {
-			List<Collector> result = new ArrayList<>();
-			for (Collector collector : collectors) {
-				collector.processAnnotation(ci, type, desc);
+		private void checkAnnotations(ElementType type, String desc) {
+			if (events != null) {
+				events.add(new ScanCache.AnnotationEvent(type, desc));
 			}
-			return result;
+			JarOptimizer.this.checkAnnotations(ci, type, desc);
 		}
 
 		@Override
@@ -441,42 +922,155 @@ public class JarOptimizer {
 
 	}
 
-	private ClassInfo processClass(InputStream inputStream, ZipEntry containingEntry) {
+	/**
+	 * A class file to visit during the scan, either an application class in the boot jar or a class in one of
+	 * the nested dependency jars.
+	 */
+	static class ClassToScan {
+		final MappedJar jar;
+		final MappedJarEntry entry;
+		final ZipEntry containingEntry;
+		// When set the class is not visited, what the scan cache recorded for it is replayed
+		final ScanCache.CachedClass cachedClass;
+		// Set when the result is going to be stored in the scan cache
+		List<ScanCache.AnnotationEvent> events;
+		ClassInfo classInfo;
+
+		ClassToScan(MappedJar jar, MappedJarEntry entry, ZipEntry containingEntry) {
+			this.jar = jar;
+			this.entry = entry;
+			this.containingEntry = containingEntry;
+			this.cachedClass = null;
+		}
+
+		ClassToScan(ScanCache.CachedClass cachedClass, ZipEntry containingEntry) {
+			this.jar = null;
+			this.entry = null;
+			this.containingEntry = containingEntry;
+			this.cachedClass = cachedClass;
+		}
+	}
+
+	/**
+	 * Fork/join task that visits a range of the classes to scan, splitting until the range is small enough.
+	 * Results land in the slot matching the class position so they come out in the same order as a sequential
+	 * scan.
+	 */
+	class ScanTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final int THRESHOLD = 64;
+
+		private final List<ClassToScan> classesToScan;
+		private final ClassInfo[] results;
+		private final int from;
+		private final int to;
+
+		ScanTask(List<ClassToScan> classesToScan, ClassInfo[] results, int from, int to) {
+			this.classesToScan = classesToScan;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= THRESHOLD) {
+				for (int i = from; i < to; i++) {
+					results[i] = processClass(classesToScan.get(i));
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ScanTask(classesToScan, results, from, middle),
+						new ScanTask(classesToScan, results, middle, to));
+			}
+		}
+	}
+
+	private ClassInfo processClass(ClassToScan classToScan) {
+		if (classToScan.cachedClass != null) {
+			return replayCachedClass(classToScan.cachedClass, classToScan.containingEntry);
+		}
 		try {
-			ClassInfoCollectorVisitor cv = new ClassInfoCollectorVisitor(Opcodes.ASM6, containingEntry);
-			ClassReader fileReader = new ClassReader(inputStream);
-			fileReader.accept(cv, 0);
-			ClassInfo ci = cv.getClassInfo();
+			ClassInfo ci = processClass(classToScan.jar, classToScan.entry, classToScan.containingEntry, classToScan.events);
+			classToScan.classInfo = ci;
 			return ci;
 		} catch (IOException ioe) {
-			throw new IllegalStateException("Unexpected problem loading class from inputstream", ioe);
+			throw new IllegalStateException("Unexpected problem processing " + classToScan.entry.getName()
+					+ " from " + classToScan.jar.getName(), ioe);
 		}
 	}
 
-	private List<ClassInfo> scanNestedDependencyJar(InputStream inputStream, ZipEntry containingEntry) {
-		System.out.println("Scanning "+containingEntry.getName());
-		List<ClassInfo> classesFromJar = new ArrayList<>();
-		try {
-			ZipInputStream zis = new ZipInputStream(inputStream);
-			ZipEntry ze = zis.getNextEntry();
-			while (ze != null) {
-				String entryName = ze.getName();
-				if (entryName.endsWith(".class")) {
-					classesFromJar.add(processClass(zis, containingEntry));
+	private ClassInfo processClass(MappedJar jar, MappedJarEntry entry, ZipEntry containingEntry,
+			List<ScanCache.AnnotationEvent> events) throws IOException {
+		byte[] bytes = jar.getBytes(entry);
+		ClassInfoCollectorVisitor cv = new ClassInfoCollectorVisitor(Opcodes.ASM6, containingEntry, events);
+		ClassReader fileReader = new ClassReader(bytes);
+		fileReader.accept(cv, 0);
+		ClassInfo ci = cv.getClassInfo();
+		if (memoryBudget == 0 && isRewriteCandidate(ci)) {
+			// Decoded once here, keep it for the type system and the rewrite rather than decoding it again
+			jar.retain(entry, bytes);
+		}
+		return ci;
+	}
+
+	private ClassInfo replayCachedClass(ScanCache.CachedClass cachedClass, ZipEntry containingEntry) {
+		ClassInfo ci = new ClassInfo();
+		ci.setContainingEntry(containingEntry);
+		ci.setClassName(cachedClass.name);
+		ci.setAccess(cachedClass.access);
+		ci.setSupertypes(cachedClass.superName, cachedClass.interfaces);
+		for (ScanCache.AnnotationEvent event: cachedClass.events) {
+			checkAnnotations(ci, event.elementType, event.desc);
+		}
+		return ci;
+	}
+
+	/**
+	 * Pass an annotation found on a class (or one of its members) to all the collectors.
+	 */
+	private void checkAnnotations(ClassInfo ci, ElementType type, String desc) {
+		for (Collector collector : collectors) {
+			if (collector.supportsParallelScan()) {
+				collector.processAnnotation(ci, type, desc);
+			} else {
+				synchronized (collector) {
+					collector.processAnnotation(ci, type, desc);
 				}
-				ze = zis.getNextEntry();
 			}
-		} catch (IOException ioe) {
-			throw new IllegalStateException("Unexpected problem processing jar from inputstream", ioe);
 		}
-		if (classesFromJar.size() != 0) {
-			long configClassesCount = classesFromJar.stream().filter(j -> j.isConfigurationClass()).count();
-			if (configClassesCount != 0) {
-				System.out.println(containingEntry.getName() + " contains #" + classesFromJar.size() + " classes ("
+	}
+
+	private boolean isRewriteCandidate(ClassInfo ci) {
+		for (Collector collector : collectors) {
+			if (collector instanceof Rewriter && ((Rewriter) collector).shouldRewriteClass(ci)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void reportScannedDependencies(ClassInfo[] classInfos) {
+		// Classes from the same dependency are contiguous in the scan order
+		int i = 0;
+		while (i < classInfos.length) {
+			ZipEntry containingEntry = classInfos[i].getContainingEntry();
+			int classCount = 0;
+			int configClassesCount = 0;
+			while (i < classInfos.length && classInfos[i].getContainingEntry() == containingEntry) {
+				classCount++;
+				if (classInfos[i].isConfigurationClass()) {
+					configClassesCount++;
+				}
+				i++;
+			}
+			if (containingEntry != null && configClassesCount != 0) {
+				out.println(containingEntry.getName() + " contains #" + classCount + " classes ("
 						+ configClassesCount + " configuration classes)");
 			}
 		}
-		return classesFromJar;
 	}
 
 }
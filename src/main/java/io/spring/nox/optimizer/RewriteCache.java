@@ -0,0 +1,279 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.optimizer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.spring.nox.jar.MappedJar;
+import io.spring.nox.jar.SpillBuffer;
+import io.spring.nox.optimizer.spi.Rewriter;
+import io.spring.nox.type.Type;
+import io.spring.nox.type.TypeSystem;
+import io.spring.nox.type.TypeSystem.MissingTypeException;
+
+/**
+ * On disk cache of rewritten dependency jars. The key covers the content of the jar, the rewriters (their class
+ * files, so a new version of a rewriter never picks up old output) and what each rewriter says decides its rewrite
+ * of that jar. Alongside each rewritten jar the cache records every type that was resolved while producing it, plus
+ * their supertypes, and where each came from. A cached jar is only used when the current type system would load
+ * all of those from the same place, so the same spring-boot-autoconfigure rewritten for one application can be
+ * dropped straight into another.
+ *
+ * @author Andy Clement
+ */
+public class RewriteCache {
+
+	private final static int MAGIC = 0x4e4f5852; // NOXR
+
+	private final static int FORMAT_VERSION = 1;
+
+	private final File cacheDirectory;
+
+	private final Map<Class<?>, String> rewriterFingerprints = new ConcurrentHashMap<>();
+
+	private PrintStream out = System.out;
+
+	public RewriteCache(File cacheDirectory) {
+		this.cacheDirectory = new File(cacheDirectory, "rewrite");
+	}
+
+	/**
+	 * Report entries that cannot be read or written to the given stream rather than {@link System#out}.
+	 */
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * @return the key for rewriting the dependency with these rewriters, or null if one of them does not support
+	 * reusing its results
+	 */
+	public String computeKey(MappedJar dependencyJar, String jarname, List<Rewriter> rewriters) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			update(digest, Integer.toString(FORMAT_VERSION));
+			update(digest, dependencyJar.getContentKey());
+			for (Rewriter rewriter : rewriters) {
+				String rewriteKey = rewriter.getDependencyRewriteKey(jarname);
+				if (rewriteKey == null) {
+					return null;
+				}
+				update(digest, rewriter.getClass().getName());
+				update(digest, getFingerprint(rewriter.getClass()));
+				update(digest, rewriteKey);
+			}
+			return toHex(digest.digest());
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException("Unable to compute rewrite cache key for " + jarname, nsae);
+		}
+	}
+
+	/**
+	 * @return the cached rewrite, or null if there isn't one or it was built against a different view of the types
+	 */
+	public CachedRewrite load(String key, TypeSystem typeSystem) {
+		File dataFile = getFile(key, ".jar");
+		File typesFile = getFile(key, ".types");
+		if (!typesFile.exists() || !dataFile.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(typesFile), 65536))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				return null;
+			}
+			long crc = in.readLong();
+			long size = in.readLong();
+			if (dataFile.length() != size) {
+				return null;
+			}
+			int typeCount = in.readInt();
+			for (int i = 0; i < typeCount; i++) {
+				String typename = in.readUTF();
+				String origin = in.readUTF();
+				if (!origin.equals(typeSystem.getOrigin(typename))) {
+					return null;
+				}
+			}
+			return new CachedRewrite(dataFile, crc, size);
+		} catch (IOException | RuntimeException e) {
+			out.println("Ignoring unreadable rewrite cache entry " + typesFile + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Store a rewritten jar along with the origins of the types that were resolved to produce it.
+	 */
+	public void store(String key, SpillBuffer content, Collection<String> resolvedTypeNames, TypeSystem typeSystem) {
+		File dataFile = getFile(key, ".jar");
+		File typesFile = getFile(key, ".types");
+		try {
+			Map<String, String> origins = new LinkedHashMap<>();
+			for (String typename : withSupertypes(resolvedTypeNames, typeSystem)) {
+				origins.put(typename, typeSystem.getOrigin(typename));
+			}
+			Files.createDirectories(cacheDirectory.toPath());
+			// The types file goes in last, an entry without one is never used
+			Files.deleteIfExists(typesFile.toPath());
+			writeAtomically(dataFile, out -> content.writeTo(out));
+			writeAtomically(typesFile, out -> {
+				DataOutputStream dos = new DataOutputStream(out);
+				dos.writeInt(MAGIC);
+				dos.writeInt(FORMAT_VERSION);
+				dos.writeLong(content.getCrc());
+				dos.writeLong(content.getSize());
+				dos.writeInt(origins.size());
+				for (Map.Entry<String, String> origin : origins.entrySet()) {
+					dos.writeUTF(origin.getKey());
+					dos.writeUTF(origin.getValue());
+				}
+				dos.flush();
+			});
+		} catch (IOException ioe) {
+			// Not fatal, the next run just rewrites the jar again
+			out.println("Unable to write rewrite cache entry " + dataFile + ": " + ioe);
+		}
+	}
+
+	/**
+	 * Types are often consulted through ones that were already resolved (cached interfaces for example), so rather
+	 * than rely on seeing every lookup include the whole supertype hierarchy of what was resolved.
+	 */
+	private Collection<String> withSupertypes(Collection<String> typenames, TypeSystem typeSystem) {
+		TreeSet<String> result = new TreeSet<>();
+		Deque<String> toVisit = new ArrayDeque<>(typenames);
+		while (!toVisit.isEmpty()) {
+			String typename = toVisit.pop();
+			if (result.add(typename)) {
+				try {
+					Type type = typeSystem.resolveSlashed(typename);
+					if (type.getSuperclassName() != null) {
+						toVisit.push(type.getSuperclassName());
+					}
+					toVisit.addAll(type.getInterfaceNames());
+				} catch (MissingTypeException mte) {
+					// recorded as missing
+				}
+			}
+		}
+		return result;
+	}
+
+	private String getFingerprint(Class<?> rewriterClass) {
+		return rewriterFingerprints.computeIfAbsent(rewriterClass, c -> {
+			try {
+				MessageDigest digest = MessageDigest.getInstance("SHA-256");
+				addClassBytes(digest, c);
+				return toHex(digest.digest());
+			} catch (NoSuchAlgorithmException | IOException e) {
+				throw new IllegalStateException("Unable to fingerprint " + c.getName(), e);
+			}
+		});
+	}
+
+	private void addClassBytes(MessageDigest digest, Class<?> clazz) throws IOException {
+		String resourceName = clazz.getName().replace('.', '/') + ".class";
+		ClassLoader classLoader = (clazz.getClassLoader() == null) ? ClassLoader.getSystemClassLoader()
+				: clazz.getClassLoader();
+		try (InputStream in = classLoader.getResourceAsStream(resourceName)) {
+			if (in == null) {
+				throw new IOException("Unable to find " + resourceName);
+			}
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, count);
+			}
+		}
+		for (Class<?> nested : clazz.getDeclaredClasses()) {
+			addClassBytes(digest, nested);
+		}
+	}
+
+	private void writeAtomically(File file, ContentWriter writer) throws IOException {
+		File tempFile = File.createTempFile(file.getName(), ".tmp", cacheDirectory);
+		try {
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), 65536)) {
+				writer.write(out);
+			}
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tempFile.toPath());
+		}
+	}
+
+	private File getFile(String key, String suffix) {
+		return new File(cacheDirectory, key + suffix);
+	}
+
+	private static void update(MessageDigest digest, String string) {
+		digest.update(string.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	interface ContentWriter {
+		void write(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * A previously rewritten dependency jar, to be written as a STORED entry.
+	 */
+	static class CachedRewrite {
+		final File file;
+		final long crc;
+		final long size;
+
+		CachedRewrite(File file, long crc, long size) {
+			this.file = file;
+			this.crc = crc;
+			this.size = size;
+		}
+	}
+
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.optimizer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.annotation.ElementType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.spring.nox.jar.MappedJar;
+import io.spring.nox.jar.MappedJarEntry;
+
+/**
+ * On disk cache of what the scan saw in each dependency jar, keyed by the CRC and size of the nested jar entry along
+ * with the {@link MappedJar#getContentKey() content key} of the nested jar (see {@link #computeKey}). For every class
+ * it records the name, access flags and direct supertypes plus each visible annotation (where it was found and its
+ * descriptor). That only depends on the bytes of the jar, so any number of applications that ship the same
+ * spring-boot-autoconfigure can share one entry. On a hit the classes are not decoded at all, the recorded
+ * annotations are replayed into the collectors instead.
+ * <p>
+ * Files are written to a temporary name and moved into place, so concurrent builds sharing a cache directory never
+ * see a partial entry. A file that cannot be read (wrong format version, truncated) is treated as a miss.
+ *
+ * @author Andy Clement
+ */
+public class ScanCache {
+
+	private final static int MAGIC = 0x4e4f5853; // NOXS
+
+	/**
+	 * Bump whenever what is recorded per class changes.
+	 */
+	private final static int FORMAT_VERSION = 2;
+
+	private final static ElementType[] ELEMENT_TYPES = ElementType.values();
+
+	private final File cacheDirectory;
+
+	// Entries this process has already read or written, an optimizer that runs repeatedly asks for the same ones
+	private final Map<String, List<CachedClass>> loaded = new ConcurrentHashMap<>();
+
+	private PrintStream out = System.out;
+
+	public ScanCache(File cacheDirectory) {
+		this.cacheDirectory = new File(cacheDirectory, "scan");
+	}
+
+	/**
+	 * Report entries that cannot be read or written to the given stream rather than {@link System#out}.
+	 */
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * @return the key for the scan of a dependency, the hex SHA-256 of the CRC and size of its entry in the boot jar
+	 * plus the content key of the nested jar itself
+	 */
+	public String computeKey(MappedJarEntry dependencyEntry, MappedJar dependencyJar) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			update(digest, Long.toHexString(dependencyEntry.getCrc()));
+			update(digest, Long.toString(dependencyEntry.getSize()));
+			update(digest, dependencyJar.getContentKey());
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest()) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException("Unable to compute scan cache key for " + dependencyEntry.getName(), nsae);
+		}
+	}
+
+	/**
+	 * @return the recorded classes for the key, or null if there is no usable entry
+	 */
+	public List<CachedClass> load(String key) {
+		List<CachedClass> cachedClasses = loaded.get(key);
+		if (cachedClasses != null) {
+			return cachedClasses;
+		}
+		cachedClasses = read(key);
+		if (cachedClasses != null) {
+			loaded.put(key, cachedClasses);
+		}
+		return cachedClasses;
+	}
+
+	private List<CachedClass> read(String key) {
+		File file = getFile(key);
+		if (!file.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536))) {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				return null;
+			}
+			String[] strings = new String[in.readInt()];
+			for (int i = 0; i < strings.length; i++) {
+				strings[i] = in.readUTF();
+			}
+			int classCount = in.readInt();
+			List<CachedClass> cachedClasses = new ArrayList<>(classCount);
+			for (int c = 0; c < classCount; c++) {
+				String name = strings[in.readInt()];
+				int access = in.readInt();
+				int superIndex = in.readInt();
+				String superName = (superIndex == -1) ? null : strings[superIndex];
+				String[] interfaces = new String[in.readInt()];
+				for (int i = 0; i < interfaces.length; i++) {
+					interfaces[i] = strings[in.readInt()];
+				}
+				int eventCount = in.readInt();
+				List<AnnotationEvent> events = new ArrayList<>(eventCount);
+				for (int e = 0; e < eventCount; e++) {
+					ElementType elementType = ELEMENT_TYPES[in.readByte()];
+					events.add(new AnnotationEvent(elementType, strings[in.readInt()]));
+				}
+				cachedClasses.add(new CachedClass(name, access, superName, interfaces, events));
+			}
+			return cachedClasses;
+		} catch (IOException | RuntimeException e) {
+			out.println("Ignoring unreadable scan cache entry " + file + ": " + e);
+			return null;
+		}
+	}
+
+	public void store(String key, List<CachedClass> cachedClasses) {
+		loaded.put(key, cachedClasses);
+		Map<String, Integer> stringIndexes = new HashMap<>();
+		List<String> strings = new ArrayList<>();
+		for (CachedClass cachedClass : cachedClasses) {
+			index(cachedClass.name, stringIndexes, strings);
+			if (cachedClass.superName != null) {
+				index(cachedClass.superName, stringIndexes, strings);
+			}
+			for (String interfaceName : cachedClass.interfaces) {
+				index(interfaceName, stringIndexes, strings);
+			}
+			for (AnnotationEvent event : cachedClass.events) {
+				index(event.desc, stringIndexes, strings);
+			}
+		}
+		File file = getFile(key);
+		try {
+			Files.createDirectories(cacheDirectory.toPath());
+			File tempFile = File.createTempFile(key, ".tmp", cacheDirectory);
+			try {
+				try (DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(tempFile), 65536))) {
+					out.writeInt(MAGIC);
+					out.writeInt(FORMAT_VERSION);
+					out.writeInt(strings.size());
+					for (String string : strings) {
+						out.writeUTF(string);
+					}
+					out.writeInt(cachedClasses.size());
+					for (CachedClass cachedClass : cachedClasses) {
+						out.writeInt(stringIndexes.get(cachedClass.name));
+						out.writeInt(cachedClass.access);
+						out.writeInt((cachedClass.superName == null) ? -1 : stringIndexes.get(cachedClass.superName));
+						out.writeInt(cachedClass.interfaces.length);
+						for (String interfaceName : cachedClass.interfaces) {
+							out.writeInt(stringIndexes.get(interfaceName));
+						}
+						out.writeInt(cachedClass.events.size());
+						for (AnnotationEvent event : cachedClass.events) {
+							out.writeByte(event.elementType.ordinal());
+							out.writeInt(stringIndexes.get(event.desc));
+						}
+					}
+				}
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tempFile.toPath());
+			}
+		} catch (IOException ioe) {
+			// Not fatal, the next run just scans the jar again
+			out.println("Unable to write scan cache entry " + file + ": " + ioe);
+		}
+	}
+
+	private File getFile(String key) {
+		return new File(cacheDirectory, key + ".scan");
+	}
+
+	private static void update(MessageDigest digest, String string) {
+		digest.update(string.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	private static void index(String string, Map<String, Integer> stringIndexes, List<String> strings) {
+		if (!stringIndexes.containsKey(string)) {
+			stringIndexes.put(string, strings.size());
+			strings.add(string);
+		}
+	}
+
+	/**
+	 * A visible annotation seen by the scan, in the form it is passed to
+	 * {@link io.spring.nox.optimizer.spi.Collector#processAnnotation(ClassInfo, ElementType, String)}.
+	 */
+	static class AnnotationEvent {
+		final ElementType elementType;
+		final String desc;
+
+		AnnotationEvent(ElementType elementType, String desc) {
+			this.elementType = elementType;
+			this.desc = desc;
+		}
+	}
+
+	/**
+	 * What the scan recorded for one class.
+	 */
+	static class CachedClass {
+		final String name;
+		final int access;
+		final String superName;
+		final String[] interfaces;
+		final List<AnnotationEvent> events;
+
+		CachedClass(String name, int access, String superName, String[] interfaces, List<AnnotationEvent> events) {
+			this.name = name;
+			this.access = access;
+			this.superName = superName;
+			this.interfaces = interfaces;
+			this.events = events;
+		}
+	}
+
+}
@@ -15,11 +15,13 @@
  */
 package io.spring.nox.optimizer.collectors;
 
+import java.io.PrintStream;
 import java.lang.annotation.ElementType;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 
 import io.spring.nox.optimizer.ClassInfo;
 import io.spring.nox.optimizer.spi.Collector;
@@ -30,15 +32,21 @@ import io.spring.nox.type.TypeSystem;
  */
 public class CommonAnnotationBeanPostProcessorCollector implements Collector {
 
-	public static Map<String,Integer> annotationCounts;
 	public static List<String> annotationNames;
 
 	static {
-		annotationCounts = new HashMap<>();
-		annotationCounts.put(toType("javax.xml.ws.WebServiceRef"),0);
-		annotationCounts.put(toType("javax.ejb.EJB"),0);
-		annotationCounts.put(toType("javax.annotation.Resource"),0);
-		annotationNames = annotationCounts.entrySet().stream().map(e -> e.getKey()).collect(Collectors.toList());
+		annotationNames = Collections.unmodifiableList(Arrays.asList(
+				toType("javax.xml.ws.WebServiceRef"),
+				toType("javax.ejb.EJB"),
+				toType("javax.annotation.Resource")));
+	}
+
+	private final Map<String,Integer> annotationCounts = new ConcurrentHashMap<>();
+
+	public CommonAnnotationBeanPostProcessorCollector() {
+		for (String annotationName: annotationNames) {
+			annotationCounts.put(annotationName, 0);
+		}
 	}
 	
 	static String toType(String s) {
@@ -58,23 +66,24 @@ public class CommonAnnotationBeanPostProcessorCollector implements Collector {
 	
 	@Override
 	public void processAnnotation(ClassInfo ci, ElementType type, String desc) {
-		Integer count = annotationCounts.get(desc);
-		if (count!=null) {
-			annotationCounts.put(desc, count+1);
-		}
+		annotationCounts.computeIfPresent(desc, (k, count) -> count+1);
 		for (String annotationName: annotationNames) {
 			if (isUsedAsMetaAnnotation(typeSystem, desc, annotationName)) { // TODO are these usable as metas?
-				count = annotationCounts.get(desc);
-				annotationCounts.put(desc, count+1);
+				annotationCounts.computeIfPresent(desc, (k, count) -> count+1);
 			}			
 		}
 	}
 
 	@Override
-	public void summarize() {
-		System.out.println("CommonAnnotationBeanPostProcessorCollector");
+	public boolean supportsParallelScan() {
+		return true;
+	}
+
+	@Override
+	public void summarize(PrintStream out) {
+		out.println("CommonAnnotationBeanPostProcessorCollector");
 		for (Map.Entry<String, Integer> entry: annotationCounts.entrySet()) {
-			System.out.println("Occurrences of "+toName(entry.getKey())+"=#"+entry.getValue());
+			out.println("Occurrences of "+toName(entry.getKey())+"=#"+entry.getValue());
 		}
 	}
 
@@ -17,13 +17,18 @@ package io.spring.nox.optimizer.collectors;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.lang.annotation.ElementType;
 import java.lang.reflect.Modifier;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 
 import org.springframework.asm.ClassReader;
@@ -40,6 +45,7 @@ import io.spring.nox.optimizer.spi.Rewriter;
 import io.spring.nox.type.Method;
 import io.spring.nox.type.Type;
 import io.spring.nox.type.TypeSystem;
+import io.spring.nox.type.TypeSystem.MissingTypeException;
 
 /**
  * @author Andy Clement
@@ -49,7 +55,12 @@ public class ConfigurationClassCollectorRewriter implements Collector, Rewriter
 	public final static String CONFIGURATION_ANNOTATION = "Lorg/springframework/context/annotation/Configuration;";
 
 	private TypeSystem typeSystem;
-	private List<ClassInfo> configurationClasses = new ArrayList<>();
+	private Set<ClassInfo> configurationClasses = ConcurrentHashMap.newKeySet();
+
+	// Indexes of the configuration classes built when the scan completes, looked up for every class and jar rewritten
+	private Set<String> applicationConfigurationTypes = Collections.emptySet();
+	private Map<String, Set<String>> dependencyConfigurationTypesByJar = Collections.emptyMap();
+	private Set<String> dependencyConfigurationTypes = Collections.emptySet();
 	
 	public void setTypeSystem(TypeSystem typeSystem) {
 		this.typeSystem = typeSystem;
@@ -67,7 +78,31 @@ public class ConfigurationClassCollectorRewriter implements Collector, Rewriter
 	}
 
 	@Override
-	public void summarize() {
+	public boolean supportsParallelScan() {
+		return true;
+	}
+
+	@Override
+	public void scanComplete() {
+		Set<String> applicationClasses = new HashSet<>();
+		Map<String, Set<String>> byJar = new HashMap<>();
+		Set<String> dependencyClasses = new HashSet<>();
+		for (ClassInfo configurationClass: configurationClasses) {
+			if (configurationClass.isApplicationClass()) {
+				applicationClasses.add(configurationClass.getTypeName());
+			} else {
+				byJar.computeIfAbsent(configurationClass.getContainingEntry().getName(), jarname -> new HashSet<>())
+						.add(configurationClass.getTypeName());
+				dependencyClasses.add(configurationClass.getTypeName());
+			}
+		}
+		this.applicationConfigurationTypes = applicationClasses;
+		this.dependencyConfigurationTypesByJar = byJar;
+		this.dependencyConfigurationTypes = dependencyClasses;
+	}
+
+	@Override
+	public void summarize(PrintStream out) {
 		int applicationConfigurationClasses = 0;
 		Map<String, Integer> dependencyConfigurationClasses = new HashMap<>();
 		for (ClassInfo configurationClass: configurationClasses) {
@@ -83,29 +118,51 @@ public class ConfigurationClassCollectorRewriter implements Collector, Rewriter
 				}
 			}
 		}
-		System.out.println("ConfigurationClassCollector");
-		System.out.println("Application configuration class count: "+applicationConfigurationClasses);
+		out.println("ConfigurationClassCollector");
+		out.println("Application configuration class count: "+applicationConfigurationClasses);
 		for (Map.Entry<String,Integer> entry: dependencyConfigurationClasses.entrySet() ) {
-			System.out.println(entry.getKey()+" configuration class count: "+entry.getValue());
+			out.println(entry.getKey()+" configuration class count: "+entry.getValue());
 		}
 	}
 
 	@Override
 	public boolean shouldRewriteApplicationClass(String typeName) {
-//		System.out.println("Checking "+configurationClasses+" for "+typeName);
-		return configurationClasses.stream().
-				filter(ci -> ci.isApplicationClass()).
-				filter(ci->ci.getTypeName().equals(typeName)).findAny().isPresent();
+		return applicationConfigurationTypes.contains(typeName);
 	}
 
 
+	@Override
+	public boolean shouldRewriteClass(ClassInfo ci) {
+		return configurationClasses.contains(ci);
+	}
+
 	@Override
 	public boolean shouldRewriteDependencyJar(String jarname) {
-		return configurationClasses.stream().
-				filter(ci -> !ci.isApplicationClass()).
-				filter(ci -> ci.getContainingEntry().getName().equals(jarname)).
-//				filter(ci-> { System.out.println("dependency: "+ci);return true;}).
-				findAny().isPresent();
+		return dependencyConfigurationTypesByJar.containsKey(jarname);
+	}
+
+	@Override
+	public String getDependencyRewriteKey(String jarname) {
+		// Which classes are rewritten, plus whether the superclass of each is also a rewritten dependency class since
+		// that changes the generated setBeanFactory()
+		return dependencyConfigurationTypesByJar.getOrDefault(jarname, Collections.emptySet()).stream().
+				map(typename -> {
+					String superName = getSuperclassName(typename);
+					return typename + ">" + superName + (isDependencyConfigurationClass(superName) ? "*" : "");
+				}).
+				sorted().collect(Collectors.joining(","));
+	}
+
+	private String getSuperclassName(String typename) {
+		try {
+			return typeSystem.resolve(typename).getSuperclassName();
+		} catch (MissingTypeException mte) {
+			return null;
+		}
+	}
+
+	private boolean isDependencyConfigurationClass(String typename) {
+		return typename != null && dependencyConfigurationTypes.contains(typename);
 	}
 
 	@Override
@@ -113,9 +170,8 @@ public class ConfigurationClassCollectorRewriter implements Collector, Rewriter
 		if (containingEntryName != null) {
 			// Need to double check as we have said we are interested in rewriting something in a dependency, but is
 			// this it?
-			if (!configurationClasses.stream()
-					.filter(ci -> ci.getContainingEntry()!=null && ci.getContainingEntry().getName().equals(containingEntryName))
-					.filter(ci->ci.getTypeName().equals(typename)).findFirst().isPresent()) {
+			if (!dependencyConfigurationTypesByJar.getOrDefault(containingEntryName, Collections.emptySet())
+					.contains(typename)) {
 				return null;
 			}
 		}
@@ -141,42 +197,10 @@ public class ConfigurationClassCollectorRewriter implements Collector, Rewriter
 			this.typeSystem = typeSystem;
 		}
 
-		// Implementation of getCommonSuperClass() that avoids Class.forName() - this needs a bunch of work!!!
+		// Implementation of getCommonSuperClass() that avoids Class.forName()
 		@Override
 		protected String getCommonSuperClass(final String type1, final String type2) {
-
-//			ResolvedType resolvedType1 = world.resolve(UnresolvedType.forName(type1.replace('/', '.')));
-			Type resolvedType1 = typeSystem.resolveSlashed(type1);
-//			ResolvedType resolvedType2 = world.resolve(UnresolvedType.forName(type2.replace('/', '.')));
-			Type resolvedType2 = typeSystem.resolveSlashed(type2);
-
-			if (resolvedType1.isAssignableFrom(resolvedType2)) {
-				return type1;
-			}
-
-			if (resolvedType2.isAssignableFrom(resolvedType1)) {
-				return type2;
-			}
-
-			if (resolvedType1.isInterface() || resolvedType2.isInterface()) {
-				return "java/lang/Object";
-			} else {
-				do {
-					resolvedType1 = resolvedType1.getSuperclass();
-					if (resolvedType1 == null) {
-						// This happens if some types are missing, the getSuperclass() call on
-						// MissingResolvedTypeWithKnownSignature will return the Missing type which
-						// in turn returns a superclass of null. By returning Object here it
-						// should surface the cantFindType message raised in the first problematic
-						// getSuperclass call
-						return "java/lang/Object";
-					}
-//					if (resolvedType1.isParameterizedOrGenericType()) {
-//						resolvedType1 = resolvedType1.getRawType();
-//					}
-				} while (!resolvedType1.isAssignableFrom(resolvedType2));
-				return resolvedType1.getName();// resolvedType1.getRawName().replace('.', '/');
-			}
+			return typeSystem.getCommonSuperclass(type1, type2);
 		}
 	}
 
@@ -234,7 +258,7 @@ public class ConfigurationClassCollectorRewriter implements Collector, Rewriter
 					beanMethods = Collections.emptyMap();
 				} else {
 					int id = 0;
-					beanMethods = new HashMap<>();
+					beanMethods = new LinkedHashMap<>();
 					for (Method m : methods) {
 						beanMethods.put(m, "spring$beanmethod$" + (id++));
 					}
@@ -396,7 +420,7 @@ public class ConfigurationClassCollectorRewriter implements Collector, Rewriter
 
 		public boolean shouldRewriteClass(String name) {
 			// TODO shouldn't this check application classes too?
-			return configurationClasses.stream().filter(ci->!ci.isApplicationClass()).filter(ci -> ci.getTypeName().equals(name)).findFirst().isPresent();			
+			return isDependencyConfigurationClass(name);
 		}
 		
 		private String[] toArray(String... strings) {
@@ -15,14 +15,16 @@
  */
 package io.spring.nox.optimizer.collectors;
 
+import java.io.PrintStream;
 import java.lang.annotation.ElementType;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 
 import io.spring.nox.optimizer.ClassInfo;
 import io.spring.nox.optimizer.spi.Collector;
@@ -33,14 +35,20 @@ import io.spring.nox.type.TypeSystem;
  */
 public class InitDestroyAnnotationBeanPostProcessorCollector implements Collector {
 
-	public static Map<String,Set<ClassInfo>> annotatedClassInfos;
 	public static List<String> annotationNames;
 
 	static {
-		annotatedClassInfos = new HashMap<>();
-		annotatedClassInfos.put(toType("javax.annotation.PostConstruct"),new HashSet<ClassInfo>());
-		annotatedClassInfos.put(toType("javax.annotation.PreDestroy"),new HashSet<ClassInfo>());
-		annotationNames = annotatedClassInfos.entrySet().stream().map(e -> e.getKey()).collect(Collectors.toList());
+		annotationNames = Collections.unmodifiableList(Arrays.asList(
+				toType("javax.annotation.PostConstruct"),
+				toType("javax.annotation.PreDestroy")));
+	}
+
+	private final Map<String,Set<ClassInfo>> annotatedClassInfos = new HashMap<>();
+
+	public InitDestroyAnnotationBeanPostProcessorCollector() {
+		for (String annotationName: annotationNames) {
+			annotatedClassInfos.put(annotationName, ConcurrentHashMap.newKeySet());
+		}
 	}
 	
 	static String toType(String s) {
@@ -67,7 +75,7 @@ public class InitDestroyAnnotationBeanPostProcessorCollector implements Collecto
 		for (String annotationName: annotationNames) {
 			if (isUsedAsMetaAnnotation(typeSystem, desc, annotationName)) { // TODO are these usable as metas?
 				cis = annotatedClassInfos.get(desc);
-				if (cis != null && !cis.contains(ci)) {
+				if (cis != null) {
 					cis.add(ci);
 				}
 			}			
@@ -75,10 +83,15 @@ public class InitDestroyAnnotationBeanPostProcessorCollector implements Collecto
 	}
 
 	@Override
-	public void summarize() {
-		System.out.println("InitDestroyAnnotationBeanPostProcessorCollector");
+	public boolean supportsParallelScan() {
+		return true;
+	}
+
+	@Override
+	public void summarize(PrintStream out) {
+		out.println("InitDestroyAnnotationBeanPostProcessorCollector");
 		for (Map.Entry<String, Set<ClassInfo>> entry: annotatedClassInfos.entrySet()) {
-			System.out.println("Occurrences of  "+toName(entry.getKey())+"=#"+entry.getValue().size()+"  "+entry.getValue());
+			out.println("Occurrences of  "+toName(entry.getKey())+"=#"+entry.getValue().size()+"  "+entry.getValue());
 		}
 	}
 
@@ -95,6 +108,8 @@ public class InitDestroyAnnotationBeanPostProcessorCollector implements Collecto
 				data.add(ci.getTypeName());
 			}
 		}
+		// The sets are filled concurrently, sort so the generated loader is the same from run to run
+		Collections.sort(data);
 		return data;
 	}
 
@@ -15,11 +15,14 @@
  */
 package io.spring.nox.optimizer.collectors;
 
+import java.io.PrintStream;
 import java.lang.annotation.ElementType;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 
 import io.spring.nox.optimizer.ClassInfo;
 import io.spring.nox.optimizer.spi.Collector;
@@ -30,17 +33,23 @@ import io.spring.nox.type.TypeSystem;
  */
 public class SpringCacheAnnotationParserCollector implements Collector {
 
-	public static Map<String,Integer> cachingAnnotationsCount;
 	public static List<String> cachingAnnotationNames;
 
 	static {
-		cachingAnnotationsCount = new HashMap<>();
-		cachingAnnotationsCount.put(toType("org.springframework.cache.annotation.CacheEvict"),0);
-		cachingAnnotationsCount.put(toType("org.springframework.cache.annotation.Caching"),0);
-		cachingAnnotationsCount.put(toType("org.springframework.cache.annotation.CachePut"),0);
-		cachingAnnotationsCount.put(toType("org.springframework.cache.annotation.Cacheable"),0);
-		cachingAnnotationsCount.put(toType("org.springframework.cache.annotation.CacheConfig"),0);
-		cachingAnnotationNames = cachingAnnotationsCount.entrySet().stream().map(e -> e.getKey()).collect(Collectors.toList());
+		cachingAnnotationNames = Collections.unmodifiableList(Arrays.asList(
+				toType("org.springframework.cache.annotation.CacheEvict"),
+				toType("org.springframework.cache.annotation.Caching"),
+				toType("org.springframework.cache.annotation.CachePut"),
+				toType("org.springframework.cache.annotation.Cacheable"),
+				toType("org.springframework.cache.annotation.CacheConfig")));
+	}
+
+	private final Map<String,Integer> cachingAnnotationsCount = new ConcurrentHashMap<>();
+
+	public SpringCacheAnnotationParserCollector() {
+		for (String cachingAnnotationName: cachingAnnotationNames) {
+			cachingAnnotationsCount.put(cachingAnnotationName, 0);
+		}
 	}
 	
 	static String toType(String s) {
@@ -55,23 +64,24 @@ public class SpringCacheAnnotationParserCollector implements Collector {
 	
 	@Override
 	public void processAnnotation(ClassInfo ci, ElementType type, String desc) {
-		Integer count = cachingAnnotationsCount.get(desc);
-		if (count!=null) {
-			cachingAnnotationsCount.put(desc, count+1);
-		}
+		cachingAnnotationsCount.computeIfPresent(desc, (k, count) -> count+1);
 		for (String cachingAnnotation: cachingAnnotationNames) {
 			if (isUsedAsMetaAnnotation(typeSystem, desc, cachingAnnotation)) {
-				count = cachingAnnotationsCount.get(desc);
-				cachingAnnotationsCount.put(desc, count+1);
+				cachingAnnotationsCount.computeIfPresent(desc, (k, count) -> count+1);
 			}			
 		}
 	}
 
 	@Override
-	public void summarize() {
-		System.out.println("SpringCacheAnnotationParserCollector");
+	public boolean supportsParallelScan() {
+		return true;
+	}
+
+	@Override
+	public void summarize(PrintStream out) {
+		out.println("SpringCacheAnnotationParserCollector");
 		for (Map.Entry<String, Integer> entry: cachingAnnotationsCount.entrySet()) {
-			System.out.println("Occurrences of "+toName(entry.getKey())+"=#"+entry.getValue());
+			out.println("Occurrences of "+toName(entry.getKey())+"=#"+entry.getValue());
 		}
 	}
 
@@ -15,39 +15,47 @@
  */
 package io.spring.nox.optimizer.spi;
 
+import java.io.PrintStream;
 import java.lang.annotation.ElementType;
 
 import io.spring.nox.optimizer.ClassInfo;
-import io.spring.nox.type.Type;
 import io.spring.nox.type.TypeSystem;
-import io.spring.nox.type.TypeSystem.MissingTypeException;
 
 /**
  * @author Andy Clement
  */
 public interface Collector {
 	
+	/**
+	 * Called for each visible annotation found during the scan. When the scan runs in parallel this is called
+	 * from multiple threads at once, unless {@link #supportsParallelScan()} returns false in which case calls are
+	 * serialized on the collector instance.
+	 */
 	void processAnnotation(ClassInfo ci, ElementType type, String desc);
 
-	void summarize();
+	/**
+	 * @return true if {@link #processAnnotation(ClassInfo, ElementType, String)} is safe to call concurrently
+	 */
+	default boolean supportsParallelScan() {
+		return false;
+	}
+
+	/**
+	 * Called once the scan is complete, before the summary and any rewriting, nothing more is collected after this.
+	 * Somewhere to index what was collected for the lookups made while rewriting.
+	 */
+	default void scanComplete() {
+	}
+
+	/**
+	 * Report what was collected by the scan.
+	 */
+	void summarize(PrintStream out);
 
 	void setTypeSystem(TypeSystem typeSystem);
 	
 	default boolean isUsedAsMetaAnnotation(TypeSystem typeSystem, String annotationDesc, String lookingForDesc) {
-		Type resolvedAnnotation = null;
-		try {
-			resolvedAnnotation = typeSystem.Lresolve(annotationDesc);
-		} catch (MissingTypeException mte) {
-			// c'est la vie... it's ok you can't be using it if we can't find it
-		} catch (RuntimeException e) {
-			throw new IllegalStateException("Unable to resolve " + annotationDesc);
-		}
-		if (resolvedAnnotation != null) {
-			if (resolvedAnnotation.hasAnnotationInHierarchy(lookingForDesc)) {
-				return true;
-			}
-		}
-		return false;
+		return typeSystem.isMetaAnnotatedWith(annotationDesc, lookingForDesc);
 	}
 
 	String getPrecomputedKey();
@@ -17,6 +17,8 @@ package io.spring.nox.optimizer.spi;
 
 import java.io.InputStream;
 
+import io.spring.nox.optimizer.ClassInfo;
+
 /**
  * @author Andy Clement
  */
@@ -27,6 +29,23 @@ public interface Rewriter {
 	boolean shouldRewriteDependencyJar(String jarname);
 
 //	boolean shouldRewriteDependencyClass(String jarname, String typeName);
+
+	/**
+	 * Called once a class has been through the collectors during the scan. Returning true means this rewriter
+	 * will be asked to rewrite it later, so the decoded bytes are kept rather than decoded again for the rewrite.
+	 */
+	default boolean shouldRewriteClass(ClassInfo ci) {
+		return false;
+	}
 	
 	byte[] rewriteClass(InputStream inputStream, String typename, String containingEntryName);
+
+	/**
+	 * Describe whatever, beyond the content of the dependency jar and the types resolved while rewriting it, decides
+	 * how this rewriter changes that jar (typically which of its classes are rewritten). A previously rewritten copy
+	 * of the jar is only reused when this matches. The default of null means results are never reused.
+	 */
+	default String getDependencyRewriteKey(String jarname) {
+		return null;
+	}
 }
\ No newline at end of file
@@ -20,86 +20,97 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Enumeration;
+import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-import java.util.zip.ZipInputStream;
 
-public class BootJarScanner {
+import io.spring.nox.jar.MappedJar;
+import io.spring.nox.jar.MappedJarEntry;
+
+/**
+ * Type source for a Boot fat jar: application classes under {@code BOOT-INF/classes} and dependencies nested under
+ * {@code BOOT-INF/lib}.
+ *
+ * @author Andy Clement
+ */
+public class BootJarScanner implements TypeSource {
 
 	public final static String APP_CLASSES_PREFIX = "BOOT-INF/classes/";
 	public final static String DEPENDENCIES_PREFIX = "BOOT-INF/lib/";
 
-	private File bootJarPath;
+	private MappedJar bootJar;
+
+	private boolean ownsBootJar;
 
-	private Map<String, ZipEntry> packageCache = new HashMap<>();
+	private final Map<String, MappedJar> packageCache = new HashMap<>();
 
-	private Map<String, ZipEntry> appClasses = new HashMap<>();
+	private final Map<String, MappedJarEntry> appClasses = new HashMap<>();
 
 	BootJarScanner(File bootJarPath) {
-		System.out.println("Initializing type system based on boot jar: "+bootJarPath);
-		this.bootJarPath = bootJarPath;
+		this(open(bootJarPath));
+		this.ownsBootJar = true;
+	}
+
+	BootJarScanner(MappedJar bootJar) {
+		this.bootJar = bootJar;
 		index();
-		System.out.println( "#"+appClasses.size()+" application classes");
-		System.out.println("#" + packageCache.values().stream().distinct().count() + " dependencies containing #"
+	}
+
+	@Override
+	public void printSummary(PrintStream out) {
+		out.println("Initializing type system based on boot jar: "+bootJar.getName());
+		out.println( "#"+appClasses.size()+" application classes");
+		out.println("#" + packageCache.values().stream().distinct().count() + " dependencies containing #"
 				+ packageCache.keySet().size() + " packages");
-		System.out.println();
+		out.println();
 	}
 
-	public void index() {
-		// Walk the jar, index entries and cache package > entry
+	private static MappedJar open(File bootJarPath) {
 		try {
-			try (ZipFile zf = new ZipFile(bootJarPath)) {
-				Enumeration<? extends ZipEntry> entries = zf.entries();
-				while (entries.hasMoreElements()) {
-					ZipEntry entry = entries.nextElement();
-					// Interesting entries:
-					// - infra class files (the application plus 'infrastructure' for getting going)
-					// under org/springframework/boot
-					// - app class files under BOOT-INF/classes
-					// - dependencies under BOOT-INF/lib
-					String entryName = entry.getName();
-					if (isAppClass(entryName)) {
-						String typeName = entryName.substring(APP_CLASSES_PREFIX.length(), entryName.length() - 6);
-						appClasses.put(typeName, entry);
-					} else if (isDependencyJar(entryName)) {
-						Set<String> packages = getPackages(zf.getInputStream(entry));
-						for (String packageName : packages) {
-							if (packageCache.get(packageName)!=null) {
-								System.out.println("Split package found: "+packageName+" already in "+packageCache.get(packageName).getName()+" and now in "+entry.getName());
-								System.out.println("Need to do a bit of work to support this!");
-							}
-							packageCache.put(packageName, entry);
-						}
+			return MappedJar.open(bootJarPath);
+		} catch (IOException ioe) {
+			throw new RuntimeException("Unable to open boot jar " + bootJarPath, ioe);
+		}
+	}
+
+	public void index() {
+		// Walk the jar central directory, index entries and cache package > nested jar
+		for (MappedJarEntry entry: bootJar.getEntries()) {
+			// Interesting entries:
+			// - infra class files (the application plus 'infrastructure' for getting going)
+			// under org/springframework/boot
+			// - app class files under BOOT-INF/classes
+			// - dependencies under BOOT-INF/lib
+			String entryName = entry.getName();
+			if (isAppClass(entryName)) {
+				String typeName = entryName.substring(APP_CLASSES_PREFIX.length(), entryName.length() - 6);
+				appClasses.put(typeName, entry);
+			} else if (isDependencyJar(entryName)) {
+				MappedJar nestedJar = bootJar.getNestedJar(entry);
+				Set<String> packages = getPackages(nestedJar);
+				for (String packageName : packages) {
+					if (packageCache.get(packageName)!=null) {
+						System.out.println("Split package found: "+packageName+" already in "+packageCache.get(packageName).getName()+" and now in "+entry.getName());
+						System.out.println("Need to do a bit of work to support this!");
 					}
+					packageCache.put(packageName, nestedJar);
 				}
 			}
-		} catch (IOException ioe) {
-			throw new RuntimeException("Problem during scan", ioe);
 		}
 	}
 
-	private Set<String> getPackages(InputStream inputStream) {
-		try {
-			Set<String> packages = new HashSet<>();
-			ZipInputStream zis = new ZipInputStream(inputStream);
-			ZipEntry ze = zis.getNextEntry();
-			while (ze != null) {
-				String name = ze.getName();
-				int lastSlash = name.lastIndexOf("/");
-				if (lastSlash != -1 && name.endsWith(".class")) {
-					packages.add(name.substring(0, lastSlash));
-				}
-				ze = zis.getNextEntry();
+	private Set<String> getPackages(MappedJar nestedJar) {
+		Set<String> packages = new HashSet<>();
+		for (MappedJarEntry entry: nestedJar.getEntries()) {
+			String name = entry.getName();
+			int lastSlash = name.lastIndexOf("/");
+			if (lastSlash != -1 && name.endsWith(".class")) {
+				packages.add(name.substring(0, lastSlash));
 			}
-			return packages;
-		} catch (Exception e) {
-			throw new RuntimeException("Unexpected exception computing packages from inner zip", e);
 		}
+		return packages;
 	}
 
 	private boolean isAppClass(String name) {
@@ -110,16 +121,18 @@ public class BootJarScanner {
 		return name.startsWith(DEPENDENCIES_PREFIX) && name.endsWith(".jar");
 	}
 
+	@Override
 	public byte[] find(String slashedTypeName) {
 		try {
 			String packageName = slashedTypeName.substring(0, slashedTypeName.lastIndexOf("/"));
-			ZipEntry dependencyEntry = packageCache.get(packageName);
-			if (dependencyEntry != null) {
-				return loadFromDepEntry(dependencyEntry, slashedTypeName);
+			MappedJar nestedJar = packageCache.get(packageName);
+			if (nestedJar != null) {
+				MappedJarEntry classEntry = nestedJar.getEntry(slashedTypeName + ".class");
+				return classEntry == null ? null : nestedJar.getBytes(classEntry);
 			}
-			ZipEntry appEntry = appClasses.get(slashedTypeName);
+			MappedJarEntry appEntry = appClasses.get(slashedTypeName);
 			if (appEntry != null) {
-				return loadFromAppEntry(appEntry, slashedTypeName);
+				return bootJar.getBytes(appEntry);
 			}
 			return null;
 		} catch (IOException ioe) {
@@ -127,31 +140,29 @@ public class BootJarScanner {
 		}
 	}
 
-	private byte[] loadFromAppEntry(ZipEntry dependencyEntry, String slashedTypeName) throws IOException {
-		try (ZipFile zf = new ZipFile(bootJarPath)) {
-			try (InputStream is = zf.getInputStream(dependencyEntry)) {
-				return loadFromStream(is);
-			}
+	@Override
+	public String getOrigin(String slashedTypeName) {
+		int lastSlash = slashedTypeName.lastIndexOf("/");
+		MappedJar nestedJar = (lastSlash == -1) ? null : packageCache.get(slashedTypeName.substring(0, lastSlash));
+		if (nestedJar != null) {
+			return nestedJar.getEntry(slashedTypeName + ".class") == null ? null : "lib:" + nestedJar.getContentKey();
+		}
+		MappedJarEntry appEntry = appClasses.get(slashedTypeName);
+		if (appEntry != null) {
+			return "app:" + Long.toHexString(appEntry.getCrc()) + ":" + appEntry.getSize();
 		}
+		return null;
 	}
 
-	private byte[] loadFromDepEntry(ZipEntry dependencyEntry, String slashedTypeName) throws IOException {
-		String searchName = slashedTypeName + ".class";
-//		System.out.println("Loading "+searchName+" from "+dependencyEntry.getName());
-		try (ZipFile zf = new ZipFile(bootJarPath)) {
-			try (InputStream is = zf.getInputStream(dependencyEntry)) {
-				ZipInputStream zis = new ZipInputStream(is);
-				ZipEntry ze = zis.getNextEntry();
-				while (ze != null) {
-					String name = ze.getName();
-					if (name.equals(searchName)) {
-						return loadFromStream(zis);
-					}
-					ze = zis.getNextEntry();
-				}
-			}
+	public MappedJar getBootJar() {
+		return bootJar;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (ownsBootJar) {
+			bootJar.close();
 		}
-		return null;
 	}
 
 	public static byte[] loadFromStream(InputStream stream) {
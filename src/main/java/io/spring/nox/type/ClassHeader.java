@@ -0,0 +1,201 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.type;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * What the type system knows about a class: its name, supertypes, access flags, visible annotations and methods. This
+ * is all the {@link Type} queries need (along with the generic signatures, parsed only if asked for), so the class file
+ * is read with {@link ClassReader#SKIP_CODE} (no method bodies, no frames, no debug information) rather than into a
+ * full {@code ClassNode}. Names and descriptors are interned, the same few thousand turn up across every class in the
+ * jar. Headers are immutable once read so can be shared between threads and type systems.
+ * <p>
+ * The methods are most of the size of a header, a memory budgeted {@link TypeSystem} keeps headers without them
+ * ({@link #methods} is null) and holds the methods separately in a bounded cache.
+ *
+ * @author Andy Clement
+ */
+final class ClassHeader {
+
+	final static String[] NO_STRINGS = new String[0];
+
+	private final static Method[] NO_METHODS = new Method[0];
+
+	final int access;
+
+	final String name;
+
+	final String superName;
+
+	// The generic signature, null if the class does not have one
+	final String signature;
+
+	final String[] interfaces;
+
+	final String[] annotations;
+
+	// Null if the header was stored without its methods
+	final Method[] methods;
+
+	ClassHeader(int access, String name, String superName, String signature, String[] interfaces,
+			String[] annotations, Method[] methods) {
+		this.access = access;
+		this.name = name;
+		this.superName = superName;
+		this.signature = signature;
+		this.interfaces = interfaces;
+		this.annotations = annotations;
+		this.methods = methods;
+	}
+
+	static ClassHeader read(byte[] bytes) {
+		HeaderVisitor visitor = new HeaderVisitor();
+		new ClassReader(bytes).accept(visitor, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		return visitor.getHeader();
+	}
+
+	/**
+	 * @return this header without its methods, they are reloaded from the class file if needed
+	 */
+	ClassHeader withoutMethods() {
+		return (methods == null) ? this : new ClassHeader(access, name, superName, signature, interfaces, annotations, null);
+	}
+
+	/**
+	 * @return a rough idea of how many bytes the methods occupy, the strings are interned and so not counted
+	 */
+	static long estimateSize(Method[] methods) {
+		long size = 16 + methods.length * 4;
+		for (Method method : methods) {
+			size += 48 + method.getAnnotations().length * 4;
+		}
+		return size;
+	}
+
+	private static String intern(String string) {
+		return (string == null) ? null : string.intern();
+	}
+
+	private static String[] intern(String[] strings) {
+		if (strings == null || strings.length == 0) {
+			return NO_STRINGS;
+		}
+		String[] result = new String[strings.length];
+		for (int i = 0; i < strings.length; i++) {
+			result[i] = strings[i].intern();
+		}
+		return result;
+	}
+
+	private static String[] toArray(List<String> strings) {
+		return (strings == null) ? NO_STRINGS : strings.toArray(new String[strings.size()]);
+	}
+
+	private static class HeaderVisitor extends ClassVisitor {
+
+		private int access;
+		private String name;
+		private String superName;
+		private String signature;
+		private String[] interfaces;
+		private List<String> annotations;
+		private List<Method> methods;
+
+		HeaderVisitor() {
+			super(Opcodes.ASM6);
+		}
+
+		@Override
+		public void visit(int version, int access, String name, String signature, String superName,
+				String[] interfaces) {
+			this.access = access;
+			this.name = intern(name);
+			this.superName = intern(superName);
+			this.signature = signature;
+			this.interfaces = intern(interfaces);
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+			if (visible) {
+				if (annotations == null) {
+					annotations = new ArrayList<>(2);
+				}
+				annotations.add(desc.intern());
+			}
+			return null;
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+				String[] exceptions) {
+			if (methods == null) {
+				methods = new ArrayList<>();
+			}
+			return new MethodHeaderVisitor(access, name.intern(), desc.intern(), signature, methods);
+		}
+
+		ClassHeader getHeader() {
+			return new ClassHeader(access, name, superName, signature, interfaces, toArray(annotations),
+					(methods == null) ? NO_METHODS : methods.toArray(new Method[methods.size()]));
+		}
+	}
+
+	private static class MethodHeaderVisitor extends MethodVisitor {
+
+		private final int access;
+		private final String name;
+		private final String desc;
+		private final String signature;
+		private final List<Method> methods;
+		private List<String> annotations;
+
+		MethodHeaderVisitor(int access, String name, String desc, String signature, List<Method> methods) {
+			super(Opcodes.ASM6);
+			this.access = access;
+			this.name = name;
+			this.desc = desc;
+			this.signature = signature;
+			this.methods = methods;
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+			if (visible) {
+				if (annotations == null) {
+					annotations = new ArrayList<>(2);
+				}
+				annotations.add(desc.intern());
+			}
+			return null;
+		}
+
+		@Override
+		public void visitEnd() {
+			methods.add(new Method(access, name, desc, signature, toArray(annotations)));
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.type;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import io.spring.nox.jar.MappedJar;
+import io.spring.nox.jar.MappedJarEntry;
+
+/**
+ * Type source for a regular classpath: directories of class files (typically {@code target/classes}, treated as
+ * application classes) and plain jars (dependencies, for example straight out of the local Maven repository). This
+ * allows the type system to be built before anything has been packaged into a fat jar.
+ * <p>
+ * As with a classpath built by Maven, directories are searched before jars. Jars are searched in the order given.
+ *
+ * @author Andy Clement
+ */
+public class ClasspathTypeSource implements TypeSource {
+
+	private final List<File> directories = new ArrayList<>();
+
+	private final List<MappedJar> jars = new ArrayList<>();
+
+	// package > jars containing classes in that package, in classpath order
+	private final Map<String, List<MappedJar>> packageCache = new HashMap<>();
+
+	private final int classpathSize;
+
+	public ClasspathTypeSource(List<File> classpath) {
+		this.classpathSize = classpath.size();
+		try {
+			for (File entry : classpath) {
+				if (entry.isDirectory()) {
+					directories.add(entry);
+				} else if (entry.isFile() && entry.getName().endsWith(".jar")) {
+					MappedJar jar = MappedJar.open(entry);
+					jars.add(jar);
+					index(jar);
+				}
+			}
+		} catch (IOException ioe) {
+			close();
+			throw new RuntimeException("Unable to open classpath", ioe);
+		}
+	}
+
+	@Override
+	public void printSummary(PrintStream out) {
+		out.println("Initializing type system based on classpath of #" + classpathSize + " entries");
+		out.println("#" + directories.size() + " class directories");
+		out.println("#" + jars.size() + " dependencies containing #" + packageCache.size() + " packages");
+		out.println();
+	}
+
+	private void index(MappedJar jar) {
+		String lastPackage = null;
+		for (MappedJarEntry entry : jar.getEntries()) {
+			String name = entry.getName();
+			int lastSlash = name.lastIndexOf("/");
+			if (lastSlash != -1 && name.endsWith(".class")) {
+				String packageName = name.substring(0, lastSlash);
+				// Entries are usually grouped by package, skip the lookup for each class in the same one
+				if (!packageName.equals(lastPackage)) {
+					List<MappedJar> packageJars = packageCache.computeIfAbsent(packageName, p -> new ArrayList<>(1));
+					if (!packageJars.contains(jar)) {
+						packageJars.add(jar);
+					}
+					lastPackage = packageName;
+				}
+			}
+		}
+	}
+
+	@Override
+	public byte[] find(String slashedTypeName) {
+		try {
+			File classFile = findClassFile(slashedTypeName);
+			if (classFile != null) {
+				return Files.readAllBytes(classFile.toPath());
+			}
+			MappedJar jar = findJar(slashedTypeName);
+			return (jar == null) ? null : jar.getBytes(jar.getEntry(slashedTypeName + ".class"));
+		} catch (IOException ioe) {
+			throw new RuntimeException("Problem finding " + slashedTypeName, ioe);
+		}
+	}
+
+	@Override
+	public String getOrigin(String slashedTypeName) {
+		File classFile = findClassFile(slashedTypeName);
+		if (classFile != null) {
+			try {
+				byte[] bytes = Files.readAllBytes(classFile.toPath());
+				CRC32 crc = new CRC32();
+				crc.update(bytes);
+				return "app:" + Long.toHexString(crc.getValue()) + ":" + bytes.length;
+			} catch (IOException ioe) {
+				throw new RuntimeException("Problem reading " + classFile, ioe);
+			}
+		}
+		MappedJar jar = findJar(slashedTypeName);
+		return (jar == null) ? null : "lib:" + jar.getContentKey();
+	}
+
+	private File findClassFile(String slashedTypeName) {
+		for (File directory : directories) {
+			File classFile = new File(directory, slashedTypeName + ".class");
+			if (classFile.isFile()) {
+				return classFile;
+			}
+		}
+		return null;
+	}
+
+	private MappedJar findJar(String slashedTypeName) {
+		int lastSlash = slashedTypeName.lastIndexOf("/");
+		List<MappedJar> packageJars = (lastSlash == -1) ? null
+				: packageCache.get(slashedTypeName.substring(0, lastSlash));
+		if (packageJars != null) {
+			String entryName = slashedTypeName + ".class";
+			for (MappedJar jar : packageJars) {
+				if (jar.getEntry(entryName) != null) {
+					return jar;
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void close() {
+		for (MappedJar jar : jars) {
+			jar.close();
+		}
+	}
+
+}
@@ -16,26 +16,99 @@
 
 package io.spring.nox.type;
 
-import org.objectweb.asm.tree.MethodNode;
+import java.util.List;
 
+import io.spring.nox.type.SignatureParser.MethodSignature;
+
+/**
+ * A method as recorded in a {@link ClassHeader}, its signature and visible annotations but not its code.
+ */
 public class Method {
-	
-	MethodNode mn;
 
-	public Method(MethodNode mn) {
-		this.mn = mn;
+	private final int access;
+
+	private final String name;
+
+	private final String desc;
+
+	// Null if the method does not use generics
+	private final String signature;
+
+	private final String[] annotations;
+
+	private volatile MethodSignature genericSignature;
+
+	Method(int access, String name, String desc, String signature, String[] annotations) {
+		this.access = access;
+		this.name = name;
+		this.desc = desc;
+		this.signature = signature;
+		this.annotations = annotations;
 	}
 	
 	public String toString() {
-		return mn.name+mn.desc;
+		return name+desc;
+	}
+
+	public int getAccess() {
+		return access;
 	}
 
 	public String getName() {
-		return mn.name;
+		return name;
 	}
 
 	public String getDesc() {
-		return mn.desc;
+		return desc;
 	}
-	
-}
\ No newline at end of file
+
+	/**
+	 * @return the generic signature, null if the method does not use generics
+	 */
+	public String getSignature() {
+		return signature;
+	}
+
+	/**
+	 * @return the type parameters declared by the method, empty if it is not a generic method
+	 */
+	public List<TypeVariable> getTypeParameters() {
+		return getGenericSignature().typeParameters;
+	}
+
+	/**
+	 * @return the parameter types including their type arguments, e.g. {@code List<String>} rather than
+	 * {@code List}
+	 */
+	public List<TypeReference> getGenericParameterTypes() {
+		return getGenericSignature().parameterTypes;
+	}
+
+	public TypeReference getGenericReturnType() {
+		return getGenericSignature().returnType;
+	}
+
+	private MethodSignature getGenericSignature() {
+		MethodSignature genericSignature = this.genericSignature;
+		if (genericSignature == null) {
+			// A descriptor is a signature that doesn't use generics
+			genericSignature = SignatureParser.parseMethodSignature((signature == null) ? desc : signature);
+			this.genericSignature = genericSignature;
+		}
+		return genericSignature;
+	}
+
+	String[] getAnnotations() {
+		return annotations;
+	}
+
+	public boolean hasAnnotation(String annotationDesc) {
+		for (String annotation : annotations) {
+			if (annotation.equals(annotationDesc)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
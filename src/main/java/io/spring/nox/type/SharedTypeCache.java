@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.type;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parsed classes from dependency jars, shared between {@link TypeSystem} instances. Entries are keyed by the content
+ * key of the dependency jar the class came from, so a type system for a different boot jar (or a later build of the
+ * same application) that contains an identical dependency picks up the already parsed classes rather than decoding
+ * them again. The class headers are never modified once parsed so can be shared freely between threads.
+ * <p>
+ * A long lived process (the daemon) sees ever more dependency versions, so the cache can be given a limit on the
+ * number of types it holds. Once over it, the dependencies used least recently are dropped as a whole until it fits
+ * again. The dependency that was just added to is never dropped.
+ *
+ * @author Andy Clement
+ */
+public class SharedTypeCache {
+
+	// Zero for no limit
+	private final int maxTypes;
+
+	private final Map<String, DependencyTypes> dependencies = new ConcurrentHashMap<>();
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	public SharedTypeCache() {
+		this(0);
+	}
+
+	/**
+	 * @param maxTypes roughly how many types to hold at most, zero for no limit
+	 */
+	public SharedTypeCache(int maxTypes) {
+		this.maxTypes = maxTypes;
+	}
+
+	ClassHeader get(String dependencyKey, String slashedTypeName) {
+		DependencyTypes types = dependencies.get(dependencyKey);
+		if (types == null) {
+			return null;
+		}
+		types.lastUsed = System.nanoTime();
+		return types.headers.get(slashedTypeName);
+	}
+
+	void put(String dependencyKey, String slashedTypeName, ClassHeader header) {
+		DependencyTypes types = dependencies.computeIfAbsent(dependencyKey, k -> new DependencyTypes());
+		types.lastUsed = System.nanoTime();
+		if (types.headers.put(slashedTypeName, header) == null && size.incrementAndGet() > maxTypes && maxTypes > 0) {
+			evict(dependencyKey);
+		}
+	}
+
+	private synchronized void evict(String keepDependencyKey) {
+		int total = 0;
+		for (DependencyTypes types : dependencies.values()) {
+			total += types.headers.size();
+		}
+		while (total > maxTypes) {
+			String leastRecentlyUsed = null;
+			long oldest = Long.MAX_VALUE;
+			for (Map.Entry<String, DependencyTypes> entry : dependencies.entrySet()) {
+				if (!entry.getKey().equals(keepDependencyKey) && entry.getValue().lastUsed < oldest) {
+					leastRecentlyUsed = entry.getKey();
+					oldest = entry.getValue().lastUsed;
+				}
+			}
+			if (leastRecentlyUsed == null) {
+				break;
+			}
+			total -= dependencies.remove(leastRecentlyUsed).headers.size();
+		}
+		// Recounted here so puts racing with a removal cannot make the count drift
+		size.set(total);
+	}
+
+	/**
+	 * @return how many types are held
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return how many dependency jars types are held for
+	 */
+	public int getDependencyCount() {
+		return dependencies.size();
+	}
+
+	/**
+	 * The types parsed from one dependency jar.
+	 */
+	private static class DependencyTypes {
+		final Map<String, ClassHeader> headers = new ConcurrentHashMap<>();
+		volatile long lastUsed;
+	}
+
+}
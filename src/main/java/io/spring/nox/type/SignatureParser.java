@@ -0,0 +1,229 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.type;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.signature.SignatureReader;
+import org.objectweb.asm.signature.SignatureVisitor;
+
+/**
+ * Builds {@link TypeReference TypeReferences} and {@link TypeVariable TypeVariables} from generic signatures. Where a
+ * class or method has no signature attribute (it uses no generics) the same model is built from its supertypes or
+ * descriptor, so callers never need to care which they have.
+ * <p>
+ * References to inner classes of parameterized types keep only the type arguments of the innermost class.
+ *
+ * @author Andy Clement
+ */
+final class SignatureParser {
+
+	private SignatureParser() {
+	}
+
+	static ClassSignature parseClassSignature(ClassHeader header) {
+		if (header.signature == null) {
+			List<TypeReference> interfaces = new ArrayList<>(header.interfaces.length);
+			for (String interfaceName : header.interfaces) {
+				interfaces.add(TypeReference.forClass(interfaceName, Collections.emptyList()));
+			}
+			TypeReference superclass = (header.superName == null) ? null
+					: TypeReference.forClass(header.superName, Collections.emptyList());
+			return new ClassSignature(Collections.emptyList(), superclass, interfaces);
+		}
+		SignatureBuilder builder = new SignatureBuilder();
+		new SignatureReader(header.signature).accept(builder);
+		return new ClassSignature(builder.typeParameters, builder.superclass, builder.interfaces);
+	}
+
+	/**
+	 * @param signature the generic signature of the method, or if it has none its descriptor
+	 */
+	static MethodSignature parseMethodSignature(String signature) {
+		SignatureBuilder builder = new SignatureBuilder();
+		new SignatureReader(signature).accept(builder);
+		return new MethodSignature(builder.typeParameters, builder.parameterTypes, builder.returnType);
+	}
+
+	/**
+	 * Type parameters, superclass and interfaces of a class.
+	 */
+	static class ClassSignature {
+		final List<TypeVariable> typeParameters;
+		final TypeReference superclass;
+		final List<TypeReference> interfaces;
+
+		ClassSignature(List<TypeVariable> typeParameters, TypeReference superclass, List<TypeReference> interfaces) {
+			this.typeParameters = Collections.unmodifiableList(typeParameters);
+			this.superclass = superclass;
+			this.interfaces = Collections.unmodifiableList(interfaces);
+		}
+	}
+
+	/**
+	 * Type parameters, parameter types and return type of a method.
+	 */
+	static class MethodSignature {
+		final List<TypeVariable> typeParameters;
+		final List<TypeReference> parameterTypes;
+		final TypeReference returnType;
+
+		MethodSignature(List<TypeVariable> typeParameters, List<TypeReference> parameterTypes,
+				TypeReference returnType) {
+			this.typeParameters = Collections.unmodifiableList(typeParameters);
+			this.parameterTypes = Collections.unmodifiableList(parameterTypes);
+			this.returnType = returnType;
+		}
+	}
+
+	/**
+	 * Collects the parts of a class or method signature.
+	 */
+	private static class SignatureBuilder extends SignatureVisitor {
+
+		final List<TypeVariable> typeParameters = new ArrayList<>();
+		TypeReference superclass;
+		final List<TypeReference> interfaces = new ArrayList<>();
+		final List<TypeReference> parameterTypes = new ArrayList<>();
+		TypeReference returnType;
+
+		// The type parameter whose bounds are being visited
+		private String typeParameterName;
+		private List<TypeReference> typeParameterBounds;
+
+		SignatureBuilder() {
+			super(Opcodes.ASM6);
+		}
+
+		@Override
+		public void visitFormalTypeParameter(String name) {
+			endTypeParameter();
+			typeParameterName = name;
+			typeParameterBounds = new ArrayList<>(1);
+		}
+
+		@Override
+		public SignatureVisitor visitClassBound() {
+			return new TypeReferenceBuilder(typeParameterBounds::add);
+		}
+
+		@Override
+		public SignatureVisitor visitInterfaceBound() {
+			return new TypeReferenceBuilder(typeParameterBounds::add);
+		}
+
+		@Override
+		public SignatureVisitor visitSuperclass() {
+			endTypeParameter();
+			return new TypeReferenceBuilder(t -> superclass = t);
+		}
+
+		@Override
+		public SignatureVisitor visitInterface() {
+			return new TypeReferenceBuilder(interfaces::add);
+		}
+
+		@Override
+		public SignatureVisitor visitParameterType() {
+			endTypeParameter();
+			return new TypeReferenceBuilder(parameterTypes::add);
+		}
+
+		@Override
+		public SignatureVisitor visitReturnType() {
+			endTypeParameter();
+			return new TypeReferenceBuilder(t -> returnType = t);
+		}
+
+		@Override
+		public SignatureVisitor visitExceptionType() {
+			return new TypeReferenceBuilder(t -> {});
+		}
+
+		private void endTypeParameter() {
+			if (typeParameterName != null) {
+				typeParameters.add(new TypeVariable(typeParameterName, typeParameterBounds));
+				typeParameterName = null;
+			}
+		}
+	}
+
+	/**
+	 * Builds one type reference, passing it on once complete.
+	 */
+	private static class TypeReferenceBuilder extends SignatureVisitor {
+
+		private final Consumer<TypeReference> result;
+
+		private String className;
+
+		private List<TypeReference> typeArguments;
+
+		TypeReferenceBuilder(Consumer<TypeReference> result) {
+			super(Opcodes.ASM6);
+			this.result = result;
+		}
+
+		@Override
+		public void visitBaseType(char descriptor) {
+			result.accept(TypeReference.forPrimitive(descriptor));
+		}
+
+		@Override
+		public void visitTypeVariable(String name) {
+			result.accept(TypeReference.forTypeVariable(name));
+		}
+
+		@Override
+		public SignatureVisitor visitArrayType() {
+			return new TypeReferenceBuilder(componentType -> result.accept(TypeReference.forArray(componentType)));
+		}
+
+		@Override
+		public void visitClassType(String name) {
+			className = name;
+			typeArguments = new ArrayList<>();
+		}
+
+		@Override
+		public void visitInnerClassType(String name) {
+			className = className + "$" + name;
+			typeArguments = new ArrayList<>();
+		}
+
+		@Override
+		public void visitTypeArgument() {
+			typeArguments.add(TypeReference.forWildcard('*', null));
+		}
+
+		@Override
+		public SignatureVisitor visitTypeArgument(char wildcard) {
+			return new TypeReferenceBuilder(t -> typeArguments
+					.add((wildcard == SignatureVisitor.INSTANCEOF) ? t : TypeReference.forWildcard(wildcard, t)));
+		}
+
+		@Override
+		public void visitEnd() {
+			result.accept(TypeReference.forClass(className.intern(), typeArguments));
+		}
+	}
+
+}
@@ -18,16 +18,16 @@ package io.spring.nox.type;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import org.objectweb.asm.tree.AnnotationNode;
-import org.objectweb.asm.tree.ClassNode;
-import org.objectweb.asm.tree.MethodNode;
-
+import io.spring.nox.type.SignatureParser.ClassSignature;
 import io.spring.nox.type.TypeSystem.MissingTypeException;
 
 /**
@@ -37,78 +37,223 @@ public class Type {
 	
 	public final static Type MISSING = new Type(null, null);
 	
-	private TypeSystem typeSystem;
-	private ClassNode node;
-	private Type[] interfaces;
+	private final TypeSystem typeSystem;
+	private final ClassHeader header;
+	private volatile Type[] interfaces;
+	private volatile BitSet metaAnnotationClosure;
+	private volatile Ancestors ancestors;
+	private volatile ClassSignature genericSignature;
 	private static Type[] NO_INTERFACES = new Type[0];
 
-	public Type(TypeSystem typeSystem, ClassNode node) {
+	Type(TypeSystem typeSystem, ClassHeader header) {
 		this.typeSystem = typeSystem;
-		this.node = node;
+		this.header = header;
 	}
 
-	public static Type forClassNode(TypeSystem typeSystem, ClassNode node) {
-		return new Type(typeSystem, node);
+	static Type forClassHeader(TypeSystem typeSystem, ClassHeader header) {
+		return new Type(typeSystem, header);
 	}
 
 	public String getName() {
-		return node.name;
+		return header.name;
 	}
 
 	public Type getSuperclass() {
-		if (node.superName == null) {
+		if (header.superName == null) {
 			return null;
 		}
-		return typeSystem.resolveSlashed(node.superName);
+		return typeSystem.resolveSlashed(header.superName);
+	}
+
+	/**
+	 * @return the slashed name of the superclass without resolving it, or null for java/lang/Object
+	 */
+	public String getSuperclassName() {
+		return header.superName;
+	}
+
+	/**
+	 * @return the slashed names of the directly implemented interfaces without resolving them
+	 */
+	public List<String> getInterfaceNames() {
+		return Collections.unmodifiableList(Arrays.asList(header.interfaces));
 	}
 
 	public Type[] getInterfaces() {
+		Type[] interfaces = this.interfaces;
 		if (interfaces == null) {
-			List<String> itfs = node.interfaces;
-			if (itfs.size()== 0) {
+			String[] itfs = header.interfaces;
+			if (itfs.length == 0) {
 				interfaces = NO_INTERFACES;
 			} else {
-				interfaces = new Type[itfs.size()];
-				for (int i=0;i<itfs.size();i++) {
-					interfaces[i] = typeSystem.resolveSlashed(itfs.get(i));
+				interfaces = new Type[itfs.length];
+				for (int i=0;i<itfs.length;i++) {
+					interfaces[i] = typeSystem.resolveSlashed(itfs[i]);
 				}
 			}
+			this.interfaces = interfaces;
 		} 
 		return interfaces;
 	}
 
 	public boolean implementsInterface(String interfaceName) {
-		Type[] interfacesToCheck = getInterfaces();
-		for (Type interfaceToCheck: interfacesToCheck) {
-			if (interfaceToCheck.getName().equals(interfaceName)) {
-				return true;
+		if (interfaceName.equals(getName()) || !getAncestors().includes(typeSystem.getTypeId(interfaceName))) {
+			return false;
+		}
+		// The ancestors include superclasses as well as interfaces
+		return typeSystem.resolveSlashed(interfaceName).isInterface();
+	}
+
+	/**
+	 * The ids of this type, its superclasses and every interface they implement, computed once from the (already
+	 * computed) ancestors of the direct supertypes. Supertypes that cannot be resolved are included by name but
+	 * contribute nothing further, the first of them is remembered so that a check that might have depended on it can
+	 * fail in the same way walking the hierarchy would have.
+	 */
+	private Ancestors getAncestors() {
+		Ancestors ancestors = this.ancestors;
+		if (ancestors == null) {
+			List<int[]> supertypeIds = new ArrayList<>();
+			supertypeIds.add(new int[] { typeSystem.getTypeId(getName()) });
+			String missing = null;
+			List<String> supertypeNames = new ArrayList<>(Arrays.asList(header.interfaces));
+			if (header.superName != null) {
+				supertypeNames.add(header.superName);
 			}
-			if (interfaceToCheck.implementsInterface(interfaceName)) {
-				return true;
+			for (String supertypeName: supertypeNames) {
+				try {
+					Ancestors supertypeAncestors = typeSystem.resolveSlashed(supertypeName).getAncestors();
+					supertypeIds.add(supertypeAncestors.ids);
+					if (missing == null) {
+						missing = supertypeAncestors.missing;
+					}
+				} catch (MissingTypeException mte) {
+					supertypeIds.add(new int[] { typeSystem.getTypeId(supertypeName) });
+					if (missing == null) {
+						missing = supertypeName;
+					}
+				}
 			}
+			int[] ids = supertypeIds.stream().flatMapToInt(Arrays::stream).distinct().sorted().toArray();
+			ancestors = new Ancestors(ids, missing);
+			this.ancestors = ancestors;
+		}
+		return ancestors;
+	}
+
+	private static class Ancestors {
+
+		final int[] ids;
+
+		// The first supertype that could not be resolved, or null
+		final String missing;
+
+		Ancestors(int[] ids, String missing) {
+			this.ids = ids;
+			this.missing = missing;
 		}
-		Type superclass = getSuperclass();
-		while (superclass != null) {
-			if (superclass.implementsInterface(interfaceName)) {
+
+		boolean includes(int id) {
+			if (Arrays.binarySearch(ids, id) >= 0) {
 				return true;
 			}
-			superclass = superclass.getSuperclass();
+			if (missing != null) {
+				throw new MissingTypeException(missing);
+			}
+			return false;
 		}
-		return false;
 	}
 
-	public List<Method> getMethodsWithAnnotation(String string) {
-		return node.methods.stream().filter(m -> hasAnnotation(m, string)).map(m -> wrap(m)).collect(Collectors.toList());
+	/**
+	 * @return the type parameters declared by the type, empty if it is not generic
+	 */
+	public List<TypeVariable> getTypeParameters() {
+		return getGenericSignature().typeParameters;
 	}
-	
-	public Method wrap(MethodNode mn) {
-		return new Method(mn);
+
+	/**
+	 * @return the superclass including its type arguments, null for java/lang/Object
+	 */
+	public TypeReference getGenericSuperclass() {
+		return getGenericSignature().superclass;
+	}
+
+	/**
+	 * @return the directly implemented interfaces including their type arguments
+	 */
+	public List<TypeReference> getGenericInterfaces() {
+		return getGenericSignature().interfaces;
+	}
+
+	/**
+	 * Work out how this type parameterizes one of its supertypes, the build time equivalent of
+	 * {@code ResolvableType.forClass(this).as(supertype).getGenerics()}. For
+	 * {@code class MyListener implements ApplicationListener<MyEvent>} asking for
+	 * {@code org/springframework/context/ApplicationListener} gives {@code [MyEvent]}. Type variables are followed
+	 * through the hierarchy, so the answer is the same if the type argument is supplied further down (e.g.
+	 * {@code class MyListener extends AbstractListener<MyEvent>}). Arguments not fixed anywhere in the hierarchy (or
+	 * hidden by a raw supertype) come back as type variable references.
+	 *
+	 * @param slashedTypeName the generic supertype, e.g. org/springframework/context/ApplicationListener
+	 * @return the type arguments for the supertype, or null if this type is not a subtype of it
+	 */
+	public List<TypeReference> getTypeArgumentsFor(String slashedTypeName) {
+		return findTypeArguments(slashedTypeName, Collections.emptyMap());
 	}
 
-	private boolean hasAnnotation(MethodNode m, String string) {
-		List<AnnotationNode> visibleAnnotations = m.visibleAnnotations;
-		Optional<AnnotationNode> findAny = visibleAnnotations==null?Optional.empty(): visibleAnnotations.stream().filter(a -> a.desc.equals(string)).findFirst();
-		return findAny.isPresent();
+	/**
+	 * @param bindings what the type parameters of this type are bound to by the subtype the search started from
+	 */
+	private List<TypeReference> findTypeArguments(String slashedTypeName, Map<String, TypeReference> bindings) {
+		if (getName().equals(slashedTypeName)) {
+			List<TypeReference> typeArguments = new ArrayList<>();
+			for (TypeVariable typeParameter: getTypeParameters()) {
+				typeArguments.add(TypeReference.forTypeVariable(typeParameter.getName()).substitute(bindings));
+			}
+			return typeArguments;
+		}
+		List<TypeReference> supertypeReferences = new ArrayList<>();
+		if (getGenericSuperclass() != null) {
+			supertypeReferences.add(getGenericSuperclass());
+		}
+		supertypeReferences.addAll(getGenericInterfaces());
+		for (TypeReference supertypeReference: supertypeReferences) {
+			Type supertype;
+			try {
+				supertype = supertypeReference.resolve(typeSystem);
+			} catch (MissingTypeException mte) {
+				// not on classpath, that's ok
+				continue;
+			}
+			Map<String, TypeReference> supertypeBindings = new HashMap<>();
+			List<TypeVariable> supertypeParameters = supertype.getTypeParameters();
+			List<TypeReference> typeArguments = supertypeReference.getTypeArguments();
+			// No type arguments for a raw supertype, its type parameters stay unbound
+			if (typeArguments.size() == supertypeParameters.size()) {
+				for (int i = 0; i < typeArguments.size(); i++) {
+					supertypeBindings.put(supertypeParameters.get(i).getName(), typeArguments.get(i).substitute(bindings));
+				}
+			}
+			List<TypeReference> result = supertype.findTypeArguments(slashedTypeName, supertypeBindings);
+			if (result != null) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	private ClassSignature getGenericSignature() {
+		ClassSignature genericSignature = this.genericSignature;
+		if (genericSignature == null) {
+			genericSignature = SignatureParser.parseClassSignature(header);
+			this.genericSignature = genericSignature;
+		}
+		return genericSignature;
+	}
+
+	public List<Method> getMethodsWithAnnotation(String string) {
+		Method[] methods = (header.methods == null) ? typeSystem.getMethods(getName()) : header.methods;
+		return Arrays.stream(methods).filter(m -> m.hasAnnotation(string)).collect(Collectors.toList());
 	}
 	
 
@@ -142,178 +287,7 @@ public class Type {
 		if (this == other) {
 			return true;
 		}
-		
-//		System.out.println("XX:"+this.getName());
-		if (this.getName().equals("Ljava/lang/Object;")) {
-			return true;
-		}
-
-//		if (!isTypeVariableReference()
-//				&& other.getSignature().equals("Ljava/lang/Object;")) {
-//			return false;
-//		}
-
-//		boolean thisRaw = this.isRawType();
-//		if (thisRaw && other.isParameterizedOrGenericType()) {
-//			return isAssignableFrom(other.getRawType());
-//		}
-//
-//		boolean thisGeneric = this.isGenericType();
-//		if (thisGeneric && other.isParameterizedOrRawType()) {
-//			return isAssignableFrom(other.getGenericType());
-//		}
-//
-//		if (this.isParameterizedType()) {
-//			// look at wildcards...
-//			if (((ReferenceType) this.getRawType()).isAssignableFrom(other)) {
-//				boolean wildcardsAllTheWay = true;
-//				ResolvedType[] myParameters = this.getResolvedTypeParameters();
-//				for (int i = 0; i < myParameters.length; i++) {
-//					if (!myParameters[i].isGenericWildcard()) {
-//						wildcardsAllTheWay = false;
-//					} else {
-//						BoundedReferenceType boundedRT = (BoundedReferenceType) myParameters[i];
-//						if (boundedRT.isExtends() || boundedRT.isSuper()) {
-//							wildcardsAllTheWay = false;
-//						}
-//					}
-//				}
-//				if (wildcardsAllTheWay && !other.isParameterizedType()) {
-//					return true;
-//				}
-//				// we have to match by parameters one at a time
-//				ResolvedType[] theirParameters = other
-//						.getResolvedTypeParameters();
-//				boolean parametersAssignable = true;
-//				if (myParameters.length == theirParameters.length) {
-//					for (int i = 0; i < myParameters.length
-//							&& parametersAssignable; i++) {
-//						if (myParameters[i] == theirParameters[i]) {
-//							continue;
-//						}
-//						// dont do this: pr253109
-//						// if
-//						// (myParameters[i].isAssignableFrom(theirParameters[i],
-//						// allowMissing)) {
-//						// continue;
-//						// }
-//						ResolvedType mp = myParameters[i];
-//						ResolvedType tp = theirParameters[i];
-//						if (mp.isParameterizedType()
-//								&& tp.isParameterizedType()) {
-//							if (mp.getGenericType().equals(tp.getGenericType())) {
-//								UnresolvedType[] mtps = mp.getTypeParameters();
-//								UnresolvedType[] ttps = tp.getTypeParameters();
-//								for (int ii = 0; ii < mtps.length; ii++) {
-//									if (mtps[ii].isTypeVariableReference()
-//											&& ttps[ii]
-//													.isTypeVariableReference()) {
-//										TypeVariable mtv = ((TypeVariableReferenceType) mtps[ii])
-//												.getTypeVariable();
-//										boolean b = mtv
-//												.canBeBoundTo((ResolvedType) ttps[ii]);
-//										if (!b) {// TODO incomplete testing here
-//													// I think
-//											parametersAssignable = false;
-//											break;
-//										}
-//									} else {
-//										parametersAssignable = false;
-//										break;
-//									}
-//								}
-//								continue;
-//							} else {
-//								parametersAssignable = false;
-//								break;
-//							}
-//						}
-//						if (myParameters[i].isTypeVariableReference()
-//								&& theirParameters[i].isTypeVariableReference()) {
-//							TypeVariable myTV = ((TypeVariableReferenceType) myParameters[i])
-//									.getTypeVariable();
-//							// TypeVariable theirTV =
-//							// ((TypeVariableReferenceType)
-//							// theirParameters[i]).getTypeVariable();
-//							boolean b = myTV.canBeBoundTo(theirParameters[i]);
-//							if (!b) {// TODO incomplete testing here I think
-//								parametersAssignable = false;
-//								break;
-//							} else {
-//								continue;
-//							}
-//						}
-//						if (!myParameters[i].isGenericWildcard()) {
-//							parametersAssignable = false;
-//							break;
-//						} else {
-//							BoundedReferenceType wildcardType = (BoundedReferenceType) myParameters[i];
-//							if (!wildcardType.alwaysMatches(theirParameters[i])) {
-//								parametersAssignable = false;
-//								break;
-//							}
-//						}
-//					}
-//				} else {
-//					parametersAssignable = false;
-//				}
-//				if (parametersAssignable) {
-//					return true;
-//				}
-//			}
-//		}
-//
-//		// eg this=T other=Ljava/lang/Object;
-//		if (isTypeVariableReference() && !other.isTypeVariableReference()) {
-//			TypeVariable aVar = ((TypeVariableReference) this)
-//					.getTypeVariable();
-//			return aVar.resolve(world).canBeBoundTo(other);
-//		}
-//
-//		if (other.isTypeVariableReference()) {
-//			TypeVariableReferenceType otherType = (TypeVariableReferenceType) other;
-//			if (this instanceof TypeVariableReference) {
-//				return ((TypeVariableReference) this)
-//						.getTypeVariable()
-//						.resolve(world)
-//						.canBeBoundTo(
-//								otherType.getTypeVariable().getFirstBound()
-//										.resolve(world));// pr171952
-//				// return
-//				// ((TypeVariableReference)this).getTypeVariable()==otherType
-//				// .getTypeVariable();
-//			} else {
-//				// FIXME asc should this say canBeBoundTo??
-//				return this.isAssignableFrom(otherType.getTypeVariable()
-//						.getFirstBound().resolve(world));
-//			}
-//		}
-
-		Type[] interfaces = other.getInterfaces();
-		for (Type intface : interfaces) {
-			boolean b;
-//			if (thisRaw && intface.isParameterizedOrGenericType()) {
-//				b = this.isAssignableFrom(intface.getRawType(), allowMissing);
-//			} else {
-				b = this.isAssignableFrom(intface);
-//			}
-			if (b) {
-				return true;
-			}
-		}
-		Type superclass = other.getSuperclass();
-		if (superclass != null) {
-			boolean b;
-//			if (thisRaw && superclass.isParameterizedOrGenericType()) {
-//				b = this.isAssignableFrom(superclass.getRawType(), allowMissing);
-//			} else {
-			b = this.isAssignableFrom(superclass);
-//			}
-			if (b) {
-				return true;
-			}
-		}
-		return false;
+		return other.getAncestors().includes(typeSystem.getTypeId(getName()));
 	}
 
 	private boolean isPrimitiveType() {
@@ -322,31 +296,31 @@ public class Type {
 	}
 
 	public boolean isInterface() {
-		return Modifier.isInterface(node.access);
+		return Modifier.isInterface(header.access);
 	}
 	
+	/**
+	 * @param lookingFor an annotation descriptor
+	 * @return true if the annotation is on this type or, transitively, on any of its annotations
+	 */
 	public boolean hasAnnotationInHierarchy(String lookingFor) {
-		return hasAnnotationInHierarchy(lookingFor, new ArrayList<String>());
-	}
-	
-	public boolean hasAnnotationInHierarchy(String lookingFor, List<String> seen) {
-		for (AnnotationNode anno: node.visibleAnnotations) {
-			if (seen.contains(anno.desc)) continue; 
-			seen.add(anno.desc);
-//			System.out.println("Comparing "+anno.desc+" with "+lookingFor);
-			if (anno.desc.equals(lookingFor)) {
-				return true;
-			}
-			try {
-			Type resolve = typeSystem.Lresolve(anno.desc);
-				if (resolve.hasAnnotationInHierarchy(lookingFor, seen)) {
-					return true;
-				}
-			} catch (MissingTypeException mte) {
-				// not on classpath, that's ok
-			}
+		BitSet closure = this.metaAnnotationClosure;
+		if (closure == null) {
+			closure = typeSystem.computeMetaAnnotationClosure(this);
+			this.metaAnnotationClosure = closure;
 		}
-		return false;
+		return typeSystem.isInMetaAnnotationClosure(closure, lookingFor);
+	}
+
+	/**
+	 * @return the meta annotation closure if it has already been computed, otherwise null
+	 */
+	BitSet getComputedMetaAnnotationClosure() {
+		return metaAnnotationClosure;
+	}
+
+	String[] getAnnotationDescriptors() {
+		return header.annotations;
 	}
 
 	public boolean isMetaAnnotated(String slashedTypeDescriptor) {
@@ -370,22 +344,21 @@ public class Type {
 		return false;
 	}
 
-	List<Type> annotations = null;
+	volatile List<Type> annotations = null;
 	
 	public static final List<Type> NO_ANNOTATIONS = Collections.emptyList();
 	
 	private List<Type> getAnnotations() {
+		List<Type> annotations = this.annotations;
 		if (annotations == null) {
 			annotations = new ArrayList<>();
-			if (node.visibleAnnotations != null) {
-			for (AnnotationNode an: node.visibleAnnotations) {
+			for (String an: header.annotations) {
 				try {
-					annotations.add(this.typeSystem.Lresolve(an.desc));
+					annotations.add(this.typeSystem.Lresolve(an));
 				} catch (MissingTypeException mte) {
 					// that's ok you weren't relying on it anyway!
 				}
 			}
-			}
 //			if (node.invisibleAnnotations != null) {
 //			for (AnnotationNode an: node.invisibleAnnotations) {
 //				try {
@@ -398,6 +371,7 @@ public class Type {
 			if (annotations.size()==0 ) {
 				annotations = NO_ANNOTATIONS;
 			}
+			this.annotations = annotations;
 		}
 		return annotations;
 	}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.type;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Downward view of the type hierarchy: for each type the types that directly extend or implement it. {@link Type}
+ * can only walk up, so without this finding every implementation of an interface means resolving every class in
+ * the jar. The index is filled in from the supertypes the scan sees for each class (application classes and
+ * dependencies, not the JDK) so only covers types in the jar, but those can have JDK supertypes (everything
+ * implementing {@code java/io/Serializable} is found). Populated once after the scan, read only after that.
+ *
+ * @author Andy Clement
+ */
+public class TypeHierarchyIndex {
+
+	private final Map<String, List<String>> directSubtypes = new HashMap<>();
+
+	private int typeCount;
+
+	/**
+	 * Record a type and its direct supertypes.
+	 *
+	 * @param superName the slashed superclass name, null for java/lang/Object
+	 * @param interfaces the slashed names of the directly implemented (or, for an interface, extended) interfaces
+	 */
+	public void add(String slashedTypeName, String superName, String[] interfaces) {
+		if (superName != null) {
+			addSubtype(superName, slashedTypeName);
+		}
+		for (String interfaceName : interfaces) {
+			addSubtype(interfaceName, slashedTypeName);
+		}
+		typeCount++;
+	}
+
+	private void addSubtype(String supertypeName, String subtypeName) {
+		List<String> subtypes = directSubtypes.get(supertypeName);
+		if (subtypes == null) {
+			subtypes = new ArrayList<>(2);
+			directSubtypes.put(supertypeName, subtypes);
+		}
+		subtypes.add(subtypeName);
+	}
+
+	/**
+	 * @return the slashed names of the types that directly extend or implement the type, in scan order
+	 */
+	public List<String> getDirectSubtypes(String slashedTypeName) {
+		List<String> subtypes = directSubtypes.get(slashedTypeName);
+		return (subtypes == null) ? Collections.emptyList() : Collections.unmodifiableList(subtypes);
+	}
+
+	/**
+	 * Find every type below the type in the hierarchy. For a class that is its subclasses, for an interface it is
+	 * every class implementing it (directly or through a superclass or subinterface) along with the subinterfaces
+	 * themselves. Only the part of the hierarchy below the type is visited, so the cost is proportional to the
+	 * number of results.
+	 *
+	 * @return the slashed names of the subtypes, nearest first
+	 */
+	public Set<String> getAllSubtypes(String slashedTypeName) {
+		Set<String> result = new LinkedHashSet<>();
+		Deque<String> toVisit = new ArrayDeque<>();
+		toVisit.add(slashedTypeName);
+		while (!toVisit.isEmpty()) {
+			List<String> subtypes = directSubtypes.get(toVisit.poll());
+			if (subtypes != null) {
+				for (String subtype : subtypes) {
+					if (result.add(subtype)) {
+						toVisit.add(subtype);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return how many types have been added
+	 */
+	public int size() {
+		return typeCount;
+	}
+
+}
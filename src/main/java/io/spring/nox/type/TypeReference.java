@@ -0,0 +1,184 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.type;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A use of a type in a generic signature: a class (possibly with type arguments), a type variable, an array, a
+ * primitive or a wildcard. References are immutable and not tied to a type system (they hang off class headers that
+ * may be shared), {@link #resolve(TypeSystem)} finds the type a class reference refers to.
+ *
+ * @author Andy Clement
+ */
+public class TypeReference {
+
+	public enum Kind {
+		CLASS, TYPE_VARIABLE, ARRAY, PRIMITIVE, WILDCARD
+	}
+
+	private final static List<TypeReference> NO_ARGUMENTS = Collections.emptyList();
+
+	private final Kind kind;
+
+	// Slashed class name, type variable name or primitive descriptor, null for array and wildcard
+	private final String name;
+
+	// The type arguments of a class, the component type of an array or the bound of a wildcard
+	private final List<TypeReference> arguments;
+
+	// For a wildcard '*' if unbounded, '+' for extends and '-' for super
+	private final char wildcardKind;
+
+	private TypeReference(Kind kind, String name, List<TypeReference> arguments, char wildcardKind) {
+		this.kind = kind;
+		this.name = name;
+		this.arguments = arguments;
+		this.wildcardKind = wildcardKind;
+	}
+
+	static TypeReference forClass(String slashedTypeName, List<TypeReference> typeArguments) {
+		return new TypeReference(Kind.CLASS, slashedTypeName,
+				typeArguments.isEmpty() ? NO_ARGUMENTS : Collections.unmodifiableList(typeArguments), (char) 0);
+	}
+
+	static TypeReference forTypeVariable(String name) {
+		return new TypeReference(Kind.TYPE_VARIABLE, name, NO_ARGUMENTS, (char) 0);
+	}
+
+	static TypeReference forArray(TypeReference componentType) {
+		return new TypeReference(Kind.ARRAY, null, Collections.singletonList(componentType), (char) 0);
+	}
+
+	static TypeReference forPrimitive(char descriptor) {
+		return new TypeReference(Kind.PRIMITIVE, String.valueOf(descriptor), NO_ARGUMENTS, (char) 0);
+	}
+
+	/**
+	 * @param wildcardKind '*' for an unbounded wildcard (bound is null), '+' for extends or '-' for super
+	 */
+	static TypeReference forWildcard(char wildcardKind, TypeReference bound) {
+		return new TypeReference(Kind.WILDCARD, null,
+				(bound == null) ? NO_ARGUMENTS : Collections.singletonList(bound), wildcardKind);
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the slashed class name, the type variable name or the primitive descriptor (e.g. I), null for an array
+	 * or wildcard
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the type arguments of a class reference, empty if it has none
+	 */
+	public List<TypeReference> getTypeArguments() {
+		return (kind == Kind.CLASS) ? arguments : NO_ARGUMENTS;
+	}
+
+	public TypeReference getComponentType() {
+		return (kind == Kind.ARRAY) ? arguments.get(0) : null;
+	}
+
+	/**
+	 * @return the bound of an extends or super wildcard, null otherwise
+	 */
+	public TypeReference getBound() {
+		return (kind == Kind.WILDCARD && !arguments.isEmpty()) ? arguments.get(0) : null;
+	}
+
+	public boolean isUpperBound() {
+		return wildcardKind == '+';
+	}
+
+	public boolean isLowerBound() {
+		return wildcardKind == '-';
+	}
+
+	/**
+	 * @return the type referred to by a class reference, null for any other kind of reference
+	 * @throws TypeSystem.MissingTypeException if the class cannot be found
+	 */
+	public Type resolve(TypeSystem typeSystem) {
+		return (kind == Kind.CLASS) ? typeSystem.resolveSlashed(name) : null;
+	}
+
+	/**
+	 * @return this reference with any type variables in the supplied map replaced with what they are bound to
+	 */
+	TypeReference substitute(Map<String, TypeReference> bindings) {
+		if (bindings.isEmpty()) {
+			return this;
+		}
+		switch (kind) {
+		case TYPE_VARIABLE:
+			TypeReference binding = bindings.get(name);
+			return (binding == null) ? this : binding;
+		case CLASS:
+			if (arguments.isEmpty()) {
+				return this;
+			}
+			List<TypeReference> substitutedArguments = new ArrayList<>(arguments.size());
+			for (TypeReference argument : arguments) {
+				substitutedArguments.add(argument.substitute(bindings));
+			}
+			return forClass(name, substitutedArguments);
+		case ARRAY:
+			return forArray(arguments.get(0).substitute(bindings));
+		case WILDCARD:
+			return arguments.isEmpty() ? this : forWildcard(wildcardKind, arguments.get(0).substitute(bindings));
+		default:
+			return this;
+		}
+	}
+
+	/**
+	 * @return the reference in Java source form, e.g. {@code java.util.Map<java.lang.String, ? extends T>}
+	 */
+	@Override
+	public String toString() {
+		switch (kind) {
+		case CLASS:
+			StringBuilder s = new StringBuilder(name.replace('/', '.'));
+			if (!arguments.isEmpty()) {
+				s.append('<');
+				for (int i = 0; i < arguments.size(); i++) {
+					s.append((i == 0) ? "" : ", ").append(arguments.get(i));
+				}
+				s.append('>');
+			}
+			return s.toString();
+		case ARRAY:
+			return arguments.get(0) + "[]";
+		case PRIMITIVE:
+			return org.objectweb.asm.Type.getType(name).getClassName();
+		case WILDCARD:
+			return arguments.isEmpty() ? "?" : (isUpperBound() ? "? extends " : "? super ") + arguments.get(0);
+		default:
+			return name;
+		}
+	}
+
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.type;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On disk snapshots of the {@link ClassHeader class headers} read from each dependency jar, keyed by the content key
+ * of the jar. A snapshot is a string table plus a sorted index of class records (access flags, name, supertypes,
+ * generic signature, annotations and methods, all as string table references). Snapshots are memory mapped and a
+ * header is only decoded when its type is resolved, the index is binary searched and strings are decoded the first
+ * time they are used, so resolving a type from a known dependency touches a few pages of the file rather than
+ * parsing the class.
+ * <p>
+ * A snapshot holds the headers that type systems have actually needed from the jar rather than every class in it.
+ * Anything missing is parsed as usual and, when the type system is closed, the snapshot is rewritten with those
+ * headers added. A memory budgeted type system stores headers without their methods, those are read from the class
+ * file when needed (and a type system that keeps methods parses the class again). Files are written to a temporary
+ * name and moved into place, a file that cannot be read (or turns out to be truncated once in use) is treated as if
+ * there were no snapshot.
+ *
+ * @author Andy Clement
+ */
+public class TypeSnapshotCache {
+
+	private final static int MAGIC = 0x4e4f5854; // NOXT
+
+	/**
+	 * Bump whenever what is recorded per class changes.
+	 */
+	private final static int FORMAT_VERSION = 2;
+
+	// magic, version, string count, class count
+	private final static int HEADER_SIZE = 16;
+
+	private final static Method[] NO_METHODS = new Method[0];
+
+	private final static Snapshot NO_SNAPSHOT = new Snapshot(ByteBuffer.allocate(HEADER_SIZE));
+
+	private final File cacheDirectory;
+
+	// Snapshots mapped so far, NO_SNAPSHOT where there is no usable file
+	private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+	// Headers that had to be parsed because the snapshot for their jar did not have them
+	private final Map<String, Map<String, ClassHeader>> parsedHeaders = new ConcurrentHashMap<>();
+
+	private PrintStream out = System.out;
+
+	public TypeSnapshotCache(File cacheDirectory) {
+		this.cacheDirectory = new File(cacheDirectory, "types");
+	}
+
+	/**
+	 * Report snapshots that cannot be read or written to the given stream rather than {@link System#out}.
+	 */
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * @return the header recorded for the type in the snapshot of the jar, or null if there isn't one
+	 */
+	ClassHeader find(String key, String slashedTypeName) {
+		Snapshot snapshot = snapshots.get(key);
+		if (snapshot == null) {
+			snapshot = snapshots.computeIfAbsent(key, this::open);
+		}
+		try {
+			return snapshot.find(slashedTypeName);
+		} catch (RuntimeException e) {
+			// The index was intact but the records or strings it points at are not
+			out.println("Ignoring unreadable type snapshot " + getFile(key) + ": " + e);
+			snapshots.put(key, NO_SNAPSHOT);
+			return null;
+		}
+	}
+
+	/**
+	 * Remember a header parsed from the jar, so that the next {@link #save()} adds it to the snapshot.
+	 */
+	void addParsedHeader(String key, String slashedTypeName, ClassHeader header) {
+		parsedHeaders.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).put(slashedTypeName, header);
+	}
+
+	/**
+	 * Rewrite the snapshot of every jar that had headers parsed since the last save, with those headers added to the
+	 * ones it already held.
+	 */
+	void save() {
+		for (String key : new ArrayList<>(parsedHeaders.keySet())) {
+			Map<String, ClassHeader> headers = new TreeMap<>(parsedHeaders.remove(key));
+			Snapshot snapshot = snapshots.remove(key);
+			if (snapshot != null) {
+				Map<String, ClassHeader> snapshotHeaders = new HashMap<>();
+				try {
+					snapshot.readAll(snapshotHeaders);
+					snapshotHeaders.forEach(headers::putIfAbsent);
+				} catch (RuntimeException e) {
+					out.println("Ignoring unreadable type snapshot " + getFile(key) + ": " + e);
+				}
+			}
+			write(key, headers);
+		}
+	}
+
+	private Snapshot open(String key) {
+		File file = getFile(key);
+		if (!file.isFile()) {
+			return NO_SNAPSHOT;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+				return NO_SNAPSHOT;
+			}
+			Snapshot snapshot = new Snapshot(buffer);
+			if (snapshot.getIndexEnd() > buffer.limit()) {
+				throw new IOException("Truncated snapshot");
+			}
+			return snapshot;
+		} catch (IOException | RuntimeException e) {
+			out.println("Ignoring unreadable type snapshot " + file + ": " + e);
+			return NO_SNAPSHOT;
+		}
+	}
+
+	private void write(String key, Map<String, ClassHeader> headers) {
+		Map<String, Integer> stringIndexes = new HashMap<>();
+		List<String> strings = new ArrayList<>();
+		int[] nameIndexes = new int[headers.size()];
+		int[] recordOffsets = new int[headers.size()];
+		ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+		File file = getFile(key);
+		try {
+			DataOutputStream records = new DataOutputStream(recordBytes);
+			int c = 0;
+			for (ClassHeader header : headers.values()) {
+				nameIndexes[c] = index(header.name, stringIndexes, strings);
+				recordOffsets[c] = records.size();
+				records.writeInt(header.access);
+				records.writeInt(nameIndexes[c]);
+				records.writeInt((header.superName == null) ? -1 : index(header.superName, stringIndexes, strings));
+				records.writeInt((header.signature == null) ? -1 : index(header.signature, stringIndexes, strings));
+				writeStrings(header.interfaces, records, stringIndexes, strings);
+				writeStrings(header.annotations, records, stringIndexes, strings);
+				// -1 for a header stored without its methods
+				records.writeInt((header.methods == null) ? -1 : header.methods.length);
+				for (Method method : (header.methods == null) ? NO_METHODS : header.methods) {
+					records.writeInt(method.getAccess());
+					records.writeInt(index(method.getName(), stringIndexes, strings));
+					records.writeInt(index(method.getDesc(), stringIndexes, strings));
+					records.writeInt((method.getSignature() == null) ? -1
+							: index(method.getSignature(), stringIndexes, strings));
+					writeStrings(method.getAnnotations(), records, stringIndexes, strings);
+				}
+				c++;
+			}
+			DataOutputStream stringData = new DataOutputStream(stringBytes);
+			int stringsStart = HEADER_SIZE + strings.size() * 4 + headers.size() * 8;
+			int[] stringOffsets = new int[strings.size()];
+			for (int i = 0; i < stringOffsets.length; i++) {
+				stringOffsets[i] = stringsStart + stringData.size();
+				stringData.writeUTF(strings.get(i));
+			}
+			int recordsStart = stringsStart + stringData.size();
+			Files.createDirectories(cacheDirectory.toPath());
+			File tempFile = File.createTempFile(key, ".tmp", cacheDirectory);
+			try {
+				try (FileOutputStream out = new FileOutputStream(tempFile)) {
+					ByteArrayOutputStream index = new ByteArrayOutputStream(stringsStart);
+					DataOutputStream indexData = new DataOutputStream(index);
+					indexData.writeInt(MAGIC);
+					indexData.writeInt(FORMAT_VERSION);
+					indexData.writeInt(strings.size());
+					indexData.writeInt(headers.size());
+					for (int stringOffset : stringOffsets) {
+						indexData.writeInt(stringOffset);
+					}
+					for (int i = 0; i < nameIndexes.length; i++) {
+						indexData.writeInt(nameIndexes[i]);
+						indexData.writeInt(recordsStart + recordOffsets[i]);
+					}
+					index.writeTo(out);
+					stringBytes.writeTo(out);
+					recordBytes.writeTo(out);
+				}
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tempFile.toPath());
+			}
+		} catch (IOException ioe) {
+			// Not fatal, the next run just parses the classes again
+			out.println("Unable to write type snapshot " + file + ": " + ioe);
+		}
+	}
+
+	private static void writeStrings(String[] values, DataOutputStream out, Map<String, Integer> stringIndexes,
+			List<String> strings) throws IOException {
+		out.writeInt(values.length);
+		for (String value : values) {
+			out.writeInt(index(value, stringIndexes, strings));
+		}
+	}
+
+	private static int index(String string, Map<String, Integer> stringIndexes, List<String> strings) {
+		Integer index = stringIndexes.get(string);
+		if (index == null) {
+			index = strings.size();
+			stringIndexes.put(string, index);
+			strings.add(string);
+		}
+		return index;
+	}
+
+	private File getFile(String key) {
+		return new File(cacheDirectory, key + ".types");
+	}
+
+	/**
+	 * A mapped snapshot file. Only absolute reads are made from the buffer so it can be used from many threads.
+	 */
+	private static class Snapshot {
+
+		private final ByteBuffer buffer;
+
+		// Decoded on first use, racing threads decode the same string
+		private final String[] strings;
+
+		private final int classCount;
+
+		Snapshot(ByteBuffer buffer) {
+			this.buffer = buffer;
+			this.strings = new String[buffer.getInt(8)];
+			this.classCount = buffer.getInt(12);
+		}
+
+		int getIndexEnd() {
+			return HEADER_SIZE + strings.length * 4 + classCount * 8;
+		}
+
+		ClassHeader find(String slashedTypeName) {
+			int indexStart = HEADER_SIZE + strings.length * 4;
+			int low = 0;
+			int high = classCount - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int entry = indexStart + middle * 8;
+				int comparison = getString(buffer.getInt(entry)).compareTo(slashedTypeName);
+				if (comparison < 0) {
+					low = middle + 1;
+				} else if (comparison > 0) {
+					high = middle - 1;
+				} else {
+					return read(buffer.getInt(entry + 4));
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Add every header in the snapshot to the map, unless it already has one for that type.
+		 */
+		void readAll(Map<String, ClassHeader> headers) {
+			int indexStart = HEADER_SIZE + strings.length * 4;
+			for (int i = 0; i < classCount; i++) {
+				int entry = indexStart + i * 8;
+				String name = getString(buffer.getInt(entry));
+				if (!headers.containsKey(name)) {
+					headers.put(name, read(buffer.getInt(entry + 4)));
+				}
+			}
+		}
+
+		private ClassHeader read(int offset) {
+			int access = buffer.getInt(offset);
+			String name = getString(buffer.getInt(offset + 4));
+			int superIndex = buffer.getInt(offset + 8);
+			String superName = (superIndex == -1) ? null : getString(superIndex);
+			String signature = getOptionalString(buffer.getInt(offset + 12));
+			offset += 16;
+			String[] interfaces = readStrings(offset);
+			offset += 4 + interfaces.length * 4;
+			String[] annotations = readStrings(offset);
+			offset += 4 + annotations.length * 4;
+			int methodCount = buffer.getInt(offset);
+			Method[] methods = (methodCount == -1) ? null : new Method[methodCount];
+			offset += 4;
+			for (int m = 0; m < methodCount; m++) {
+				int methodAccess = buffer.getInt(offset);
+				String methodName = getString(buffer.getInt(offset + 4));
+				String methodDesc = getString(buffer.getInt(offset + 8));
+				String methodSignature = getOptionalString(buffer.getInt(offset + 12));
+				String[] methodAnnotations = readStrings(offset + 16);
+				offset += 20 + methodAnnotations.length * 4;
+				methods[m] = new Method(methodAccess, methodName, methodDesc, methodSignature, methodAnnotations);
+			}
+			return new ClassHeader(access, name, superName, signature, interfaces, annotations, methods);
+		}
+
+		private String[] readStrings(int offset) {
+			int count = buffer.getInt(offset);
+			if (count == 0) {
+				return ClassHeader.NO_STRINGS;
+			}
+			String[] result = new String[count];
+			for (int i = 0; i < count; i++) {
+				result[i] = getString(buffer.getInt(offset + 4 + i * 4));
+			}
+			return result;
+		}
+
+		private String getOptionalString(int index) {
+			return (index == -1) ? null : getString(index);
+		}
+
+		private String getString(int index) {
+			String string = strings[index];
+			if (string == null) {
+				int offset = buffer.getInt(HEADER_SIZE + index * 4);
+				// Stored with writeUTF, a two byte length then modified UTF-8
+				byte[] bytes = new byte[2 + (buffer.getShort(offset) & 0xffff)];
+				for (int i = 0; i < bytes.length; i++) {
+					bytes[i] = buffer.get(offset + i);
+				}
+				try {
+					string = new DataInputStream(new ByteArrayInputStream(bytes)).readUTF().intern();
+				} catch (IOException ioe) {
+					throw new IllegalStateException("Unable to decode string #" + index + " of type snapshot", ioe);
+				}
+				strings[index] = string;
+			}
+			return string;
+		}
+	}
+
+}
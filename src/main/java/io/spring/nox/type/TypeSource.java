@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.type;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+
+/**
+ * Where a {@link TypeSystem} finds class files for the types it resolves (anything not found here is looked for in
+ * the backing JDK). {@link BootJarScanner} reads the layout of a Boot fat jar, {@link ClasspathTypeSource} reads a
+ * regular classpath of directories and jars.
+ *
+ * @author Andy Clement
+ */
+public interface TypeSource extends Closeable {
+
+	/**
+	 * @return the class file for the type, or null if this source does not contain it
+	 */
+	byte[] find(String slashedTypeName);
+
+	/**
+	 * Describe where {@link #find(String)} would load a type from. Dependency classes are described as
+	 * "lib:&lt;content key of the jar&gt;" and application classes as "app:&lt;crc&gt;:&lt;size&gt;" so that two
+	 * sources containing the same class file agree whatever their layout.
+	 * 
+	 * @return the origin of the type, or null if this source does not contain it
+	 */
+	String getOrigin(String slashedTypeName);
+
+	/**
+	 * Report what the source contains, printed once the type system using it has been created.
+	 */
+	default void printSummary(PrintStream out) {
+	}
+
+}
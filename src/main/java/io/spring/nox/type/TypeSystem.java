@@ -15,30 +15,114 @@
  */
 package io.spring.nox.type;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.tree.ClassNode;
+
+import io.spring.nox.jar.MappedJar;
 
 /**
- * Quick n dirty type system based on boot jar contents (plus backing JDK).
+ * Quick n dirty type system based on boot jar contents (plus backing JDK). Where class files come from is a
+ * {@link TypeSource}, so it can equally be built from a regular classpath.
  * 
  * @author Andy Clement
  */
-public class TypeSystem {
+public class TypeSystem implements Closeable {
 
 	private File jarpath;
 
-	private BootJarScanner scanner;
+	private TypeSource typeSource;
+
+	// Loading never resolves other types, so computing an entry never needs to touch the map again
+	private final Map<String, Type> typeCache = new ConcurrentHashMap<>();
+
+	// Annotation descriptors are numbered as they are met so that meta annotation closures can be bitsets
+	private final Map<String, Integer> annotationIds = new ConcurrentHashMap<>();
+
+	private final AtomicInteger nextAnnotationId = new AtomicInteger();
+
+	// Type names are numbered too, ancestor sets are sorted arrays of these
+	private final Map<String, Integer> typeIds = new ConcurrentHashMap<>();
+
+	private final AtomicInteger nextTypeId = new AtomicInteger();
+
+	// Answers for getCommonSuperclass(), keyed by the two names in order
+	private final Map<String, String> commonSuperclasses = new ConcurrentHashMap<>();
 
-	private Map<String, Type> typeCache = new HashMap<>();
+	private SharedTypeCache sharedTypeCache;
+
+	private TypeSnapshotCache typeSnapshotCache;
+
+	// Only set for a memory budgeted type system, then headers are held without their methods
+	private MethodCache methodCache;
+
+	private final TypeHierarchyIndex hierarchyIndex = new TypeHierarchyIndex();
+
+	// When set for a thread, every type name that thread resolves is added to the set
+	private ThreadLocal<Set<String>> resolutionRecorder = new ThreadLocal<>();
+
+	// Captured up front, resolution may happen on pool threads with a different context loader
+	private ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
 
 	public TypeSystem(File jarpath) {
 		this.jarpath = jarpath;
-		this.scanner = new BootJarScanner(jarpath);
+		this.typeSource = new BootJarScanner(jarpath);
+	}
+
+	public TypeSystem(MappedJar bootJar) {
+		this.jarpath = bootJar.getFile();
+		this.typeSource = new BootJarScanner(bootJar);
+	}
+
+	/**
+	 * @param typeSource where to find class files, closed when the type system is closed
+	 */
+	public TypeSystem(TypeSource typeSource) {
+		this.typeSource = typeSource;
+	}
+
+	/**
+	 * Share parsed dependency classes with other type systems, see {@link SharedTypeCache}.
+	 */
+	public void setSharedTypeCache(SharedTypeCache sharedTypeCache) {
+		this.sharedTypeCache = sharedTypeCache;
+	}
+
+	/**
+	 * Load classes from dependency jars from on disk snapshots where possible, see {@link TypeSnapshotCache}. The
+	 * snapshots are updated with anything that had to be parsed when the type system is closed.
+	 */
+	public void setTypeSnapshotCache(TypeSnapshotCache typeSnapshotCache) {
+		this.typeSnapshotCache = typeSnapshotCache;
+	}
+
+	/**
+	 * Bound the memory used for the methods of resolved types. Everything else about a type stays in memory, the
+	 * methods (most of the size of a type) are held in a least recently used cache of about this many bytes and read
+	 * from the class file again if needed after being dropped. Set before any types are resolved.
+	 */
+	public void setMemoryBudget(long bytes) {
+		this.methodCache = new MethodCache(bytes);
+	}
+
+	/**
+	 * Report what the type source contains.
+	 */
+	public void printSummary(PrintStream out) {
+		typeSource.printSummary(out);
 	}
 
 	public static TypeSystem forBootJar(String jarpath) {
@@ -50,6 +134,17 @@ public class TypeSystem {
 		return typeSystem;
 	}
 
+	public static TypeSystem forBootJar(MappedJar bootJar) {
+		return new TypeSystem(bootJar);
+	}
+
+	/**
+	 * @param classpath directories and jars, as they would be passed to java -cp
+	 */
+	public static TypeSystem forClasspath(List<File> classpath) {
+		return new TypeSystem(new ClasspathTypeSource(classpath));
+	}
+
 	public Type resolveDotted(String dottedTypeName) {
 		String slashedTypeName = toSlashedName(dottedTypeName);
 		return resolveSlashed(slashedTypeName);
@@ -80,23 +175,83 @@ public class TypeSystem {
 		}
 	}
 	
+	/**
+	 * Resolve a type, safe to call from any number of threads. Once a type has been resolved lookups are a plain read
+	 * of the cache. The first thread to ask for a type not yet in the cache loads it while other threads asking for
+	 * the same type wait for that result, so each type is loaded once and every caller sees the same {@link Type}.
+	 */
 	public Type resolveSlashed(String slashedTypeName) {
+		recordResolution(slashedTypeName);
 		Type type = typeCache.get(slashedTypeName);
-		if (type==Type.MISSING) {
-			throw new MissingTypeException(slashedTypeName);			
+		if (type == null) {
+			type = typeCache.computeIfAbsent(slashedTypeName, this::load);
+		}
+		if (type == Type.MISSING) {
+			throw new MissingTypeException(slashedTypeName);
 		}
-		if (type!= null) {
-			return type;
+		return type;
+	}
+
+	/**
+	 * Load a type that is not in the type cache, called at most once per type.
+	 * 
+	 * @return the type or {@link Type#MISSING} (which is cached so we don't go looking again)
+	 */
+	private Type load(String slashedTypeName) {
+		String dependencyKey = null;
+		String snapshotKey = null;
+		ClassHeader header = null;
+		if (sharedTypeCache != null || typeSnapshotCache != null) {
+			// Dependency classes are shared by the content of their jar, anything not in the boot jar comes from
+			// the JDK this process is running on. Application classes change build to build so are not shared.
+			// Only dependencies are snapshotted, the next run may be on a different JDK.
+			String origin = typeSource.getOrigin(slashedTypeName);
+			if (origin == null || origin.startsWith("lib:")) {
+				dependencyKey = (origin == null) ? "system" : origin;
+				snapshotKey = (origin == null || typeSnapshotCache == null) ? null : origin.substring(4);
+				header = (sharedTypeCache == null) ? null : sharedTypeCache.get(dependencyKey, slashedTypeName);
+				if (header == null && snapshotKey != null) {
+					header = typeSnapshotCache.find(snapshotKey, slashedTypeName);
+					if (header != null && sharedTypeCache != null) {
+						sharedTypeCache.put(dependencyKey, slashedTypeName, header);
+					}
+				}
+			}
+		}
+		// Stored without methods by a memory budgeted type system, this one keeps them so needs the class file
+		if (header == null || (header.methods == null && methodCache == null)) {
+			byte[] bytes = findBytes(slashedTypeName);
+			if (bytes == null) {
+				return Type.MISSING;
+			}
+			header = ClassHeader.read(bytes);
+			if (methodCache != null) {
+				methodCache.put(slashedTypeName, header.methods);
+				header = header.withoutMethods();
+			}
+			if (dependencyKey != null && sharedTypeCache != null) {
+				sharedTypeCache.put(dependencyKey, slashedTypeName, header);
+			}
+			if (snapshotKey != null) {
+				typeSnapshotCache.addParsedHeader(snapshotKey, slashedTypeName, header);
+			}
+		} else if (methodCache != null && header.methods != null) {
+			methodCache.put(slashedTypeName, header.methods);
+			header = header.withoutMethods();
 		}
-		byte[] bytes = scanner.find(slashedTypeName);
+		return Type.forClassHeader(this, header);
+	}
+
+	/**
+	 * @return the class file for the type from the type source or the backing JDK, or null if it cannot be found
+	 */
+	private byte[] findBytes(String slashedTypeName) {
+		byte[] bytes = typeSource.find(slashedTypeName);
 		if (bytes == null) {
 			// System class?
-			InputStream resourceAsStream = Thread.currentThread().getContextClassLoader()
-					.getResourceAsStream(slashedTypeName + ".class");
+			InputStream resourceAsStream = classLoader.getResourceAsStream(slashedTypeName + ".class");
 			if (resourceAsStream == null) {
-				// cache a missingtype so we don't go looking again!
-				typeCache.put(slashedTypeName, Type.MISSING);
-				throw new MissingTypeException(slashedTypeName);
+				return null;
 			}
 			try {
 				bytes = BootJarScanner.loadFromStream(resourceAsStream);
@@ -104,12 +259,61 @@ public class TypeSystem {
 				throw new RuntimeException("Problems loading class from resource stream: "+slashedTypeName, e);
 			}
 		}
-		ClassNode node = new ClassNode();
-		ClassReader reader = new ClassReader(bytes);
-		reader.accept(node, ClassReader.SKIP_DEBUG);
-		type = Type.forClassNode(this, node);
-		typeCache.put(slashedTypeName, type);
-		return type;
+		return bytes;
+	}
+
+	/**
+	 * Get the methods of a type whose header was stored without them, from the method cache or else by reading the
+	 * class file again.
+	 */
+	Method[] getMethods(String slashedTypeName) {
+		Method[] methods = (methodCache == null) ? null : methodCache.get(slashedTypeName);
+		if (methods == null) {
+			byte[] bytes = findBytes(slashedTypeName);
+			if (bytes == null) {
+				throw new MissingTypeException(slashedTypeName);
+			}
+			methods = ClassHeader.read(bytes).methods;
+			if (methodCache != null) {
+				methodCache.put(slashedTypeName, methods);
+			}
+		}
+		return methods;
+	}
+
+	/**
+	 * The methods of recently used types, least recently used are dropped once their estimated size exceeds the
+	 * budget.
+	 */
+	private static class MethodCache {
+
+		private final long budget;
+
+		private final LinkedHashMap<String, Method[]> methods = new LinkedHashMap<>(256, 0.75f, true);
+
+		private long size;
+
+		MethodCache(long budget) {
+			this.budget = budget;
+		}
+
+		synchronized Method[] get(String slashedTypeName) {
+			return methods.get(slashedTypeName);
+		}
+
+		synchronized void put(String slashedTypeName, Method[] typeMethods) {
+			Method[] previous = methods.put(slashedTypeName, typeMethods);
+			if (previous != null) {
+				size -= ClassHeader.estimateSize(previous);
+			}
+			size += ClassHeader.estimateSize(typeMethods);
+			Iterator<Method[]> iterator = methods.values().iterator();
+			// Always keep the entry just added
+			while (size > budget && methods.size() > 1) {
+				size -= ClassHeader.estimateSize(iterator.next());
+				iterator.remove();
+			}
+		}
 	}
 
 	private String toSlashedName(String dottedTypeName) {
@@ -134,8 +338,193 @@ public class TypeSystem {
 		return resolve(desc.substring(1,desc.length()-1));
 	}
 
+	/**
+	 * Check whether an annotation type has the specified annotation somewhere in its (meta) annotation hierarchy. An
+	 * annotation that cannot be resolved cannot be meta annotated.
+	 * 
+	 * @param annotationDesc descriptor of the annotation to check, e.g. Lorg/springframework/stereotype/Component;
+	 * @param lookingForDesc descriptor of the meta annotation to look for
+	 */
+	public boolean isMetaAnnotatedWith(String annotationDesc, String lookingForDesc) {
+		Type resolvedAnnotation;
+		try {
+			resolvedAnnotation = Lresolve(annotationDesc);
+		} catch (MissingTypeException mte) {
+			// c'est la vie... it's ok you can't be using it if we can't find it
+			return false;
+		} catch (RuntimeException e) {
+			throw new IllegalStateException("Unable to resolve " + annotationDesc);
+		}
+		return resolvedAnnotation.hasAnnotationInHierarchy(lookingForDesc);
+	}
+
+	/**
+	 * @return true if the annotation is in the closure (as computed by {@link #computeMetaAnnotationClosure(Type)})
+	 */
+	boolean isInMetaAnnotationClosure(BitSet closure, String annotationDesc) {
+		Integer id = annotationIds.get(annotationDesc);
+		// An annotation never met cannot be in any closure
+		return id != null && closure.get(id);
+	}
+
+	/**
+	 * Compute the descriptors of every annotation on a type, the annotations on those annotations and so on, as a set
+	 * of annotation ids. Annotations that cannot be resolved are included but contribute nothing further. Where an
+	 * annotation reached already has its closure computed that is merged in rather than walked again, so the first
+	 * few calls do the work and the rest mostly combine existing closures. The result is never modified once
+	 * returned.
+	 */
+	BitSet computeMetaAnnotationClosure(Type type) {
+		BitSet closure = new BitSet();
+		Deque<Type> toVisit = new ArrayDeque<>();
+		toVisit.push(type);
+		while (!toVisit.isEmpty()) {
+			for (String annotationDesc : toVisit.pop().getAnnotationDescriptors()) {
+				int id = annotationIds.computeIfAbsent(annotationDesc, d -> nextAnnotationId.getAndIncrement());
+				if (closure.get(id)) {
+					continue;
+				}
+				closure.set(id);
+				Type annotation;
+				try {
+					annotation = Lresolve(annotationDesc);
+				} catch (MissingTypeException mte) {
+					// not on classpath, that's ok
+					continue;
+				}
+				BitSet annotationClosure = annotation.getComputedMetaAnnotationClosure();
+				if (annotationClosure != null) {
+					closure.or(annotationClosure);
+				} else {
+					toVisit.push(annotation);
+				}
+			}
+		}
+		return closure;
+	}
+
+	/**
+	 * @return a small integer identifying the type name within this type system, the same name always gets the same id
+	 */
+	int getTypeId(String slashedTypeName) {
+		Integer id = typeIds.get(slashedTypeName);
+		if (id == null) {
+			id = typeIds.computeIfAbsent(slashedTypeName, n -> nextTypeId.getAndIncrement());
+		}
+		return id;
+	}
+
+	/**
+	 * Find the nearest superclass two types have in common, as {@code ClassWriter.getCommonSuperClass()} needs when
+	 * computing frames: one of the types if it is assignable from the other, java/lang/Object if either is an
+	 * interface, otherwise the first superclass of the first type that the second is assignable to. The same pairs
+	 * come up over and over again (in every method of every class rewritten), so answers are cached. Pairs involving
+	 * java/lang/Object or the same type twice are answered without looking anything up.
+	 */
+	public String getCommonSuperclass(String slashedTypeName1, String slashedTypeName2) {
+		if (slashedTypeName1.equals(slashedTypeName2)) {
+			return slashedTypeName1;
+		}
+		if (slashedTypeName1.equals("java/lang/Object") || slashedTypeName2.equals("java/lang/Object")) {
+			return "java/lang/Object";
+		}
+		// A cached answer still depends on the types, as if they had been resolved to work it out
+		recordResolution(slashedTypeName1);
+		recordResolution(slashedTypeName2);
+		String key = slashedTypeName1 + ";" + slashedTypeName2;
+		String commonSuperclass = commonSuperclasses.get(key);
+		if (commonSuperclass == null) {
+			commonSuperclass = computeCommonSuperclass(slashedTypeName1, slashedTypeName2);
+			commonSuperclasses.put(key, commonSuperclass);
+		}
+		return commonSuperclass;
+	}
+
+	/**
+	 * @return how many pairs of types have a cached {@link #getCommonSuperclass(String, String)} answer
+	 */
+	int getCommonSuperclassCacheSize() {
+		return commonSuperclasses.size();
+	}
+
+	private String computeCommonSuperclass(String slashedTypeName1, String slashedTypeName2) {
+		Type type1 = resolveSlashed(slashedTypeName1);
+		Type type2 = resolveSlashed(slashedTypeName2);
+		if (type1.isAssignableFrom(type2)) {
+			return slashedTypeName1;
+		}
+		if (type2.isAssignableFrom(type1)) {
+			return slashedTypeName2;
+		}
+		if (type1.isInterface() || type2.isInterface()) {
+			return "java/lang/Object";
+		}
+		do {
+			type1 = type1.getSuperclass();
+			if (type1 == null) {
+				// Only happens if some types are missing
+				return "java/lang/Object";
+			}
+		} while (!type1.isAssignableFrom(type2));
+		return type1.getName();
+	}
+
+	private void recordResolution(String slashedTypeName) {
+		Set<String> recorder = resolutionRecorder.get();
+		if (recorder != null) {
+			recorder.add(slashedTypeName);
+		}
+	}
+
+	/**
+	 * Record the names of all types resolved on the calling thread into the supplied set (which must be safe for
+	 * concurrent use if shared between threads). Pass null to stop recording.
+	 */
+	public void recordResolutions(Set<String> resolvedTypeNames) {
+		if (resolvedTypeNames == null) {
+			resolutionRecorder.remove();
+		} else {
+			resolutionRecorder.set(resolvedTypeNames);
+		}
+	}
+
+	/**
+	 * Describe where a type would be resolved from. Two type systems returning the same origin for a type see the same
+	 * class file for it.
+	 * 
+	 * @return the dependency or application class origin, "system:&lt;java version&gt;" for types from the backing JDK
+	 * or "missing"
+	 */
+	public String getOrigin(String slashedTypeName) {
+		String origin = typeSource.getOrigin(slashedTypeName);
+		if (origin == null) {
+			origin = (classLoader.getResource(slashedTypeName + ".class") != null)
+					? "system:" + System.getProperty("java.version")
+					: "missing";
+		}
+		return origin;
+	}
+
+	/**
+	 * @return the subtypes of each type in the jar, empty until the jar has been scanned
+	 */
+	public TypeHierarchyIndex getHierarchyIndex() {
+		return hierarchyIndex;
+	}
+
+	/**
+	 * @return the boot jar the type system was built from, or null if it was built from some other type source
+	 */
 	public File getJarpath() {
 		return jarpath;
 	}
 
+	@Override
+	public void close() throws IOException {
+		if (typeSnapshotCache != null) {
+			typeSnapshotCache.save();
+		}
+		typeSource.close();
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.spring.nox.type;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A type parameter declared by a generic class or method, e.g. the {@code E extends ApplicationEvent} of
+ * {@code ApplicationListener}.
+ *
+ * @author Andy Clement
+ */
+public class TypeVariable {
+
+	private final String name;
+
+	private final List<TypeReference> bounds;
+
+	TypeVariable(String name, List<TypeReference> bounds) {
+		this.name = name;
+		this.bounds = Collections.unmodifiableList(bounds);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the class bound (if there is one) followed by the interface bounds, for a variable declared without
+	 * bounds this is just java/lang/Object
+	 */
+	public List<TypeReference> getBounds() {
+		return bounds;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder(name);
+		for (int i = 0; i < bounds.size(); i++) {
+			s.append((i == 0) ? " extends " : " & ").append(bounds.get(i));
+		}
+		return s.toString();
+	}
+
+}
@@ -1,50 +1,263 @@
-//package io.spring.nox;
-//
-//import static org.junit.Assert.*;
-//
-//
-//import org.junit.BeforeClass;
-//import org.junit.Test;
-//
-//import io.spring.nox.type.Type;
-//import io.spring.nox.type.TypeSystem;
-//
-//public class TypeSystemTests {
-//
-//	static TypeSystem typeSystem;
-//	
-//	@BeforeClass
-//	public static void init() {
-//		typeSystem = TypeSystem.forBootJar(... need to sort this out...);
-//	}
-//
-//	@Test
-//	public void string() {
-//		Type string = typeSystem.resolveDotted("java.lang.String");
-//		assertNotNull(string);
-//		assertEquals("java/lang/String",string.getName());
-//	}
-//	
-//	@Test
-//	public void appClass() {
-//		Type funtime = typeSystem.resolveDotted("com/example/demo/Funtime");
-//		assertNotNull(funtime);
-//		assertEquals("com/example/demo/Funtime",funtime.getName());
-//	}
-//
-//	@Test
-//	public void dependencyClass() {
-//		Type beanFactory = typeSystem.resolveDotted("org/springframework/beans/factory/BeanFactory");
-//		assertNotNull(beanFactory);
-//		assertEquals("org/springframework/beans/factory/BeanFactory",beanFactory.getName());
-//	}
-//	
-//	@Test
-//	public void supertype() {
-//		Type enhancedConfiguration = typeSystem.resolveDotted("org/springframework/context/annotation/ConfigurationClassEnhancer$EnhancedConfiguration");
-//		assertNotNull(enhancedConfiguration);
-//		assertEquals("org/springframework/context/annotation/ConfigurationClassEnhancer$EnhancedConfiguration", enhancedConfiguration.getName());
-//		assertEquals("java/lang/Object", enhancedConfiguration.getSuperclass().getName());
-//		assertEquals("org/springframework/beans/factory/BeanFactoryAware",enhancedConfiguration.getInterfaces()[0].getName());
-//	}
-//}
+package io.spring.nox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.springframework.aop.Advisor;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.Resource;
+import org.springframework.expression.Expression;
+
+import io.spring.nox.type.Method;
+import io.spring.nox.type.Type;
+import io.spring.nox.type.TypeSystem;
+import io.spring.nox.type.TypeSystem.MissingTypeException;
+
+public class TypeSystemTests {
+
+	private final static String[] TYPES = { "java/lang/Object", "java/lang/String", "java/io/Closeable",
+			"java/lang/AutoCloseable", "org/springframework/context/annotation/AnnotationConfigApplicationContext",
+			"org/springframework/context/support/GenericApplicationContext",
+			"org/springframework/context/support/AbstractApplicationContext",
+			"org/springframework/context/ConfigurableApplicationContext",
+			"org/springframework/context/ApplicationContext", "org/springframework/context/Lifecycle",
+			"org/springframework/core/io/ResourceLoader", "org/springframework/beans/factory/BeanFactory",
+			"org/springframework/beans/factory/BeanFactoryAware",
+			"org/springframework/beans/factory/support/BeanDefinitionRegistry",
+			"org/springframework/context/annotation/ConfigurationClassPostProcessor",
+			"org/springframework/beans/factory/support/BeanDefinitionRegistryPostProcessor",
+			"org/springframework/beans/factory/config/BeanFactoryPostProcessor",
+			"org/springframework/context/annotation/ConfigurationClassEnhancer$EnhancedConfiguration",
+			"org/springframework/boot/SpringApplication", "org/springframework/boot/web/servlet/FilterRegistrationBean",
+			"com/example/demo/Funtime" };
+
+	private final static String[] ANNOTATIONS = { "org/springframework/context/annotation/Configuration",
+			"org/springframework/stereotype/Component", "org/springframework/stereotype/Service",
+			"org/springframework/stereotype/Indexed", "org/springframework/context/annotation/Import",
+			"org/springframework/context/annotation/Bean", "org/springframework/context/annotation/Conditional",
+			"org/springframework/boot/autoconfigure/SpringBootApplication",
+			"org/springframework/boot/SpringBootConfiguration",
+			"org/springframework/boot/autoconfigure/EnableAutoConfiguration",
+			"org/springframework/boot/autoconfigure/condition/ConditionalOnClass",
+			"java/lang/annotation/Documented", "java/lang/annotation/Retention" };
+
+	private final static String[] CONFIGURATION_CLASSES = {
+			"org/springframework/boot/autoconfigure/context/PropertyPlaceholderAutoConfiguration",
+			"org/springframework/boot/autoconfigure/jmx/JmxAutoConfiguration",
+			"org/springframework/boot/autoconfigure/info/ProjectInfoAutoConfiguration",
+			"org/springframework/boot/autoconfigure/admin/SpringApplicationAdminJmxAutoConfiguration",
+			"org/springframework/boot/autoconfigure/context/MessageSourceAutoConfiguration" };
+
+	@ClassRule
+	public static TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	static List<File> classpath;
+
+	static TypeSystem typeSystem;
+
+	@BeforeClass
+	public static void init() throws IOException {
+		File classesDirectory = temporaryFolder.newFolder();
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, "com/example/demo/Funtime", null, "java/lang/Object",
+				new String[] { "org/springframework/beans/factory/BeanFactoryAware" });
+		cw.visitAnnotation("Lorg/springframework/context/annotation/Configuration;", true).visitEnd();
+		cw.visitEnd();
+		File classFile = new File(classesDirectory, "com/example/demo/Funtime.class");
+		Files.createDirectories(classFile.getParentFile().toPath());
+		Files.write(classFile.toPath(), cw.toByteArray());
+		classpath = new ArrayList<>();
+		classpath.add(classesDirectory);
+		for (Class<?> type : new Class<?>[] { Configuration.class, BeanFactory.class, Resource.class, Advisor.class,
+				Expression.class, SpringApplication.class, SpringBootApplication.class }) {
+			classpath.add(new File(type.getProtectionDomain().getCodeSource().getLocation().getPath()));
+		}
+		typeSystem = TypeSystem.forClasspath(classpath);
+	}
+
+	@AfterClass
+	public static void close() throws IOException {
+		typeSystem.close();
+	}
+
+	@Test
+	public void string() {
+		Type string = typeSystem.resolveDotted("java.lang.String");
+		assertNotNull(string);
+		assertEquals("java/lang/String",string.getName());
+	}
+
+	@Test
+	public void appClass() {
+		Type funtime = typeSystem.resolveDotted("com/example/demo/Funtime");
+		assertNotNull(funtime);
+		assertEquals("com/example/demo/Funtime",funtime.getName());
+	}
+
+	@Test
+	public void dependencyClass() {
+		Type beanFactory = typeSystem.resolveDotted("org/springframework/beans/factory/BeanFactory");
+		assertNotNull(beanFactory);
+		assertEquals("org/springframework/beans/factory/BeanFactory",beanFactory.getName());
+	}
+
+	@Test
+	public void supertype() {
+		Type enhancedConfiguration = typeSystem.resolveDotted("org/springframework/context/annotation/ConfigurationClassEnhancer$EnhancedConfiguration");
+		assertNotNull(enhancedConfiguration);
+		assertEquals("org/springframework/context/annotation/ConfigurationClassEnhancer$EnhancedConfiguration", enhancedConfiguration.getName());
+		assertEquals("java/lang/Object", enhancedConfiguration.getSuperclass().getName());
+		assertEquals("org/springframework/beans/factory/BeanFactoryAware",enhancedConfiguration.getInterfaces()[0].getName());
+	}
+
+	@Test
+	public void concurrentResolutionGivesOneType() throws Exception {
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try (TypeSystem racingTypeSystem = TypeSystem.forClasspath(classpath)) {
+			for (String typeName : TYPES) {
+				CountDownLatch start = new CountDownLatch(1);
+				List<Future<Type>> results = new ArrayList<>();
+				for (int i = 0; i < threads; i++) {
+					Callable<Type> resolve = () -> {
+						start.await();
+						return racingTypeSystem.resolveSlashed(typeName);
+					};
+					results.add(executor.submit(resolve));
+				}
+				start.countDown();
+				Type first = results.get(0).get();
+				for (Future<Type> result : results) {
+					assertSame(typeName, first, result.get());
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void metaAnnotationsMatchWalk() {
+		int found = 0;
+		for (String annotation : ANNOTATIONS) {
+			for (String lookingFor : ANNOTATIONS) {
+				boolean expected = typeSystem.resolveSlashed(annotation).isMetaAnnotated(lookingFor);
+				assertEquals(annotation + " annotated with " + lookingFor, expected,
+						typeSystem.isMetaAnnotatedWith("L" + annotation + ";", "L" + lookingFor + ";"));
+				found += expected ? 1 : 0;
+			}
+		}
+		assertTrue(typeSystem.isMetaAnnotatedWith("Lorg/springframework/boot/autoconfigure/SpringBootApplication;",
+				"Lorg/springframework/stereotype/Component;"));
+		assertFalse(typeSystem.isMetaAnnotatedWith("Lorg/springframework/context/annotation/Bean;",
+				"Lorg/springframework/stereotype/Component;"));
+		assertTrue(found > 10);
+	}
+
+	@Test
+	public void assignabilityMatchesWalk() {
+		for (String name : TYPES) {
+			Type type = typeSystem.resolveSlashed(name);
+			for (String otherName : TYPES) {
+				Type other = typeSystem.resolveSlashed(otherName);
+				assertEquals(name + " assignable from " + otherName, walkIsAssignableFrom(type, other),
+						type.isAssignableFrom(other));
+				assertEquals(otherName + " implements " + name, walkImplementsInterface(other, name),
+						other.implementsInterface(name));
+			}
+		}
+		Type funtime = typeSystem.resolveSlashed("com/example/demo/Funtime");
+		assertTrue(funtime.implementsInterface("org/springframework/beans/factory/BeanFactoryAware"));
+		assertTrue(typeSystem.resolveSlashed("org/springframework/context/Lifecycle").isAssignableFrom(
+				typeSystem.resolveSlashed("org/springframework/context/annotation/AnnotationConfigApplicationContext")));
+	}
+
+	@Test
+	public void evictedMethodsAreReloaded() throws IOException {
+		try (TypeSystem budgetedTypeSystem = TypeSystem.forClasspath(classpath)) {
+			// Far too small for anything, only the methods of the type most recently loaded are kept
+			budgetedTypeSystem.setMemoryBudget(1);
+			for (int pass = 0; pass < 2; pass++) {
+				for (String name : CONFIGURATION_CLASSES) {
+					List<String> expected = getBeanMethods(typeSystem.resolveSlashed(name));
+					assertFalse(name, expected.isEmpty());
+					assertEquals(name, expected, getBeanMethods(budgetedTypeSystem.resolveSlashed(name)));
+				}
+			}
+		}
+	}
+
+	private static List<String> getBeanMethods(Type type) {
+		return type.getMethodsWithAnnotation("Lorg/springframework/context/annotation/Bean;").stream()
+				.map(Method::toString).collect(Collectors.toList());
+	}
+
+	/**
+	 * The original recursive walk of the hierarchy that {@link Type#isAssignableFrom(Type)} used.
+	 */
+	private static boolean walkIsAssignableFrom(Type type, Type other) {
+		if (type == other) {
+			return true;
+		}
+		for (Type intface : other.getInterfaces()) {
+			if (walkIsAssignableFrom(type, intface)) {
+				return true;
+			}
+		}
+		Type superclass = getSuperclass(other);
+		return superclass != null && walkIsAssignableFrom(type, superclass);
+	}
+
+	/**
+	 * The original recursive walk of the hierarchy that {@link Type#implementsInterface(String)} used.
+	 */
+	private static boolean walkImplementsInterface(Type type, String interfaceName) {
+		for (Type intface : type.getInterfaces()) {
+			if (intface.getName().equals(interfaceName) || walkImplementsInterface(intface, interfaceName)) {
+				return true;
+			}
+		}
+		Type superclass = getSuperclass(type);
+		while (superclass != null) {
+			if (walkImplementsInterface(superclass, interfaceName)) {
+				return true;
+			}
+			superclass = getSuperclass(superclass);
+		}
+		return false;
+	}
+
+	private static Type getSuperclass(Type type) {
+		try {
+			return type.getSuperclass();
+		} catch (MissingTypeException mte) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+package io.spring.nox.jar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DirectoryWriterTests {
+
+	private final static String CLASS_ENTRY = "BOOT-INF/classes/demo/Foo.class";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File input;
+
+	private File output;
+
+	@Before
+	public void setup() throws IOException {
+		input = temporaryFolder.newFolder("input");
+		output = new File(temporaryFolder.getRoot(), "input.nox");
+		write(new File(input, CLASS_ENTRY), "original");
+		write(new File(input, "BOOT-INF/classes/gone/Bar.class"), "bar");
+	}
+
+	@Test
+	public void unchangedFilesAreLinked() throws IOException {
+		writeAll();
+		Path source = new File(input, CLASS_ENTRY).toPath();
+		Path target = new File(output, CLASS_ENTRY).toPath();
+		assertTrue(Files.isSameFile(source, target));
+		assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+	}
+
+	@Test
+	public void updateNeverWritesThroughALink() throws IOException {
+		writeAll();
+		DirectoryWriter writer = new DirectoryWriter(output, true);
+		writer.writeEntry(new ZipEntry(CLASS_ENTRY), "rewritten".getBytes(StandardCharsets.UTF_8));
+		writer.finish();
+		Path source = new File(input, CLASS_ENTRY).toPath();
+		Path target = new File(output, CLASS_ENTRY).toPath();
+		assertFalse(Files.isSameFile(source, target));
+		assertEquals("original", new String(Files.readAllBytes(source), StandardCharsets.UTF_8));
+		assertEquals("rewritten", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+		assertEquals(1, writer.getWrittenCount());
+	}
+
+	@Test
+	public void deleteRemovedPackage() throws IOException {
+		writeAll();
+		DirectoryWriter writer = new DirectoryWriter(output, true);
+		writer.delete("BOOT-INF/classes/gone/");
+		assertFalse(new File(output, "BOOT-INF/classes/gone").exists());
+		assertTrue(new File(output, CLASS_ENTRY).isFile());
+		// Only the output goes
+		assertTrue(new File(input, "BOOT-INF/classes/gone/Bar.class").isFile());
+	}
+
+	@Test
+	public void entriesOutsideTheOutputAreRejected() throws IOException {
+		DirectoryWriter writer = new DirectoryWriter(output, false);
+		for (String entryName : new String[] { "../escaped.txt", "BOOT-INF/../../escaped.txt" }) {
+			try {
+				writer.writeEntry(new ZipEntry(entryName), "escaped".getBytes(StandardCharsets.UTF_8));
+				fail("Expected " + entryName + " to be rejected");
+			} catch (IOException ioe) {
+				assertTrue(ioe.getMessage().contains("would be written outside"));
+			}
+			try {
+				writer.delete(entryName);
+				fail("Expected deleting " + entryName + " to be rejected");
+			} catch (IOException ioe) {
+				// expected
+			}
+		}
+		assertFalse(new File(temporaryFolder.getRoot(), "escaped.txt").exists());
+		assertTrue(new File(input, CLASS_ENTRY).isFile());
+	}
+
+	private void writeAll() throws IOException {
+		try (ExplodedJar explodedJar = ExplodedJar.open(input)) {
+			DirectoryWriter writer = new DirectoryWriter(output, false);
+			for (MappedJarEntry entry : explodedJar.getEntries()) {
+				writer.writeRaw(explodedJar, entry);
+			}
+			writer.finish();
+			assertEquals(2, writer.getLinkedCount());
+			assertEquals(0, writer.getWrittenCount());
+		}
+	}
+
+	private static void write(File file, String content) throws IOException {
+		Files.createDirectories(file.getParentFile().toPath());
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+}
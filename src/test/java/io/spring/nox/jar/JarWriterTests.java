@@ -0,0 +1,205 @@
+package io.spring.nox.jar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JarWriterTests {
+
+	private final static String UTF8_NAME = "BOOT-INF/classes/démo/日本.txt";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void roundTrip() throws IOException {
+		File jar = writeJar();
+		try (MappedJar mappedJar = MappedJar.open(jar)) {
+			List<String> names = new ArrayList<>();
+			mappedJar.getEntries().forEach(entry -> names.add(entry.getName()));
+			assertEquals(expectedNames(), names);
+			MappedJarEntry stored = mappedJar.getEntry("stored.txt");
+			assertEquals(ZipEntry.STORED, stored.getMethod());
+			assertArrayEquals(content("stored"), mappedJar.getBytes(stored));
+			assertEquals(crc(content("stored")), stored.getCrc());
+			MappedJarEntry deflated = mappedJar.getEntry("deflated.txt");
+			assertEquals(ZipEntry.DEFLATED, deflated.getMethod());
+			assertEquals(content("deflated").length, deflated.getSize());
+			assertArrayEquals(content("deflated"), mappedJar.getBytes(deflated));
+			assertArrayEquals(content("utf8"), mappedJar.getBytes(mappedJar.getEntry(UTF8_NAME)));
+			assertTrue(mappedJar.getEntry("BOOT-INF/").isDirectory());
+		}
+	}
+
+	@Test
+	public void readableByZipFile() throws IOException {
+		File jar = writeJar();
+		try (ZipFile zipFile = new ZipFile(jar)) {
+			assertArrayEquals(content("stored"), read(zipFile, "stored.txt"));
+			assertArrayEquals(content("deflated"), read(zipFile, "deflated.txt"));
+			assertArrayEquals(content("utf8"), read(zipFile, UTF8_NAME));
+		}
+	}
+
+	@Test
+	public void nestedJar() throws IOException {
+		File jar = writeJar();
+		try (MappedJar mappedJar = MappedJar.open(jar)) {
+			MappedJar nested = mappedJar.getNestedJar(mappedJar.getEntry("BOOT-INF/lib/nested.jar"));
+			assertEquals(2, nested.getEntries().size());
+			assertArrayEquals(content("nested stored"), nested.getBytes(nested.getEntry("a/Stored.class")));
+			assertArrayEquals(content("nested deflated"), nested.getBytes(nested.getEntry("a/Deflated.class")));
+			assertNotNull(nested.getContentKey());
+		}
+	}
+
+	@Test
+	public void rawCopy() throws IOException {
+		File jar = writeJar();
+		File copy = temporaryFolder.newFile("copy.jar");
+		try (MappedJar mappedJar = MappedJar.open(jar)) {
+			try (JarWriter writer = new JarWriter(new FileOutputStream(copy))) {
+				for (MappedJarEntry entry : mappedJar.getEntries()) {
+					writer.writeRaw(mappedJar, entry);
+				}
+				writer.finish();
+			}
+			try (MappedJar copied = MappedJar.open(copy)) {
+				assertEquals(mappedJar.getEntries().size(), copied.getEntries().size());
+				for (MappedJarEntry entry : mappedJar.getEntries()) {
+					MappedJarEntry copiedEntry = copied.getEntry(entry.getName());
+					assertEquals(entry.getMethod(), copiedEntry.getMethod());
+					assertEquals(entry.getCrc(), copiedEntry.getCrc());
+					assertEquals(entry.getCompressedSize(), copiedEntry.getCompressedSize());
+					assertArrayEquals(mappedJar.getBytes(entry), copied.getBytes(copiedEntry));
+				}
+				// Same names, CRCs and sizes in the same places
+				assertEquals(mappedJar.getContentKey(), copied.getContentKey());
+			}
+		}
+	}
+
+	@Test
+	public void unfinishedJarHasNoCentralDirectory() throws IOException {
+		File jar = temporaryFolder.newFile("unfinished.jar");
+		try (JarWriter writer = new JarWriter(new FileOutputStream(jar))) {
+			writer.writeEntry(new ZipEntry("deflated.txt"), content("deflated"));
+		}
+		try {
+			MappedJar.open(jar);
+			fail("Expected an unfinished jar to be unreadable");
+		} catch (IOException ioe) {
+			// expected
+		}
+	}
+
+	@Test
+	public void zip64EntryCount() throws IOException {
+		File jar = temporaryFolder.newFile("many.jar");
+		int entryCount = 0xFFFF + 10;
+		try (JarWriter writer = new JarWriter(new FileOutputStream(jar))) {
+			for (int i = 0; i < entryCount; i++) {
+				writer.writeEntry(storedEntry("entry" + i + ".txt"), ("content " + i).getBytes(StandardCharsets.UTF_8));
+			}
+			writer.finish();
+		}
+		try (MappedJar mappedJar = MappedJar.open(jar)) {
+			assertEquals(entryCount, mappedJar.getEntries().size());
+			assertArrayEquals("content 65540".getBytes(StandardCharsets.UTF_8),
+					mappedJar.getBytes(mappedJar.getEntry("entry65540.txt")));
+		}
+		try (ZipFile zipFile = new ZipFile(jar)) {
+			assertEquals(entryCount, zipFile.size());
+			assertArrayEquals("content 0".getBytes(StandardCharsets.UTF_8), read(zipFile, "entry0.txt"));
+			assertArrayEquals("content 65544".getBytes(StandardCharsets.UTF_8), read(zipFile, "entry65544.txt"));
+		}
+	}
+
+	private File writeJar() throws IOException {
+		File jar = temporaryFolder.newFile();
+		try (JarWriter writer = new JarWriter(new FileOutputStream(jar))) {
+			writer.writeEntry(new ZipEntry("BOOT-INF/"), new byte[0]);
+			writer.writeEntry(storedEntry("stored.txt"), content("stored"));
+			writer.writeEntry(new ZipEntry("deflated.txt"), content("deflated"));
+			writer.writeEntry(new ZipEntry(UTF8_NAME), content("utf8"));
+			// Nested jars are stored so they can be mapped in place
+			writer.writeEntry(storedEntry("BOOT-INF/lib/nested.jar"), createNestedJar());
+			writer.finish();
+		}
+		return jar;
+	}
+
+	private byte[] createNestedJar() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JarWriter writer = new JarWriter(bytes)) {
+			writer.writeEntry(storedEntry("a/Stored.class"), content("nested stored"));
+			writer.writeEntry(new ZipEntry("a/Deflated.class"), content("nested deflated"));
+			writer.finish();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static List<String> expectedNames() {
+		List<String> names = new ArrayList<>();
+		names.add("BOOT-INF/");
+		names.add("stored.txt");
+		names.add("deflated.txt");
+		names.add(UTF8_NAME);
+		names.add("BOOT-INF/lib/nested.jar");
+		return names;
+	}
+
+	private static ZipEntry storedEntry(String name) {
+		ZipEntry entry = new ZipEntry(name);
+		entry.setMethod(ZipEntry.STORED);
+		return entry;
+	}
+
+	private static byte[] content(String text) {
+		StringBuilder s = new StringBuilder();
+		// Long and repetitive enough that deflating it makes a difference
+		for (int i = 0; i < 100; i++) {
+			s.append(text).append(' ').append(i).append('\n');
+		}
+		return s.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static long crc(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+
+	private static byte[] read(ZipFile zipFile, String name) throws IOException {
+		ZipEntry entry = zipFile.getEntry(name);
+		assertNotNull(name, entry);
+		try (InputStream in = zipFile.getInputStream(entry)) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, count);
+			}
+			return bytes.toByteArray();
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+package io.spring.nox.jar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedJarTests {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void zip64EntryCount() throws IOException {
+		// ZipOutputStream switches to the zip64 end records once there are more than 65535 entries
+		File jar = temporaryFolder.newFile("many.jar");
+		int entryCount = 0xFFFF + 10;
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar))) {
+			for (int i = 0; i < entryCount; i++) {
+				zos.putNextEntry(new ZipEntry("entry" + i + ".txt"));
+				zos.write(("content " + i).getBytes(StandardCharsets.UTF_8));
+				zos.closeEntry();
+			}
+		}
+		try (MappedJar mappedJar = MappedJar.open(jar)) {
+			assertEquals(entryCount, mappedJar.getEntries().size());
+			assertArrayEquals("content 0".getBytes(StandardCharsets.UTF_8),
+					mappedJar.getBytes(mappedJar.getEntry("entry0.txt")));
+			assertArrayEquals("content 65544".getBytes(StandardCharsets.UTF_8),
+					mappedJar.getBytes(mappedJar.getEntry("entry65544.txt")));
+		}
+	}
+
+	@Test
+	public void entryDataPastEndOfJar() throws IOException {
+		File jar = temporaryFolder.newFile("bad.jar");
+		try (JarWriter writer = new JarWriter(new FileOutputStream(jar))) {
+			ZipEntry entry = new ZipEntry("stored.txt");
+			entry.setMethod(ZipEntry.STORED);
+			writer.writeEntry(entry, "stored".getBytes(StandardCharsets.UTF_8));
+			writer.finish();
+		}
+		// Claim a compressed size far bigger than the jar in the central directory
+		try (RandomAccessFile raf = new RandomAccessFile(jar, "rw")) {
+			raf.seek(raf.length() - 6);
+			int centralDirectoryOffset = Integer.reverseBytes(raf.readInt());
+			raf.seek(centralDirectoryOffset + 20);
+			raf.writeInt(Integer.reverseBytes(0x10000));
+		}
+		try (MappedJar mappedJar = MappedJar.open(jar)) {
+			try {
+				mappedJar.getRawData(mappedJar.getEntry("stored.txt"));
+				fail("Expected the entry data to be reported as past the end of the jar");
+			} catch (IOException ioe) {
+				// expected
+			}
+		}
+	}
+
+}
@@ -0,0 +1,105 @@
+package io.spring.nox.jar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+public class SpillBufferTests {
+
+	@Test
+	public void underThreshold() throws IOException {
+		byte[] content = content(100);
+		try (SpillBuffer buffer = new SpillBuffer(1024)) {
+			write(buffer, content);
+			assertFalse(buffer.isSpilled());
+			assertContent(content, buffer);
+		}
+	}
+
+	@Test
+	public void spillsToFile() throws IOException {
+		byte[] content = content(10000);
+		try (SpillBuffer buffer = new SpillBuffer(1024)) {
+			write(buffer, content);
+			assertTrue(buffer.isSpilled());
+			assertContent(content, buffer);
+			// Still usable after being copied out
+			buffer.write(42);
+			assertEquals(content.length + 1, buffer.getSize());
+		}
+	}
+
+	@Test
+	public void spillOnSingleByte() throws IOException {
+		byte[] content = content(17);
+		try (SpillBuffer buffer = new SpillBuffer(16)) {
+			for (byte b : content) {
+				buffer.write(b);
+			}
+			assertTrue(buffer.isSpilled());
+			assertContent(content, buffer);
+		}
+	}
+
+	@Test
+	public void closedBufferRejectsWrites() throws IOException {
+		SpillBuffer buffer = new SpillBuffer(16);
+		buffer.write(content(32));
+		buffer.close();
+		for (int i = 0; i < 2; i++) {
+			try {
+				if (i == 0) {
+					buffer.write(1);
+				} else {
+					buffer.write(new byte[1]);
+				}
+				fail("Expected a closed buffer to refuse writes");
+			} catch (IOException ioe) {
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Write a mix of single bytes and arrays, so both paths cross the threshold.
+	 */
+	private static void write(SpillBuffer buffer, byte[] content) throws IOException {
+		int index = 0;
+		while (index < content.length) {
+			if (index % 3 == 0) {
+				buffer.write(content[index++]);
+			} else {
+				int length = Math.min(content.length - index, 7 + index % 50);
+				buffer.write(content, index, length);
+				index += length;
+			}
+		}
+	}
+
+	private static void assertContent(byte[] expected, SpillBuffer buffer) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(expected);
+		assertEquals(expected.length, buffer.getSize());
+		assertEquals(crc.getValue(), buffer.getCrc());
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		buffer.writeTo(written);
+		assertArrayEquals(expected, written.toByteArray());
+	}
+
+	private static byte[] content(int length) {
+		byte[] content = new byte[length];
+		for (int i = 0; i < length; i++) {
+			content[i] = (byte) (i * 31 + i / 7);
+		}
+		return content;
+	}
+
+}
@@ -0,0 +1,136 @@
+package io.spring.nox.optimizer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.springframework.aop.Advisor;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.Resource;
+import org.springframework.expression.Expression;
+
+import io.spring.nox.jar.JarWriter;
+import io.spring.nox.jar.MappedJar;
+import io.spring.nox.jar.MappedJarEntry;
+
+public class ParallelOptimizationTests {
+
+	private final static String LOADER = "BOOT-INF/classes/org/springframework/core/PrecomputedInfoLoader.class";
+
+	@ClassRule
+	public static TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static byte[] bootJar;
+
+	@BeforeClass
+	public static void createBootJar() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (JarWriter writer = new JarWriter(bytes)) {
+			writer.writeEntry(new ZipEntry("BOOT-INF/"), new byte[0]);
+			writer.writeEntry(new ZipEntry("BOOT-INF/classes/"), new byte[0]);
+			for (int i = 0; i < 20; i++) {
+				writer.writeEntry(new ZipEntry("BOOT-INF/classes/demo/Config" + i + ".class"),
+						configurationClass("demo/Config" + i));
+			}
+			writer.writeEntry(new ZipEntry("BOOT-INF/lib/"), new byte[0]);
+			// Real dependencies, including configuration classes of their own that get rewritten
+			for (Class<?> type : new Class<?>[] { Configuration.class, BeanFactory.class, Resource.class,
+					Advisor.class, Expression.class, SpringApplication.class, SpringBootApplication.class }) {
+				File jar = new File(type.getProtectionDomain().getCodeSource().getLocation().getPath());
+				ZipEntry entry = new ZipEntry("BOOT-INF/lib/" + jar.getName());
+				entry.setMethod(ZipEntry.STORED);
+				writer.writeEntry(entry, Files.readAllBytes(jar.toPath()));
+			}
+			writer.finish();
+		}
+		bootJar = bytes.toByteArray();
+	}
+
+	@Test
+	public void parallelOutputMatchesSequential() throws IOException {
+		File sequential = optimize(1);
+		File parallel = optimize(4);
+		try (MappedJar expected = MappedJar.open(sequential); MappedJar actual = MappedJar.open(parallel)) {
+			assertEquals(names(expected), names(actual));
+			for (MappedJarEntry expectedEntry : expected.getEntries()) {
+				MappedJarEntry actualEntry = actual.getEntry(expectedEntry.getName());
+				assertEquals(expectedEntry.getName(), expectedEntry.getMethod(), actualEntry.getMethod());
+				assertEquals(expectedEntry.getName(), expectedEntry.getCrc(), actualEntry.getCrc());
+				assertArrayEquals(expectedEntry.getName(), expected.getBytes(expectedEntry),
+						actual.getBytes(actualEntry));
+			}
+			// Make sure there was something to do in parallel
+			assertFalse(Arrays.equals(configurationClass("demo/Config0"),
+					actual.getBytes(actual.getEntry("BOOT-INF/classes/demo/Config0.class"))));
+			MappedJarEntry loader = expected.getEntry(LOADER);
+			assertNotNull(loader);
+			assertArrayEquals(expected.getBytes(loader), actual.getBytes(actual.getEntry(LOADER)));
+		}
+	}
+
+	private File optimize(int parallelism) throws IOException {
+		File inputJar = new File(temporaryFolder.newFolder(), "demo.jar");
+		Files.write(inputJar.toPath(), bootJar);
+		JarOptimizer jarOptimizer = new JarOptimizer(inputJar);
+		jarOptimizer.setOutput(new PrintStream(new ByteArrayOutputStream()));
+		jarOptimizer.setParallelism(parallelism);
+		jarOptimizer.buildOptimizedVariant();
+		return new File(inputJar.getParentFile(), "demo.nox.jar");
+	}
+
+	private static List<String> names(MappedJar jar) {
+		List<String> names = new ArrayList<>();
+		jar.getEntries().forEach(entry -> names.add(entry.getName()));
+		return names;
+	}
+
+	private static byte[] configurationClass(String name) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+		cw.visitAnnotation("Lorg/springframework/context/annotation/Configuration;", true).visitEnd();
+		MethodVisitor init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		init.visitCode();
+		init.visitVarInsn(Opcodes.ALOAD, 0);
+		init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		init.visitInsn(Opcodes.RETURN);
+		init.visitMaxs(0, 0);
+		init.visitEnd();
+		for (int i = 0; i < 3; i++) {
+			MethodVisitor bean = cw.visitMethod(Opcodes.ACC_PUBLIC, "bean" + i, "()Ljava/lang/Object;", null, null);
+			AnnotationVisitor av = bean.visitAnnotation("Lorg/springframework/context/annotation/Bean;", true);
+			av.visitEnd();
+			bean.visitCode();
+			bean.visitTypeInsn(Opcodes.NEW, "java/lang/Object");
+			bean.visitInsn(Opcodes.DUP);
+			bean.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+			bean.visitInsn(Opcodes.ARETURN);
+			bean.visitMaxs(0, 0);
+			bean.visitEnd();
+		}
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+}
@@ -0,0 +1,187 @@
+package io.spring.nox.optimizer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import io.spring.nox.jar.JarWriter;
+import io.spring.nox.jar.MappedJar;
+import io.spring.nox.jar.SpillBuffer;
+import io.spring.nox.optimizer.RewriteCache.CachedRewrite;
+import io.spring.nox.optimizer.spi.Rewriter;
+import io.spring.nox.type.TypeSystem;
+
+public class RewriteCacheTests {
+
+	private final static String KEY = "0123456789abcdef";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File cacheDirectory;
+
+	private File classesDirectory;
+
+	@Before
+	public void setup() throws IOException {
+		cacheDirectory = temporaryFolder.newFolder();
+		classesDirectory = temporaryFolder.newFolder();
+		writeClass("demo/Base", "java/lang/Object");
+		writeClass("demo/Foo", "demo/Base");
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		byte[] rewritten = "rewritten jar".getBytes(StandardCharsets.UTF_8);
+		try (TypeSystem typeSystem = createTypeSystem(); SpillBuffer content = new SpillBuffer()) {
+			content.write(rewritten);
+			new RewriteCache(cacheDirectory).store(KEY, content, Collections.singleton("demo/Foo"), typeSystem);
+			CachedRewrite cachedRewrite = new RewriteCache(cacheDirectory).load(KEY, typeSystem);
+			assertNotNull(cachedRewrite);
+			assertEquals(content.getCrc(), cachedRewrite.crc);
+			assertEquals(rewritten.length, cachedRewrite.size);
+			assertArrayEquals(rewritten, Files.readAllBytes(cachedRewrite.file.toPath()));
+			assertNull(new RewriteCache(cacheDirectory).load("fedcba9876543210", typeSystem));
+		}
+	}
+
+	@Test
+	public void changedSupertypeInvalidatesEntry() throws IOException {
+		try (TypeSystem typeSystem = createTypeSystem()) {
+			store(typeSystem);
+		}
+		// Only demo/Foo was recorded as resolved, its superclass must be checked too
+		writeClass("demo/Base", "java/util/ArrayList");
+		try (TypeSystem typeSystem = createTypeSystem()) {
+			assertNull(new RewriteCache(cacheDirectory).load(KEY, typeSystem));
+		}
+	}
+
+	@Test
+	public void corruptEntryIsIgnored() throws IOException {
+		try (TypeSystem typeSystem = createTypeSystem()) {
+			store(typeSystem);
+			Files.write(getFile(".types").toPath(), "not a rewrite".getBytes(StandardCharsets.UTF_8));
+			assertNull(new RewriteCache(cacheDirectory).load(KEY, typeSystem));
+		}
+	}
+
+	@Test
+	public void truncatedEntryIsIgnored() throws IOException {
+		try (TypeSystem typeSystem = createTypeSystem()) {
+			store(typeSystem);
+			File typesFile = getFile(".types");
+			for (long length = typesFile.length() - 1; length > 0; length /= 2) {
+				try (RandomAccessFile raf = new RandomAccessFile(typesFile, "rw")) {
+					raf.setLength(length);
+				}
+				assertNull(new RewriteCache(cacheDirectory).load(KEY, typeSystem));
+			}
+		}
+	}
+
+	@Test
+	public void truncatedDataIsIgnored() throws IOException {
+		try (TypeSystem typeSystem = createTypeSystem()) {
+			store(typeSystem);
+			try (RandomAccessFile raf = new RandomAccessFile(getFile(".jar"), "rw")) {
+				raf.setLength(raf.length() - 1);
+			}
+			assertNull(new RewriteCache(cacheDirectory).load(KEY, typeSystem));
+		}
+	}
+
+	@Test
+	public void keyCoversRewriters() throws IOException {
+		File jar = temporaryFolder.newFile("dependency.jar");
+		try (JarWriter writer = new JarWriter(new FileOutputStream(jar))) {
+			writer.writeEntry(new ZipEntry("demo/Foo.class"), new byte[] { 1, 2, 3 });
+			writer.finish();
+		}
+		RewriteCache rewriteCache = new RewriteCache(cacheDirectory);
+		try (MappedJar dependencyJar = MappedJar.open(jar)) {
+			String key = rewriteCache.computeKey(dependencyJar, "dependency.jar", Arrays.asList(new KeyedRewriter("a")));
+			assertEquals(key,
+					rewriteCache.computeKey(dependencyJar, "dependency.jar", Arrays.asList(new KeyedRewriter("a"))));
+			assertNotEquals(key,
+					rewriteCache.computeKey(dependencyJar, "dependency.jar", Arrays.asList(new KeyedRewriter("b"))));
+			assertNull(rewriteCache.computeKey(dependencyJar, "dependency.jar",
+					Arrays.asList(new KeyedRewriter("a"), new KeyedRewriter(null))));
+		}
+	}
+
+	private void store(TypeSystem typeSystem) throws IOException {
+		try (SpillBuffer content = new SpillBuffer()) {
+			content.write("rewritten jar".getBytes(StandardCharsets.UTF_8));
+			new RewriteCache(cacheDirectory).store(KEY, content, Collections.singleton("demo/Foo"), typeSystem);
+		}
+	}
+
+	private TypeSystem createTypeSystem() {
+		return TypeSystem.forClasspath(Collections.singletonList(classesDirectory));
+	}
+
+	private File getFile(String suffix) {
+		return new File(new File(cacheDirectory, "rewrite"), KEY + suffix);
+	}
+
+	private void writeClass(String name, String superName) throws IOException {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, superName, null);
+		cw.visitEnd();
+		File classFile = new File(classesDirectory, name + ".class");
+		Files.createDirectories(classFile.getParentFile().toPath());
+		Files.write(classFile.toPath(), cw.toByteArray());
+	}
+
+	static class KeyedRewriter implements Rewriter {
+
+		private final String key;
+
+		KeyedRewriter(String key) {
+			this.key = key;
+		}
+
+		@Override
+		public boolean shouldRewriteApplicationClass(String typeName) {
+			return false;
+		}
+
+		@Override
+		public boolean shouldRewriteDependencyJar(String jarname) {
+			return true;
+		}
+
+		@Override
+		public byte[] rewriteClass(InputStream inputStream, String typename, String containingEntryName) {
+			return null;
+		}
+
+		@Override
+		public String getDependencyRewriteKey(String jarname) {
+			return key;
+		}
+
+	}
+
+}
@@ -0,0 +1,130 @@
+package io.spring.nox.optimizer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.annotation.ElementType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.spring.nox.jar.JarWriter;
+import io.spring.nox.jar.MappedJar;
+import io.spring.nox.jar.MappedJarEntry;
+import io.spring.nox.optimizer.ScanCache.AnnotationEvent;
+import io.spring.nox.optimizer.ScanCache.CachedClass;
+
+public class ScanCacheTests {
+
+	private final static String KEY = "0123456789abcdef";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void roundTrip() throws IOException {
+		File cacheDirectory = temporaryFolder.newFolder();
+		new ScanCache(cacheDirectory).store(KEY, cachedClasses());
+
+		// A new cache so the entry is read from disk
+		List<CachedClass> loaded = new ScanCache(cacheDirectory).load(KEY);
+		assertEquals(2, loaded.size());
+		CachedClass configuration = loaded.get(0);
+		assertEquals("demo/Configuration", configuration.name);
+		assertEquals(0x21, configuration.access);
+		assertEquals("demo/Base", configuration.superName);
+		assertArrayEquals(new String[] { "demo/Marker", "java/io/Serializable" }, configuration.interfaces);
+		assertEquals(2, configuration.events.size());
+		assertEquals(ElementType.TYPE, configuration.events.get(0).elementType);
+		assertEquals("Lorg/springframework/context/annotation/Configuration;", configuration.events.get(0).desc);
+		assertEquals(ElementType.METHOD, configuration.events.get(1).elementType);
+		assertEquals("Lorg/springframework/context/annotation/Bean;", configuration.events.get(1).desc);
+		CachedClass object = loaded.get(1);
+		assertEquals("demo/Root", object.name);
+		assertNull(object.superName);
+		assertEquals(0, object.interfaces.length);
+		assertEquals(0, object.events.size());
+
+		assertNull(new ScanCache(cacheDirectory).load("fedcba9876543210"));
+	}
+
+	@Test
+	public void corruptEntryIsIgnored() throws IOException {
+		File cacheDirectory = temporaryFolder.newFolder();
+		Files.createDirectories(new File(cacheDirectory, "scan").toPath());
+		Files.write(getScanFile(cacheDirectory).toPath(), "not a scan".getBytes(StandardCharsets.UTF_8));
+		assertNull(new ScanCache(cacheDirectory).load(KEY));
+	}
+
+	@Test
+	public void truncatedEntryIsIgnored() throws IOException {
+		File cacheDirectory = temporaryFolder.newFolder();
+		new ScanCache(cacheDirectory).store(KEY, cachedClasses());
+		File file = getScanFile(cacheDirectory);
+		for (long length = file.length() - 1; length > 0; length /= 2) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(length);
+			}
+			assertNull(new ScanCache(cacheDirectory).load(KEY));
+		}
+	}
+
+	@Test
+	public void keyCoversNestedEntryAndContent() throws IOException {
+		File cacheDirectory = temporaryFolder.newFolder();
+		ScanCache scanCache = new ScanCache(cacheDirectory);
+		String key = computeKey(scanCache, "a");
+		assertEquals(key, computeKey(scanCache, "a"));
+		assertNotEquals(key, computeKey(scanCache, "b"));
+	}
+
+	private String computeKey(ScanCache scanCache, String content) throws IOException {
+		ByteArrayOutputStream nestedBytes = new ByteArrayOutputStream();
+		try (JarWriter nestedWriter = new JarWriter(nestedBytes)) {
+			nestedWriter.writeEntry(new ZipEntry("demo/Foo.class"), content.getBytes(StandardCharsets.UTF_8));
+			nestedWriter.finish();
+		}
+		File bootJar = temporaryFolder.newFile();
+		try (JarWriter writer = new JarWriter(new FileOutputStream(bootJar))) {
+			ZipEntry entry = new ZipEntry("BOOT-INF/lib/nested.jar");
+			entry.setMethod(ZipEntry.STORED);
+			writer.writeEntry(entry, nestedBytes.toByteArray());
+			writer.finish();
+		}
+		try (MappedJar jar = MappedJar.open(bootJar)) {
+			MappedJarEntry entry = jar.getEntry("BOOT-INF/lib/nested.jar");
+			return scanCache.computeKey(entry, jar.getNestedJar(entry));
+		}
+	}
+
+	private static File getScanFile(File cacheDirectory) {
+		return new File(new File(cacheDirectory, "scan"), KEY + ".scan");
+	}
+
+	private static List<CachedClass> cachedClasses() {
+		List<CachedClass> cachedClasses = new ArrayList<>();
+		cachedClasses.add(new CachedClass("demo/Configuration", 0x21, "demo/Base",
+				new String[] { "demo/Marker", "java/io/Serializable" },
+				Arrays.asList(
+						new AnnotationEvent(ElementType.TYPE, "Lorg/springframework/context/annotation/Configuration;"),
+						new AnnotationEvent(ElementType.METHOD, "Lorg/springframework/context/annotation/Bean;"))));
+		cachedClasses.add(new CachedClass("demo/Root", 0x21, null, new String[0], Collections.emptyList()));
+		return cachedClasses;
+	}
+
+}
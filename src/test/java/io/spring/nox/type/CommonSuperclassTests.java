@@ -0,0 +1,123 @@
+package io.spring.nox.type;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import io.spring.nox.type.TypeSystem.MissingTypeException;
+
+public class CommonSuperclassTests {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File classesDirectory;
+
+	private TypeSystem typeSystem;
+
+	@Before
+	public void setup() throws IOException {
+		classesDirectory = temporaryFolder.newFolder();
+		writeClass("demo/Animal", "java/lang/Object", Opcodes.ACC_PUBLIC);
+		writeClass("demo/Pet", "java/lang/Object", Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT);
+		writeClass("demo/Dog", "demo/Animal", Opcodes.ACC_PUBLIC, "demo/Pet");
+		writeClass("demo/Cat", "demo/Animal", Opcodes.ACC_PUBLIC);
+		writeClass("demo/Puppy", "demo/Dog", Opcodes.ACC_PUBLIC);
+		writeClass("demo/Kitten", "demo/Cat", Opcodes.ACC_PUBLIC);
+		writeClass("demo/Orphan", "demo/Missing", Opcodes.ACC_PUBLIC);
+		typeSystem = TypeSystem.forClasspath(Collections.singletonList(classesDirectory));
+	}
+
+	@After
+	public void close() throws IOException {
+		typeSystem.close();
+	}
+
+	@Test
+	public void assignable() {
+		assertEquals("demo/Dog", typeSystem.getCommonSuperclass("demo/Dog", "demo/Puppy"));
+		assertEquals("demo/Dog", typeSystem.getCommonSuperclass("demo/Puppy", "demo/Dog"));
+		assertEquals("demo/Pet", typeSystem.getCommonSuperclass("demo/Pet", "demo/Puppy"));
+	}
+
+	@Test
+	public void sharedAncestor() {
+		assertEquals("demo/Animal", typeSystem.getCommonSuperclass("demo/Puppy", "demo/Kitten"));
+		assertEquals("demo/Animal", typeSystem.getCommonSuperclass("demo/Kitten", "demo/Dog"));
+		assertEquals("java/lang/Object", typeSystem.getCommonSuperclass("demo/Dog", "java/lang/String"));
+	}
+
+	@Test
+	public void interfaces() {
+		assertEquals("java/lang/Object", typeSystem.getCommonSuperclass("demo/Pet", "demo/Cat"));
+		assertEquals("java/lang/Object", typeSystem.getCommonSuperclass("demo/Cat", "demo/Pet"));
+	}
+
+	@Test
+	public void missingSupertype() {
+		try {
+			typeSystem.getCommonSuperclass("demo/Orphan", "demo/Dog");
+			fail("Expected the missing superclass of demo/Orphan to be reported");
+		} catch (MissingTypeException mte) {
+			// expected, and nothing cached for the pair
+			assertEquals(0, typeSystem.getCommonSuperclassCacheSize());
+		}
+	}
+
+	@Test
+	public void trivialPairsAreNotCached() {
+		assertEquals("demo/Dog", typeSystem.getCommonSuperclass("demo/Dog", "demo/Dog"));
+		assertEquals("java/lang/Object", typeSystem.getCommonSuperclass("java/lang/Object", "demo/Dog"));
+		assertEquals("java/lang/Object", typeSystem.getCommonSuperclass("demo/Dog", "java/lang/Object"));
+		assertEquals(0, typeSystem.getCommonSuperclassCacheSize());
+	}
+
+	@Test
+	public void answersAreCachedPerOrderedPair() {
+		assertEquals("demo/Animal", typeSystem.getCommonSuperclass("demo/Puppy", "demo/Kitten"));
+		assertEquals(1, typeSystem.getCommonSuperclassCacheSize());
+		assertEquals("demo/Animal", typeSystem.getCommonSuperclass("demo/Puppy", "demo/Kitten"));
+		assertEquals(1, typeSystem.getCommonSuperclassCacheSize());
+		assertEquals("demo/Animal", typeSystem.getCommonSuperclass("demo/Kitten", "demo/Puppy"));
+		assertEquals(2, typeSystem.getCommonSuperclassCacheSize());
+	}
+
+	@Test
+	public void cachedAnswerStillRecordsResolutions() {
+		typeSystem.getCommonSuperclass("demo/Puppy", "demo/Kitten");
+		Set<String> resolved = new HashSet<>();
+		typeSystem.recordResolutions(resolved);
+		try {
+			assertEquals("demo/Animal", typeSystem.getCommonSuperclass("demo/Puppy", "demo/Kitten"));
+		} finally {
+			typeSystem.recordResolutions(null);
+		}
+		assertTrue(resolved.contains("demo/Puppy"));
+		assertTrue(resolved.contains("demo/Kitten"));
+	}
+
+	private void writeClass(String name, String superName, int access, String... interfaces) throws IOException {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, access, name, null, superName, interfaces);
+		cw.visitEnd();
+		File classFile = new File(classesDirectory, name + ".class");
+		Files.createDirectories(classFile.getParentFile().toPath());
+		Files.write(classFile.toPath(), cw.toByteArray());
+	}
+
+}
@@ -0,0 +1,125 @@
+package io.spring.nox.type;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import io.spring.nox.type.SignatureParser.ClassSignature;
+import io.spring.nox.type.SignatureParser.MethodSignature;
+import io.spring.nox.type.TypeReference.Kind;
+
+public class SignatureParserTests {
+
+	@Test
+	public void wildcards() {
+		MethodSignature signature = SignatureParser.parseMethodSignature(
+				"(Ljava/util/Map<*+Ljava/lang/Number;>;Ljava/util/List<-Ljava/lang/Integer;>;)V");
+		TypeReference map = signature.parameterTypes.get(0);
+		assertEquals("java/util/Map", map.getName());
+		TypeReference unbounded = map.getTypeArguments().get(0);
+		assertEquals(Kind.WILDCARD, unbounded.getKind());
+		assertNull(unbounded.getBound());
+		assertFalse(unbounded.isUpperBound());
+		assertFalse(unbounded.isLowerBound());
+		TypeReference upper = map.getTypeArguments().get(1);
+		assertTrue(upper.isUpperBound());
+		assertEquals("java/lang/Number", upper.getBound().getName());
+		TypeReference lower = signature.parameterTypes.get(1).getTypeArguments().get(0);
+		assertTrue(lower.isLowerBound());
+		assertEquals("java/lang/Integer", lower.getBound().getName());
+		assertEquals("java.util.Map<?, ? extends java.lang.Number>", map.toString());
+		assertEquals("java.util.List<? super java.lang.Integer>", signature.parameterTypes.get(1).toString());
+		assertEquals(Kind.PRIMITIVE, signature.returnType.getKind());
+		assertEquals("void", signature.returnType.toString());
+	}
+
+	@Test
+	public void arrays() {
+		MethodSignature signature = SignatureParser
+				.parseMethodSignature("<T:Ljava/lang/Object;>([[I[Ljava/util/List<Ljava/lang/String;>;)[TT;");
+		TypeReference ints = signature.parameterTypes.get(0);
+		assertEquals(Kind.ARRAY, ints.getKind());
+		assertEquals(Kind.ARRAY, ints.getComponentType().getKind());
+		assertEquals("I", ints.getComponentType().getComponentType().getName());
+		assertEquals("int[][]", ints.toString());
+		TypeReference lists = signature.parameterTypes.get(1);
+		assertEquals("java/util/List", lists.getComponentType().getName());
+		assertEquals("java.util.List<java.lang.String>[]", lists.toString());
+		assertEquals(Kind.TYPE_VARIABLE, signature.returnType.getComponentType().getKind());
+		assertEquals("T[]", signature.returnType.toString());
+	}
+
+	@Test
+	public void innerClassOfParameterizedType() {
+		MethodSignature signature = SignatureParser.parseMethodSignature(
+				"(Ldemo/Outer<Ljava/lang/String;>.Inner<Ljava/lang/Integer;>;)Ldemo/Outer$Plain;");
+		TypeReference inner = signature.parameterTypes.get(0);
+		assertEquals(Kind.CLASS, inner.getKind());
+		assertEquals("demo/Outer$Inner", inner.getName());
+		// The references have no owner type, only the arguments of the inner class itself are kept
+		assertEquals(1, inner.getTypeArguments().size());
+		assertEquals("java/lang/Integer", inner.getTypeArguments().get(0).getName());
+		assertEquals("demo/Outer$Plain", signature.returnType.getName());
+	}
+
+	@Test
+	public void typeParameterBounds() {
+		ClassHeader header = new ClassHeader(1, "demo/Sorted", "java/lang/Object",
+				"<K::Ljava/lang/Comparable<TK;>;V:Ljava/lang/Number;:Ljava/io/Serializable;:Ljava/lang/Cloneable;E:Ljava/lang/Object;>"
+						+ "Ljava/lang/Object;Ljava/util/Map<TK;TV;>;",
+				new String[] { "java/util/Map" }, ClassHeader.NO_STRINGS, null);
+		ClassSignature signature = SignatureParser.parseClassSignature(header);
+		List<TypeVariable> typeParameters = signature.typeParameters;
+		assertEquals(3, typeParameters.size());
+		// Interface bound only
+		TypeVariable k = typeParameters.get(0);
+		assertEquals("K", k.getName());
+		assertEquals(1, k.getBounds().size());
+		assertEquals("java.lang.Comparable<K>", k.getBounds().get(0).toString());
+		// Class bound followed by interface bounds
+		TypeVariable v = typeParameters.get(1);
+		assertEquals("V extends java.lang.Number & java.io.Serializable & java.lang.Cloneable", v.toString());
+		assertEquals("E extends java.lang.Object", typeParameters.get(2).toString());
+		assertEquals("java/lang/Object", signature.superclass.getName());
+		assertEquals(1, signature.interfaces.size());
+		assertEquals("java.util.Map<K, V>", signature.interfaces.get(0).toString());
+	}
+
+	@Test
+	public void methodTypeParametersAndExceptions() {
+		MethodSignature signature = SignatureParser.parseMethodSignature(
+				"<E:Ljava/lang/Exception;R::Ljava/lang/Runnable;>(TR;)TE;^TE;^Ljava/io/IOException;");
+		assertEquals(2, signature.typeParameters.size());
+		assertEquals("E extends java.lang.Exception", signature.typeParameters.get(0).toString());
+		assertEquals("R extends java.lang.Runnable", signature.typeParameters.get(1).toString());
+		assertEquals(1, signature.parameterTypes.size());
+		assertEquals("R", signature.parameterTypes.get(0).getName());
+		assertEquals("E", signature.returnType.getName());
+	}
+
+	@Test
+	public void classWithoutSignature() {
+		ClassHeader header = new ClassHeader(1, "demo/Plain", "demo/Base", null,
+				new String[] { "java/lang/Runnable" }, ClassHeader.NO_STRINGS, null);
+		ClassSignature signature = SignatureParser.parseClassSignature(header);
+		assertTrue(signature.typeParameters.isEmpty());
+		assertEquals("demo/Base", signature.superclass.getName());
+		assertTrue(signature.superclass.getTypeArguments().isEmpty());
+		assertEquals("java/lang/Runnable", signature.interfaces.get(0).getName());
+	}
+
+	@Test
+	public void descriptorWithoutSignature() {
+		MethodSignature signature = SignatureParser.parseMethodSignature("(JLjava/lang/String;)Z");
+		assertTrue(signature.typeParameters.isEmpty());
+		assertEquals("long", signature.parameterTypes.get(0).toString());
+		assertEquals("java.lang.String", signature.parameterTypes.get(1).toString());
+		assertEquals("boolean", signature.returnType.toString());
+	}
+
+}
@@ -0,0 +1,66 @@
+package io.spring.nox.type;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TypeHierarchyIndexTests {
+
+	private final static String[] NONE = new String[0];
+
+	private TypeHierarchyIndex index;
+
+	@Before
+	public void setup() {
+		index = new TypeHierarchyIndex();
+		// Animal <- Dog <- Puppy, Animal <- Cat, Dog implements Pet, Trained extends Pet, Puppy implements Trained
+		index.add("demo/Animal", "java/lang/Object", NONE);
+		index.add("demo/Pet", "java/lang/Object", new String[] { "java/io/Serializable" });
+		index.add("demo/Trained", "java/lang/Object", new String[] { "demo/Pet" });
+		index.add("demo/Dog", "demo/Animal", new String[] { "demo/Pet" });
+		index.add("demo/Cat", "demo/Animal", NONE);
+		index.add("demo/Puppy", "demo/Dog", new String[] { "demo/Trained" });
+	}
+
+	@Test
+	public void directSubtypes() {
+		assertEquals(Arrays.asList("demo/Dog", "demo/Cat"), index.getDirectSubtypes("demo/Animal"));
+		assertEquals(Arrays.asList("demo/Trained", "demo/Dog"), index.getDirectSubtypes("demo/Pet"));
+		assertTrue(index.getDirectSubtypes("demo/Puppy").isEmpty());
+		assertEquals(6, index.size());
+	}
+
+	@Test
+	public void allSubtypesOfClass() {
+		assertEquals(Arrays.asList("demo/Dog", "demo/Cat", "demo/Puppy"),
+				Arrays.asList(index.getAllSubtypes("demo/Animal").toArray()));
+		assertEquals(Arrays.asList("demo/Puppy"), Arrays.asList(index.getAllSubtypes("demo/Dog").toArray()));
+		assertTrue(index.getAllSubtypes("demo/Cat").isEmpty());
+	}
+
+	@Test
+	public void allSubtypesOfInterface() {
+		// Puppy is reached through both Dog and Trained but only reported once, nearest first
+		Set<String> subtypes = index.getAllSubtypes("demo/Pet");
+		assertEquals(Arrays.asList("demo/Trained", "demo/Dog", "demo/Puppy"), Arrays.asList(subtypes.toArray()));
+	}
+
+	@Test
+	public void allSubtypesOfJdkSupertypes() {
+		assertEquals(Arrays.asList("demo/Pet", "demo/Trained", "demo/Dog", "demo/Puppy"),
+				Arrays.asList(index.getAllSubtypes("java/io/Serializable").toArray()));
+		assertEquals(6, index.getAllSubtypes("java/lang/Object").size());
+	}
+
+	@Test
+	public void unknownType() {
+		assertTrue(index.getDirectSubtypes("demo/Unknown").isEmpty());
+		assertTrue(index.getAllSubtypes("demo/Unknown").isEmpty());
+	}
+
+}
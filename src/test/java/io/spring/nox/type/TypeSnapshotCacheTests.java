@@ -0,0 +1,113 @@
+package io.spring.nox.type;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TypeSnapshotCacheTests {
+
+	private final static String KEY = "0123456789abcdef";
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void roundTrip() throws IOException {
+		File cacheDirectory = temporaryFolder.newFolder();
+		TypeSnapshotCache cache = new TypeSnapshotCache(cacheDirectory);
+		cache.addParsedHeader(KEY, "demo/Foo", foo());
+		cache.addParsedHeader(KEY, "demo/Bar", bar());
+		cache.save();
+
+		TypeSnapshotCache reopened = new TypeSnapshotCache(cacheDirectory);
+		assertFoo(reopened.find(KEY, "demo/Foo"));
+		ClassHeader bar = reopened.find(KEY, "demo/Bar");
+		assertEquals("demo/Bar", bar.name);
+		assertNull("stored without methods", bar.methods);
+		assertNull(reopened.find(KEY, "demo/Missing"));
+		assertNull(reopened.find("fedcba9876543210", "demo/Foo"));
+	}
+
+	@Test
+	public void saveAddsToExistingSnapshot() throws IOException {
+		File cacheDirectory = temporaryFolder.newFolder();
+		TypeSnapshotCache cache = new TypeSnapshotCache(cacheDirectory);
+		cache.addParsedHeader(KEY, "demo/Foo", foo());
+		cache.save();
+
+		TypeSnapshotCache second = new TypeSnapshotCache(cacheDirectory);
+		assertFoo(second.find(KEY, "demo/Foo"));
+		second.addParsedHeader(KEY, "demo/Bar", bar());
+		second.save();
+
+		TypeSnapshotCache third = new TypeSnapshotCache(cacheDirectory);
+		assertFoo(third.find(KEY, "demo/Foo"));
+		assertEquals("demo/Bar", third.find(KEY, "demo/Bar").name);
+	}
+
+	@Test
+	public void corruptSnapshotIsIgnored() throws IOException {
+		File cacheDirectory = temporaryFolder.newFolder();
+		Files.createDirectories(new File(cacheDirectory, "types").toPath());
+		Files.write(getSnapshotFile(cacheDirectory).toPath(), "not a snapshot".getBytes());
+		assertNull(new TypeSnapshotCache(cacheDirectory).find(KEY, "demo/Foo"));
+	}
+
+	@Test
+	public void truncatedSnapshotIsIgnored() throws IOException {
+		File cacheDirectory = temporaryFolder.newFolder();
+		TypeSnapshotCache cache = new TypeSnapshotCache(cacheDirectory);
+		cache.addParsedHeader(KEY, "demo/Foo", foo());
+		cache.addParsedHeader(KEY, "demo/Bar", bar());
+		cache.save();
+		File file = getSnapshotFile(cacheDirectory);
+		for (long length = file.length() - 1; length > 0; length /= 2) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(length);
+			}
+			TypeSnapshotCache truncated = new TypeSnapshotCache(cacheDirectory);
+			assertNull(truncated.find(KEY, "demo/Foo"));
+			assertNull(truncated.find(KEY, "demo/Bar"));
+		}
+	}
+
+	private static File getSnapshotFile(File cacheDirectory) {
+		return new File(new File(cacheDirectory, "types"), KEY + ".types");
+	}
+
+	private static ClassHeader foo() {
+		Method method = new Method(1, "run", "(Ljava/util/List;)V", "(Ljava/util/List<Ljava/lang/String;>;)V",
+				new String[] { "Ljava/lang/Deprecated;" });
+		return new ClassHeader(1, "demo/Foo", "java/lang/Object", "<T:Ljava/lang/Object;>Ljava/lang/Object;",
+				new String[] { "java/lang/Runnable" }, new String[] { "Ldemo/Marker;" }, new Method[] { method });
+	}
+
+	private static ClassHeader bar() {
+		return new ClassHeader(1, "demo/Bar", "demo/Foo", null, ClassHeader.NO_STRINGS, ClassHeader.NO_STRINGS, null);
+	}
+
+	private static void assertFoo(ClassHeader foo) {
+		assertEquals(1, foo.access);
+		assertEquals("demo/Foo", foo.name);
+		assertEquals("java/lang/Object", foo.superName);
+		assertEquals("<T:Ljava/lang/Object;>Ljava/lang/Object;", foo.signature);
+		assertArrayEquals(new String[] { "java/lang/Runnable" }, foo.interfaces);
+		assertArrayEquals(new String[] { "Ldemo/Marker;" }, foo.annotations);
+		assertEquals(1, foo.methods.length);
+		Method method = foo.methods[0];
+		assertEquals("run", method.getName());
+		assertEquals("(Ljava/util/List;)V", method.getDesc());
+		assertEquals("(Ljava/util/List<Ljava/lang/String;>;)V", method.getSignature());
+		assertArrayEquals(new String[] { "Ljava/lang/Deprecated;" }, method.getAnnotations());
+	}
+
+}